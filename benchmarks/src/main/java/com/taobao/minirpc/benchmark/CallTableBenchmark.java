@@ -0,0 +1,108 @@
+package com.taobao.minirpc.benchmark;
+
+import com.taobao.utils.ConcurrentIntMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contention on the client's table of outstanding calls, without the network:
+ * every operation takes a call id, registers the call, looks it up as the
+ * response reader does and removes it.
+ *
+ * <p>{@link #locked()} is the former scheme, a counter guarded by a monitor
+ * and a {@link Hashtable}; {@link #lockFree()} is the one
+ * {@code Client.Connection} uses now. Run with as many threads as callers
+ * share a client, e.g.
+ * <pre>
+ *   java -jar target/benchmarks.jar CallTableBenchmark -t 64
+ * </pre>
+ * {@link #outstanding} calls per thread stay registered in the background,
+ * as they would while waiting for their responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallTableBenchmark {
+
+    /** Number of calls kept in the table by every thread. */
+    @Param({"1", "16"})
+    public int outstanding;
+
+    private final Object counterLock = new Object();
+    private int counter;
+    private Hashtable<Integer, Object> hashtable;
+
+    private AtomicInteger atomicCounter;
+    private ConcurrentIntMap<Object> intMap;
+
+    private final Object call = new Object();
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        counter = 0;
+        hashtable = new Hashtable<Integer, Object>();
+        atomicCounter = new AtomicInteger();
+        intMap = new ConcurrentIntMap<Object>();
+    }
+
+    /** Per-thread ring of the ids each thread keeps outstanding. */
+    @State(Scope.Thread)
+    public static class Pending {
+        int[] lockedIds;
+        int[] lockFreeIds;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setup(CallTableBenchmark benchmark) {
+            lockedIds = new int[benchmark.outstanding];
+            lockFreeIds = new int[benchmark.outstanding];
+            for (int i = 0; i < lockedIds.length; i++) {
+                lockedIds[i] = benchmark.nextLockedId();
+                benchmark.hashtable.put(lockedIds[i], benchmark.call);
+                lockFreeIds[i] = benchmark.nextLockFreeId();
+                benchmark.intMap.put(lockFreeIds[i], benchmark.call);
+            }
+            next = 0;
+        }
+    }
+
+    int nextLockedId() {
+        synchronized (counterLock) {
+            return counter++;
+        }
+    }
+
+    int nextLockFreeId() {
+        return atomicCounter.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    @Benchmark
+    public Object locked(Pending pending) {
+        int id = nextLockedId();
+        hashtable.put(id, call);
+        int done = pending.lockedIds[pending.next];
+        pending.lockedIds[pending.next] = id;
+        pending.next = (pending.next + 1) % pending.lockedIds.length;
+        Object value = hashtable.get(done);
+        hashtable.remove(done);
+        return value;
+    }
+
+    @Benchmark
+    public Object lockFree(Pending pending) {
+        int id = nextLockFreeId();
+        intMap.put(id, call);
+        int done = pending.lockFreeIds[pending.next];
+        pending.lockFreeIds[pending.next] = id;
+        pending.next = (pending.next + 1) % pending.lockFreeIds.length;
+        Object value = intMap.get(done);
+        intMap.remove(done);
+        return value;
+    }
+}
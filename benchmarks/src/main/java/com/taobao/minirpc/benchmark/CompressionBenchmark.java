@@ -0,0 +1,81 @@
+package com.taobao.minirpc.benchmark;
+
+import com.taobao.utils.Lz4;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cost of the two body codecs offered in the connection header, on data
+ * shaped like a directory listing: each operation compresses and
+ * decompresses one body of {@link #size} bytes. Compare the time per body
+ * with the time the saved bytes take on the link, e.g.
+ * <pre>
+ *   java -jar target/benchmarks.jar CompressionBenchmark -p size=65536
+ * </pre>
+ * Deflate is used at {@link Deflater#BEST_SPEED}, as {@code Compression}
+ * does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    /** Uncompressed body size in bytes. */
+    @Param({"1024", "65536"})
+    public int size;
+
+    private byte[] body;
+    private byte[] compressed;
+    private byte[] restored;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder listing = new StringBuilder();
+        Random random = new Random(size);
+        while (listing.length() < size) {
+            listing.append("/user/data/part-").append(random.nextInt(100000))
+                    .append('\t').append(random.nextInt(1 << 30))
+                    .append("\trw-r--r--\t").append(1400000000000L + random.nextInt())
+                    .append('\n');
+        }
+        body = listing.substring(0, size).getBytes();
+        compressed = new byte[Lz4.maxCompressedLength(size) + 64];
+        restored = new byte[size];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        deflater.end();
+        inflater.end();
+    }
+
+    @Benchmark
+    public byte[] lz4() throws IOException {
+        int n = Lz4.compress(body, 0, body.length, compressed, 0);
+        Lz4.decompress(compressed, 0, n, restored, 0, restored.length);
+        return restored;
+    }
+
+    @Benchmark
+    public byte[] deflate() throws DataFormatException {
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        int n = deflater.deflate(compressed);
+        inflater.reset();
+        inflater.setInput(compressed, 0, n);
+        inflater.inflate(restored);
+        return restored;
+    }
+}
@@ -0,0 +1,16 @@
+package com.taobao.minirpc.benchmark;
+
+import com.taobao.minirpc.VersionedProtocol;
+
+/**
+ * Protocol served by the benchmark server.
+ */
+public interface EchoProtocol extends VersionedProtocol {
+    long VERSION = 1L;
+
+    /** Returns the payload unchanged. */
+    Payload echo(Payload payload);
+
+    /** Smallest possible call: one int in, one int out. */
+    int ping(int value);
+}
@@ -0,0 +1,25 @@
+package com.taobao.minirpc.benchmark;
+
+import java.io.IOException;
+
+/**
+ * Server side of {@link EchoProtocol}; does no work so that the numbers
+ * reflect the cost of the RPC layer only.
+ */
+public class EchoProtocolImpl implements EchoProtocol {
+
+    @Override
+    public Payload echo(Payload payload) {
+        return payload;
+    }
+
+    @Override
+    public int ping(int value) {
+        return value;
+    }
+
+    @Override
+    public long getProtocolVersion(String protocol, long clientVersion) throws IOException {
+        return VERSION;
+    }
+}
@@ -0,0 +1,81 @@
+package com.taobao.minirpc.benchmark;
+
+import com.taobao.minirpc.DataInputBuffer;
+import com.taobao.minirpc.DataOutputBuffer;
+import com.taobao.utils.ObjectWritable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization cost of call parameters and return values in isolation,
+ * i.e. the {@link ObjectWritable} encoding that {@code RPC.Invocation} applies
+ * to every argument and that the server applies to every return value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectWritableBenchmark {
+
+    /** Number of elements in the array parameter. */
+    @Param({"16", "4096"})
+    public int length;
+
+    private Payload payload;
+    private long[] ids;
+    private DataOutputBuffer out;
+    private DataInputBuffer in;
+    private byte[] payloadBytes;
+    private int payloadLength;
+    private byte[] idsBytes;
+    private int idsLength;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        payload = new Payload(length);
+        ids = new long[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = i;
+        }
+        out = new DataOutputBuffer();
+        in = new DataInputBuffer();
+
+        ObjectWritable.writeObject(out, payload, Payload.class, null);
+        payloadLength = out.getLength();
+        payloadBytes = out.getData().clone();
+        out.reset();
+        ObjectWritable.writeObject(out, ids, long[].class, null);
+        idsLength = out.getLength();
+        idsBytes = out.getData().clone();
+    }
+
+    @Benchmark
+    public int writeWritable() throws IOException {
+        out.reset();
+        ObjectWritable.writeObject(out, payload, Payload.class, null);
+        return out.getLength();
+    }
+
+    @Benchmark
+    public Object readWritable() throws IOException {
+        in.reset(payloadBytes, payloadLength);
+        return ObjectWritable.readObject(in, null);
+    }
+
+    @Benchmark
+    public int writeLongArray() throws IOException {
+        out.reset();
+        ObjectWritable.writeObject(out, ids, long[].class, null);
+        return out.getLength();
+    }
+
+    @Benchmark
+    public Object readLongArray() throws IOException {
+        in.reset(idsBytes, idsLength);
+        return ObjectWritable.readObject(in, null);
+    }
+}
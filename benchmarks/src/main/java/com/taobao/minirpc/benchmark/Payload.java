@@ -0,0 +1,45 @@
+package com.taobao.minirpc.benchmark;
+
+import com.taobao.minirpc.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Opaque byte payload used to drive the benchmarks with a configurable
+ * request/response size.
+ */
+public class Payload implements Writable {
+    private byte[] bytes;
+
+    public Payload() {
+        this.bytes = new byte[0];
+    }
+
+    public Payload(int size) {
+        this.bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getSize() {
+        return bytes.length;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+    }
+}
@@ -0,0 +1,81 @@
+package com.taobao.minirpc.benchmark;
+
+import com.taobao.minirpc.RPC;
+import com.taobao.minirpc.Server;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark of a loopback RPC: {@code Invocation} serialization on
+ * the client, {@code Server.Connection.readAndProcess}, dispatch through the
+ * handler threads, {@code Server.setupResponse} and
+ * {@code Client.Connection.receiveResponse}.
+ *
+ * <p>Throughput mode reports ops/sec; sample mode reports the p50/p99/p999
+ * latency distribution. Concurrency is the number of JMH threads, e.g.
+ * <pre>
+ *   java -jar target/benchmarks.jar RpcBenchmark -t 16 \
+ *        -p payloadSize=1024 -p handlerCount=10
+ * </pre>
+ * All threads share one proxy and therefore one client connection, which is
+ * how {@link RPC#getProxy} is used in practice.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RpcBenchmark {
+
+    /** Size in bytes of the payload sent and echoed back by {@link #echo()}. */
+    @Param({"16", "1024", "65536"})
+    public int payloadSize;
+
+    /** Number of server handler threads. */
+    @Param({"1", "10"})
+    public int handlerCount;
+
+    /**
+     * How the proxy reaches the server: over the loopback socket, or in
+     * process without one, see {@link Server#setInProcessCalls}. The two
+     * in-process variants are the baseline the socket path is measured
+     * against.
+     */
+    @Param({"socket", "inProcess", "inProcessCopyFree"})
+    public String transport;
+
+    private Server server;
+    private EchoProtocol proxy;
+    private Payload payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = RPC.getServer(new EchoProtocolImpl(), "127.0.0.1", 0, handlerCount, false);
+        server.setInProcessCalls(!transport.equals("socket"));
+        server.setInProcessCopyFree(transport.equals("inProcessCopyFree"));
+        server.start();
+        InetSocketAddress addr = server.getListenerAddress();
+        proxy = (EchoProtocol) RPC.getProxy(EchoProtocol.class, EchoProtocol.VERSION, addr);
+        payload = new Payload(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        RPC.stopProxy(proxy);
+        server.stop();
+    }
+
+    @Benchmark
+    public Payload echo() {
+        return proxy.echo(payload);
+    }
+
+    @Benchmark
+    public int ping() {
+        return proxy.ping(handlerCount);
+    }
+}
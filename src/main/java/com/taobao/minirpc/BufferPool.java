@@ -0,0 +1,108 @@
+package com.taobao.minirpc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable {@link ByteBuffer}s in power-of-two size classes, from
+ * 256 bytes up to 1MB. Buffers larger than the biggest class are allocated
+ * on demand and not pooled. Each size class keeps at most
+ * <code>maxBytesPerClass</code> bytes of free buffers; the rest are left to
+ * the garbage collector.
+ *
+ * The pool is thread safe. A buffer must not be used after it is released.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;          // 256 bytes
+    private static final int MAX_SHIFT = 20;         // 1MB
+    static final int DEFAULT_MAX_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    private final boolean direct;
+    private final int maxBytesPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] counts;
+
+    public BufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_BYTES_PER_CLASS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean direct, int maxBytesPerClass) {
+        this.direct = direct;
+        this.maxBytesPerClass = maxBytesPerClass;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        this.free = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[classes];
+        this.counts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            counts[i] = new AtomicInteger();
+        }
+    }
+
+    /** Return true if this pool hands out direct buffers. */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Get a buffer with at least <code>size</code> bytes of capacity. The
+     * buffer is cleared and its limit set to <code>size</code>.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = indexFor(size);
+        if (index < 0) {
+            return allocate(size);                    // too large to pool
+        }
+        ByteBuffer buf = free[index].poll();
+        if (buf == null) {
+            buf = allocate(1 << (index + MIN_SHIFT));
+        } else {
+            counts[index].decrementAndGet();
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers that were not handed out by a pool
+     * of the same kind, and buffers over the per-class limit, are dropped.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.isDirect() != direct || buf.isReadOnly()) {
+            return;
+        }
+        int capacity = buf.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int index = indexFor(capacity);
+        if (index < 0) {
+            return;
+        }
+        if ((long) counts[index].incrementAndGet() * capacity > maxBytesPerClass) {
+            counts[index].decrementAndGet();
+            return;
+        }
+        free[index].offer(buf);
+    }
+
+    /** The largest buffer size that is pooled. */
+    public static int getMaxPooledSize() {
+        return 1 << MAX_SHIFT;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /* Index of the smallest size class holding size bytes, -1 if none does */
+    private static int indexFor(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return size < 0 ? -1 : 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
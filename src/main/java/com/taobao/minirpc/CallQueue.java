@@ -0,0 +1,28 @@
+package com.taobao.minirpc;
+
+/**
+ * The queue between the reader threads, which offer every call read off a
+ * connection, and the handler threads, which take them. A queue is bounded:
+ * while {@link #offer} refuses a call the server stops reading from the
+ * connection it came from, which pushes back on that client only.
+ *
+ * Implementations decide the order calls are taken in, see
+ * {@link FifoCallQueue} and {@link FairCallQueue}. They must be safe for
+ * any number of threads putting and taking at once.
+ *
+ * @see Server#setCallQueue(CallQueue)
+ */
+public interface CallQueue {
+
+    /**
+     * Add a call if there is room for it.
+     * @return false if the queue is full
+     */
+    boolean offer(Schedulable call);
+
+    /** Remove the next call, waiting for one if the queue is empty. */
+    Schedulable take() throws InterruptedException;
+
+    /** The number of calls in the queue. */
+    int size();
+}
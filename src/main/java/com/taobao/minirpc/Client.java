@@ -7,10 +7,22 @@ import org.apache.commons.logging.LogFactory;
 import javax.net.SocketFactory;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by shili on 14-2-27.
@@ -18,17 +30,47 @@ import java.util.concurrent.atomic.AtomicLong;
 public class Client {
 
     public static final Log LOG = LogFactory.getLog(Client.class);
-    private Hashtable<ConnectionId, Connection> connections =
-            new Hashtable<ConnectionId, Connection>();
+    private ConcurrentHashMap<ConnectionId, ConnectionPool> connections =
+            new ConcurrentHashMap<ConnectionId, ConnectionPool>();
 
     private Class<? extends Writable> valueClass;   // class of call values
-    private int counter;                            // counter for call ids
+    private AtomicInteger counter = new AtomicInteger(); // counter for call ids
     private AtomicBoolean running = new AtomicBoolean(true); // if client runs
 
     private SocketFactory socketFactory;           // how to create sockets
     private int refCount = 1;
 
     final static int PING_CALL_ID = -1;
+    final static int CONNECTION_HEADER_CALL_ID = -2; // server's answer to the header
+    final static int STREAM_WINDOW_CALL_ID = -3;     // first credits of a streamed response
+    final static int STREAM_CREDIT_CALL_ID = -4;     // more credits, or a cancel
+
+    /** Bodies smaller than this many bytes are not compressed by default. */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    /** Compressed bodies may inflate to at most this many bytes by default. */
+    public static final int DEFAULT_MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+    private boolean compactInvocations = true; // ask servers for method IDs
+    private Compression compression = Compression.NONE; // codec asked of servers
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD; // smallest body compressed
+    private int maxUncompressedLength = DEFAULT_MAX_UNCOMPRESSED_LENGTH; // largest body inflated
+
+    private int maxConnectionsPerId = 1;       // max sockets to one ConnectionId
+    private int connectionGrowThreshold = 16;  // outstanding calls that open another
+    private int sendBatchSize = 64;            // max requests per socket write
+    private long sendLingerNanos = 0;          // how long a writer waits for more requests
+    private int eventLoopThreads = 0;          // selector threads reading responses, 0 for one per connection
+    private int streamWindow = 16;             // chunks of a stream the server may send ahead
+    private volatile Executor callbackExecutor = ForkJoinPool.commonPool(); // completes async calls
+
+    private static final int READ_BUFFER_SIZE = 8192; // initial response buffer of a connection
+    private static final long EVENT_LOOP_TICK = 100;  // ms between idle and ping checks
+
+    private volatile EventLoop[] eventLoops;   // created with the first connection
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    private volatile TimingWheel timingWheel;  // expires calls with a deadline
 
     /**
      * Get the ping interval;
@@ -46,6 +88,137 @@ public class Client {
         return -1;
     }
 
+    /**
+     * Ask servers to accept compact invocations, which carry a method ID
+     * agreed on in the connection header exchange instead of the method and
+     * parameter class names. Affects connections opened afterwards.
+     */
+    public void setCompactInvocations(boolean compactInvocations) {
+        this.compactInvocations = compactInvocations;
+    }
+
+    /**
+     * Ask servers to compress responses, and compress requests, with the
+     * given codec. Only bodies of at least the
+     * {@link #setCompressionThreshold threshold} are compressed. A server
+     * that does not know the codec answers uncompressed.
+     * Affects connections opened afterwards.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /** Set the size in bytes from which request bodies are compressed. */
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Set the most bytes a compressed response body may inflate to. A
+     * response claiming more closes its connection with an IOException.
+     */
+    public void setMaxUncompressedLength(int length) {
+        this.maxUncompressedLength = length;
+    }
+
+    /**
+     * Set the maximum number of connections, each with its own socket and,
+     * without {@link #setEventLoopThreads event loops}, receiver thread,
+     * opened to one server for one protocol. A call goes
+     * to the connection with the fewest outstanding calls. Another
+     * connection is opened when all of them have at least the
+     * {@link #setConnectionGrowThreshold grow threshold} outstanding, and a
+     * connection idle for its maxIdleTime closes, so the pool shrinks again.
+     * Defaults to one.
+     */
+    public void setMaxConnectionsPerId(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be positive: " +
+                    maxConnections);
+        }
+        this.maxConnectionsPerId = maxConnections;
+    }
+
+    /**
+     * Set the number of outstanding calls every connection to a server must
+     * have before another one is opened.
+     */
+    public void setConnectionGrowThreshold(int outstanding) {
+        this.connectionGrowThreshold = outstanding;
+    }
+
+    /**
+     * Set the maximum number of requests a connection coalesces into one
+     * socket write. Affects connections opened afterwards.
+     */
+    public void setSendBatchSize(int sendBatchSize) {
+        if (sendBatchSize < 1) {
+            throw new IllegalArgumentException("sendBatchSize must be positive: " +
+                    sendBatchSize);
+        }
+        this.sendBatchSize = sendBatchSize;
+    }
+
+    /**
+     * Set how long the thread writing a batch of requests waits for more
+     * requests to join the batch before writing it. Zero, the default, writes
+     * whatever is queued right away.
+     */
+    public void setSendLinger(long linger, TimeUnit unit) {
+        this.sendLingerNanos = unit.toNanos(linger);
+    }
+
+    /**
+     * Read the responses of all connections with a fixed group of selector
+     * threads instead of a receiver thread per connection. Each thread
+     * serves many non-blocking sockets and decodes response frames as their
+     * bytes arrive. Calls complete on these threads; the futures of
+     * asynchronous calls are still completed on the
+     * {@link #setCallbackExecutor callback executor}. Zero, the default,
+     * keeps a thread per connection. Must be called before the first call.
+     */
+    public void setEventLoopThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must not be negative: " + threads);
+        }
+        if (eventLoops != null) {
+            throw new IllegalStateException("The event loops are already running");
+        }
+        this.eventLoopThreads = threads;
+    }
+
+    /**
+     * Set how many chunks of a streamed response the server may send ahead
+     * of the caller. The server sends no more than this until the caller has
+     * taken chunks, and is granted credits for more whenever half of them
+     * have been taken. Defaults to 16.
+     */
+    public void setStreamWindow(int chunks) {
+        if (chunks < 1) {
+            throw new IllegalArgumentException("chunks must be positive: " + chunks);
+        }
+        this.streamWindow = chunks;
+    }
+
+    /**
+     * Set the executor that completes the futures of asynchronous calls, and
+     * so runs the stages that depend on them without an executor of their
+     * own. The threads that read responses and expire calls only hand the
+     * outcome over, so a slow stage cannot hold them up. Defaults to the
+     * common ForkJoinPool.
+     */
+    public void setCallbackExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.callbackExecutor = executor;
+    }
+
+    /** The executor that completes the futures of asynchronous calls. */
+    Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
     /**
      * Increment this client's reference count
      *
@@ -78,12 +251,16 @@ public class Client {
         Writable value;                               // value, null if error   Զ̷صĽΪշ
         IOException error;                            // exception, null if value   Զ̵׳쳣쳣
         boolean done;                                 // true when call is done    ʶԶ̵Ƿ
+        TimingWheel.Timeout timeout;                  // deadline, null if none
+        long deadline;                                // time the call gives up, 0 if never
+        long timeoutMillis;                           // the timeout the deadline came from
+        volatile Connection connection;               // set once the call is added to one
+        volatile boolean expired;                     // the deadline passed
 
         protected Call(Writable param) {
             this.param = param;
-            synchronized (Client.this) {
-                this.id = counter++;
-            }
+            // negative ids are reserved for pings, the header answer and credits
+            this.id = counter.getAndIncrement() & Integer.MAX_VALUE;
         }
 
         /** Indicate when the call is complete and the
@@ -100,6 +277,7 @@ public class Client {
          */
         public synchronized void setException(IOException error) {
             this.error = error;
+            cancelTimeout();
             callComplete();
         }
 
@@ -110,8 +288,24 @@ public class Client {
          */
         public synchronized void setValue(Writable value) {
             this.value = value;
+            cancelTimeout();
             callComplete();
         }
+
+        /** Milliseconds left until the deadline, at least 1; 0 if none. */
+        int getRemainingTimeout() {
+            if (deadline == 0) {
+                return 0;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            return (int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+        }
+
+        void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
     }
 
     /** Thread that reads responses and notifies callers.  Each connection owns a
@@ -125,26 +319,45 @@ public class Client {
         private InetSocketAddress server;             // server ip:port
         private ConnectionHeader header;              // connection header
         private final ConnectionId remoteId;                // connection id
+        private final ConnectionPool pool;            // the connections to remoteId
 
-        private Socket socket = null;                 // connected socket
+        private Socket socket = null;                 // connected TCP socket
+        private SocketChannel channel;                // its channel, or a Unix socket's
         private DataInputStream in;
         private DataOutputStream out;
+        private OutputStream rawOut;                  // socket stream under out
+        private EventLoop eventLoop;                  // reads the responses if not null
+        private SelectionKey readKey;                 // event loop thread only
+        private ByteBuffer readBuffer;                // event loop thread only
+        private DataInputBuffer frameIn;              // event loop thread only
+        private boolean detached;                     // event loop thread only
         private int rpcTimeout;
         private int maxIdleTime; //connections will be culled if it was idle for
         //maxIdleTime msecs
         private final RetryPolicy connectionRetryPolicy;
         private boolean tcpNoDelay; // if T then disable Nagle's Algorithm
         private int pingInterval; // how often sends ping to the server in msecs
+        private boolean compact;  // if T then the server accepted compact invocations
+        private Compression compression = Compression.NONE; // codec the server accepted
+
+        // requests waiting to be written, and the flag of the thread writing them
+        private final ConcurrentLinkedQueue<ByteBuffer> sendQueue =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private final ByteBuffer[] sendBatch;         // used by the sending thread only
+        private final long sendLinger;
 
 
         // currently active calls
-        private Hashtable<Integer, Call> calls = new Hashtable<Integer, Call>();
+        private ConcurrentIntMap<Call> calls = new ConcurrentIntMap<Call>();
+        private volatile boolean waiting;             // if T the thread may wait for calls
         private AtomicLong lastActivity = new AtomicLong();// last I/O activity time
         private AtomicBoolean shouldCloseConnection = new AtomicBoolean();  // indicate if the connection is closed
         private IOException closeException; // close reason
 
-        public Connection(ConnectionId remoteId) throws IOException {
+        public Connection(ConnectionId remoteId, ConnectionPool pool) throws IOException {
             this.remoteId = remoteId;
+            this.pool = pool;
             this.server = remoteId.getAddress();
             if (server.isUnresolved()) {
                 throw new UnknownHostException("unknown host: " +
@@ -158,9 +371,19 @@ public class Client {
                 LOG.debug("The ping interval is" + this.pingInterval + "ms.");
             }
             this.rpcTimeout = remoteId.getRpcTimeout();
+            this.sendBatch = new ByteBuffer[sendBatchSize];
+            this.sendLinger = sendLingerNanos;
             Class<?> protocol = remoteId.getProtocol();
 
-            header = new ConnectionHeader(protocol == null ? null : protocol.getName());
+            int options = Client.this.compression.option;
+            if (protocol != null && compactInvocations) {
+                header = new ConnectionHeader(protocol.getName(),
+                        options | ConnectionHeader.COMPACT_INVOCATION,
+                        MethodTable.get(protocol).getHash());
+            } else {
+                header = new ConnectionHeader(protocol == null ? null : protocol.getName(),
+                        options, 0);
+            }
 
             this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
                     remoteId.getAddress().toString());
@@ -174,16 +397,31 @@ public class Client {
 
         /**
          * Add a call to this connection's call queue and notify
-         * a listener; synchronized.
+         * the connection thread if it is waiting for one.
          * Returns false if called during shutdown.
          * @param call to add
          * @return true if the call was added.
          */
-        private synchronized boolean addCall(Call call) {
+        private boolean addCall(Call call) {
             if (shouldCloseConnection.get())
                 return false;
+            call.connection = this;
             calls.put(call.id, call);
-            notify();
+            if (shouldCloseConnection.get() && calls.remove(call.id) != null) {
+                // closed meanwhile, and cleanupCalls did not see the call
+                return false;
+            }
+            if (call.expired) {
+                // its timer found no connection to expire it on
+                expireCall(call);
+            }
+            // waitForWork sets waiting before it checks calls, so either it
+            // sees the call or we see it waiting
+            if (waiting) {
+                synchronized (this) {
+                    notify();
+                }
+            }
             return true;
         }
 
@@ -251,6 +489,9 @@ public class Client {
          * @throws IOException when the hostname cannot be resolved.
          */
         private synchronized boolean updateAddress() throws IOException {
+            if (server instanceof UnixSocketAddress) {
+                return false;                         // a path does not resolve
+            }
             // Do a fresh lookup with the old host name.
             InetSocketAddress currentAddr = NetUtils.makeSocketAddr(
                     server.getHostName(), server.getPort());
@@ -273,7 +514,20 @@ public class Client {
             short timeoutFailures = 0;
             while (true) {
                 try {
+                    if (rpcTimeout > 0) {
+                        pingInterval = rpcTimeout;  // rpcTimeout overwrites pingInterval
+                    }
+                    if (server instanceof UnixSocketAddress) {
+                        // same framing over a local socket, without TCP options
+                        this.channel = ((UnixSocketAddress) server).connect();
+                        return;
+                    }
                     this.socket = socketFactory.createSocket();
+                    if (eventLoopThreads > 0 && this.socket.getChannel() == null) {
+                        // an event loop can only select on a channel
+                        this.socket.close();
+                        this.socket = SocketChannel.open().socket();
+                    }
                     this.socket.setTcpNoDelay(tcpNoDelay);
 
           /*
@@ -282,13 +536,11 @@ public class Client {
            * to host name in principal passed.
            */
 
-                    // connection time out is 20s
-                    NetUtils.connect(this.socket, server, 20000);
-                    if (rpcTimeout > 0) {
-                        pingInterval = rpcTimeout;  // rpcTimeout overwrites pingInterval
-                    }
+                    // connection time out is 20s, or less before the waiting calls' deadlines
+                    NetUtils.connect(this.socket, server, setupTimeLeft(20000));
 
                     this.socket.setSoTimeout(pingInterval);
+                    this.channel = socket.getChannel();
                     return;
                 } catch (SocketTimeoutException toe) {
           /* Check for an address change and update the local reference.
@@ -315,7 +567,7 @@ public class Client {
          * the connection thread that waits for responses.
          */
         private synchronized void setupIOstreams() throws InterruptedException {
-            if (socket != null || shouldCloseConnection.get()) {
+            if (socket != null || channel != null || shouldCloseConnection.get()) {
                 return;
             }
 
@@ -328,12 +580,20 @@ public class Client {
                 Random rand = null;
                 while (true) {
                     setupConnection();
-                    InputStream inStream = NetUtils.getInputStream(socket);
-                    OutputStream outStream = NetUtils.getOutputStream(socket);
+                    InputStream inStream;
+                    OutputStream outStream;
+                    if (socket != null) {
+                        inStream = NetUtils.getInputStream(socket);
+                        outStream = NetUtils.getOutputStream(socket);
+                    } else {
+                        inStream = new SocketInputStream(channel, pingInterval);
+                        outStream = new SocketOutputStream(channel, 0);
+                    }
                     /**
                      * дrpc headerserver,rpcʼ"hrpc"+汾
                      */
                     writeRpcHeader(outStream);
+                    this.rawOut = outStream;
                     this.in = new DataInputStream(new BufferedInputStream
                             (new PingInputStream(inStream)));
                     this.out = new DataOutputStream
@@ -342,12 +602,23 @@ public class Client {
                      * дͷConntionHeader 䳤Ƚн
                      */
                     writeHeader();
+                    if (header.getOptions() != 0) {
+                        readHeaderAnswer();
+                    }
 
                     // update last activity time
                     touch();
 
-                    // start the receiver thread after the socket connection has been set up
-                    start();
+                    // start the receiver thread after the socket connection has been set up,
+                    // or hand the socket to an event loop
+                    if (eventLoopThreads > 0) {
+                        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                        frameIn = new DataInputBuffer();
+                        eventLoop = getEventLoop();
+                        eventLoop.add(this);
+                    } else {
+                        start();
+                    }
                     return;
                 }
             } catch (Throwable t) {
@@ -360,16 +631,43 @@ public class Client {
             }
         }
 
+        /* The time left to set up the connection, at most limit. Every call
+         * on the connection waits for it, so setting up goes on until the
+         * latest of their deadlines, and for as long as it takes if one of
+         * them has none. A call whose own deadline passes first is failed
+         * by its timer and leaves the others waiting.
+         */
+        private int setupTimeLeft(int limit) throws SocketTimeoutException {
+            long latest = 0;
+            for (Call call : calls.values()) {
+                if (call.deadline == 0) {
+                    return limit;
+                }
+                latest = Math.max(latest, call.deadline);
+            }
+            long left = latest - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new SocketTimeoutException("Deadlines of all waiting calls passed while connecting to " +
+                        server);
+            }
+            return (int) Math.min(limit, left);
+        }
+
         private void closeConnection() {
             // close the current connection
             try {
-                socket.close();
+                if (socket != null) {
+                    socket.close();
+                } else if (channel != null) {
+                    channel.close();
+                }
             } catch (IOException e) {
                 LOG.warn("Not able to close a socket", e);
             }
             // set socket to null so that the next call to setupIOstreams
             // can start the process of connect all over again.
             socket = null;
+            channel = null;
         }
 
         /* Handle connection failures
@@ -398,7 +696,7 @@ public class Client {
 
             // otherwise back off and retry
             try {
-                Thread.sleep(1000);
+                Thread.sleep(setupTimeLeft(1000));
             } catch (InterruptedException ignored) {}
 
             LOG.info("Retrying connect to server: " + server + ". Already tried "
@@ -408,6 +706,7 @@ public class Client {
         private void handleConnectionFailure(int curRetries, IOException ioe
         ) throws IOException {
             closeConnection();
+            setupTimeLeft(0);                         // no retry once no call waits
 
             final boolean retry;
             try {
@@ -446,6 +745,28 @@ public class Client {
             out.write(buf.getData(), 0, bufLen);
         }
 
+        /* Read the server's answer to the options in the connection header.
+         * This happens before the connection thread is started, so no
+         * other response can arrive in between.
+         */
+        private void readHeaderAnswer() throws IOException {
+            out.flush();
+            in.readInt();                             // skip the response length
+            int id = in.readInt();
+            int state = in.readInt();
+            if (id != CONNECTION_HEADER_CALL_ID || state != Status.SUCCESS.state) {
+                throw new IOException("Unexpected answer to connection header from " +
+                        server + ": call #" + id + ", status " + state);
+            }
+            ConnectionHeader answer = new ConnectionHeader();
+            answer.readFields(in);
+            compact = answer.hasOption(ConnectionHeader.COMPACT_INVOCATION);
+            compression = Compression.fromOptions(answer.getOptions());
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + ": compact invocations " +
+                        (compact ? "accepted" : "refused") + ", compression " + compression);
+        }
+
         /* wait till someone signals us to start reading RPC response or
          * it is idle too long, it is marked as to be closed,
          * or the client is marked as not running.
@@ -453,6 +774,7 @@ public class Client {
          * Return true if it is time to read a response; false otherwise.
          */
         private synchronized boolean waitForWork() {
+            waiting = true;
             if (calls.isEmpty() && !shouldCloseConnection.get()  && running.get())  {
                 long timeout = maxIdleTime-
                         (System.currentTimeMillis()-lastActivity.get());
@@ -462,6 +784,7 @@ public class Client {
                     } catch (InterruptedException e) {}
                 }
             }
+            waiting = false;
 
             if (!calls.isEmpty() && !shouldCloseConnection.get() && running.get()) {
                 return true;
@@ -513,34 +836,122 @@ public class Client {
 
         /** Initiates a call by sending the parameter to the remote server.
          * Note: this is not called from the Connection thread, but by other
-         * threads.
+         * threads. The request is serialized by the calling thread and queued;
+         * whichever caller finds no other thread writing drains the queue.
          */
         public void sendParam(Call call) {
+            if (shouldCloseConnection.get() || call.expired) {
+                return;                               // closed, or expired while connecting
+            }
+
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + " sending #" + call.id);
+
+            DataOutputBuffer d = new DataOutputBuffer();
+            try {
+                d.writeInt(0);                        // room for the data length
+                d.writeInt(call.id);
+                d.writeInt(call.getRemainingTimeout()); // lets the server drop it late
+                DataOutput body = compression.startBody(d);
+                if (compact && call.param instanceof CompactWritable) {
+                    ((CompactWritable) call.param).writeCompact(body);
+                } else {
+                    call.param.write(body);
+                }
+                compression.finishBody(d, body, compressionThreshold);
+            } catch (IOException e) {
+                markClosed(e);
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.wrap(d.getData(), 0, d.getLength());
+            frame.putInt(0, d.getLength() - 4);       // first put the data length
+            if (call instanceof StreamCall) {
+                // the first credits open the stream, before the server reads the call
+                sendQueue.add(creditFrame(STREAM_WINDOW_CALL_ID, call.id,
+                        ((StreamCall) call).window));
+            }
+            sendQueue.add(frame);
+            flushSendQueue();
+        }
+
+        /* Grant the server credits for more chunks of a streamed response,
+         * or cancel the stream with a negative grant. */
+        private void sendStreamCredit(int id, int credits) {
             if (shouldCloseConnection.get()) {
                 return;
             }
+            sendQueue.add(creditFrame(STREAM_CREDIT_CALL_ID, id, credits));
+            flushSendQueue();
+        }
 
-            DataOutputBuffer d=null;
-            try {
-                synchronized (this.out) {
-                    if (LOG.isDebugEnabled())
-                        LOG.debug(getName() + " sending #" + call.id);
-
-                    d = new DataOutputBuffer();
-                    d.writeInt(call.id);
-                    call.param.write(d);
-                    byte[] data = d.getData();
-                    int dataLength = d.getLength();
-                    out.writeInt(dataLength);      //first put the data length
-                    out.write(data, 0, dataLength);//write the data
+        /* Cancel a stream that failed on this side, usually on the timer
+         * thread when it expires. That thread must not block on the
+         * socket, so the cancel is only queued here and written by a pool
+         * thread, unless another writer drains the queue first.
+         */
+        private void cancelStream(int id) {
+            if (shouldCloseConnection.get()) {
+                return;
+            }
+            sendQueue.add(creditFrame(STREAM_CREDIT_CALL_ID, id, -1));
+            ForkJoinPool.commonPool().execute(new Runnable() {
+                public void run() {
+                    flushSendQueue();
+                }
+            });
+        }
+
+        private ByteBuffer creditFrame(int type, int id, int credits) {
+            ByteBuffer frame = ByteBuffer.allocate(16);
+            frame.putInt(12);                         // data length
+            frame.putInt(type);
+            frame.putInt(id);
+            frame.putInt(credits);
+            frame.flip();
+            return frame;
+        }
+
+        /* Write queued requests until the queue is empty or another thread
+         * takes over. Only the thread that sets the sending flag writes, so
+         * requests queued while it writes go out in its next batch, several
+         * requests per system call.
+         */
+        private void flushSendQueue() {
+            while (!sendQueue.isEmpty() && sending.compareAndSet(false, true)) {
+                try {
+                    if (sendLinger > 0 && sendQueue.size() < sendBatch.length) {
+                        LockSupport.parkNanos(sendLinger);
+                    }
+                    int count = 0;
+                    ByteBuffer frame;
+                    while (count < sendBatch.length && (frame = sendQueue.poll()) != null) {
+                        sendBatch[count++] = frame;
+                    }
+                    if (count > 0 && !shouldCloseConnection.get()) {
+                        writeBatch(count);
+                    }
+                    Arrays.fill(sendBatch, 0, count, null);
+                } catch (IOException e) {
+                    markClosed(e);
+                } finally {
+                    sending.set(false);
+                }
+            }
+        }
+
+        private void writeBatch(int count) throws IOException {
+            synchronized (this.out) {
+                out.flush();                          // anything written before, like pings
+                if (rawOut instanceof SocketOutputStream) {
+                    ((SocketOutputStream) rawOut).writeFully(sendBatch, count);
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer frame = sendBatch[i];
+                        out.write(frame.array(), frame.arrayOffset() + frame.position(),
+                                frame.remaining());
+                    }
                     out.flush();
                 }
-            } catch(IOException e) {
-                markClosed(e);
-            } finally {
-                //the buffer is just an in-memory buffer, but it is still polite to
-                // close early
-                IOUtils.closeStream(d);
             }
         }
 
@@ -554,30 +965,106 @@ public class Client {
             touch();
 
             try {
-                int id = in.readInt();                    // try to read an id
+                int length = in.readInt();                // the response length
+                processResponse(in, length);
+            } catch (IOException e) {
+                markClosed(e);
+            }
+        }
 
-                if (LOG.isDebugEnabled())
-                    LOG.debug(getName() + " got value #" + id);
+        /* Read responses from the socket of an event loop, and process every
+         * whole frame among them. A frame split across reads stays in the
+         * buffer, which grows for a frame larger than it.
+         */
+        private void readResponses() {
+            try {
+                boolean grown;
+                do {
+                    grown = false;
+                    int n = channel.read(readBuffer);
+                    if (n < 0) {
+                        throw new EOFException("Connection to " + server + " closed by peer");
+                    }
+                    touch();
+                    readBuffer.flip();
+                    while (readBuffer.remaining() >= 4 && !shouldCloseConnection.get()) {
+                        int start = readBuffer.position();
+                        int length = readBuffer.getInt(start);
+                        if (length < 8) {
+                            throw new IOException("Bad response length " + length +
+                                    " from " + server);
+                        }
+                        if (readBuffer.remaining() - 4 < length) {
+                            if (length + 4 > readBuffer.capacity()) {
+                                ByteBuffer bigger = ByteBuffer.allocate(length + 4);
+                                bigger.put(readBuffer);
+                                readBuffer = bigger;
+                                grown = true;
+                            }
+                            break;
+                        }
+                        frameIn.reset(readBuffer.array(), start + 4, length);
+                        processResponse(frameIn, length);
+                        readBuffer.position(start + 4 + length);
+                    }
+                    if (grown) {
+                        continue;                     // bigger already holds the partial frame
+                    }
+                    if (!readBuffer.hasRemaining() && readBuffer.capacity() > READ_BUFFER_SIZE) {
+                        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                    } else {
+                        readBuffer.compact();
+                    }
+                } while (grown && !shouldCloseConnection.get());
+            } catch (IOException e) {
+                markClosed(e);
+            }
+        }
 
-                Call call = calls.get(id);
+        /* Process a response frame whose length has been read. */
+        private void processResponse(DataInput in, int length) throws IOException {
+            int id = in.readInt();                    // try to read an id
 
-                int state = in.readInt();     // read call status
-                if (state == Status.SUCCESS.state) {
-                    Writable value = ReflectionUtils.newInstance(valueClass);
-                    value.readFields(in);                 // read value
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + " got value #" + id);
+
+            int state = in.readInt();     // read call status
+            DataInput body = in;
+            if (state == Status.SUCCESS.state || state == Status.ERROR.state ||
+                    state == Status.CHUNK.state) {
+                body = compression.readBody(in, length - 8, maxUncompressedLength);
+            }
+            if (state == Status.CHUNK.state) {
+                Writable chunk = ReflectionUtils.newInstance(valueClass);
+                chunk.readFields(body);               // read it even if dropped
+                Call call = calls.get(id);
+                if (call instanceof StreamCall) {     // otherwise cancelled or timed out
+                    ((StreamCall) call).addChunk(chunk);
+                }
+            } else if (state == Status.SUCCESS.state) {
+                Writable value = ReflectionUtils.newInstance(valueClass);
+                value.readFields(body);               // read value
+                Call call = calls.remove(id);
+                if (call != null) {                   // null if it timed out
                     call.setValue(value);
-                    calls.remove(id);
-                } else if (state == Status.ERROR.state) {
-                    call.setException(new RemoteException(WritableUtils.readString(in),
-                            WritableUtils.readString(in)));
-                    calls.remove(id);
-                } else if (state == Status.FATAL.state) {
-                    // Close the connection
-                    markClosed(new RemoteException(WritableUtils.readString(in),
-                            WritableUtils.readString(in)));
                 }
-            } catch (IOException e) {
-                markClosed(e);
+            } else if (state == Status.ERROR.state) {
+                RemoteException error = new RemoteException(WritableUtils.readString(body),
+                        WritableUtils.readString(body));
+                Call call = calls.remove(id);
+                if (call != null) {
+                    call.setException(error);
+                }
+            } else if (state == Status.TIMEOUT.state) {
+                Call call = calls.remove(id);
+                if (call != null) {
+                    call.setException(new SocketTimeoutException("Call #" + id +
+                            " expired before " + server + " handled it"));
+                }
+            } else if (state == Status.FATAL.state) {
+                // Close the connection
+                markClosed(new RemoteException(WritableUtils.readString(in),
+                        WritableUtils.readString(in)));
             }
         }
 
@@ -585,6 +1072,9 @@ public class Client {
             if (shouldCloseConnection.compareAndSet(false, true)) {
                 closeException = e;
                 notifyAll();
+                if (eventLoop != null) {
+                    eventLoop.add(this);              // the loop closes it
+                }
             }
         }
 
@@ -597,15 +1087,12 @@ public class Client {
 
             // release the resources
             // first thing to do;take the connection out of the connection list
-            synchronized (connections) {
-                if (connections.get(remoteId) == this) {
-                    connections.remove(remoteId);
-                }
-            }
+            pool.remove(this);
 
             // close the streams and therefore the socket
             IOUtils.closeStream(out);
             IOUtils.closeStream(in);
+            sendQueue.clear();
 
             // clean up all calls
             if (closeException == null) {
@@ -631,13 +1118,254 @@ public class Client {
                 LOG.debug(getName() + ": closed");
         }
 
+        /* Fail a call whose deadline has passed. The connection stays open;
+         * a response that arrives later is read and dropped.
+         */
+        private void expireCall(Call call) {
+            if (calls.remove(call.id) != null) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug(getName() + " call #" + call.id + " timed out");
+                call.setException(new SocketTimeoutException("Call #" + call.id +
+                        " timed out after " + call.timeoutMillis + " ms"));
+            }
+        }
+
         /* Cleanup all calls and mark them as done */
         private void cleanupCalls() {
-            Iterator<Map.Entry<Integer, Call>> itor = calls.entrySet().iterator() ;
-            while (itor.hasNext()) {
-                Call c = itor.next().getValue();
+            for (Call c : calls.removeAll()) {
                 c.setException(closeException); // local exception
-                itor.remove();
+            }
+        }
+    }
+
+    /**
+     * A selector thread reading the responses of many connections, see
+     * {@link #setEventLoopThreads}. It also does what the receiver thread of
+     * a connection does while it waits: sending pings, and closing the
+     * connection once it is idle, failed or the client stops. Connections
+     * are registered and closed on this thread only.
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        // connections to register, and connections marked to be closed
+        private final ConcurrentLinkedQueue<Connection> pending =
+                new ConcurrentLinkedQueue<Connection>();
+        private long lastCheck;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.setName("IPC Client (" + socketFactory.hashCode() + ") event loop " + index);
+            this.setDaemon(true);
+        }
+
+        /* Register a new connection, or close one marked to be closed. */
+        void add(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        public void run() {
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + ": starting");
+            while (running.get() || !selector.keys().isEmpty() || !pending.isEmpty()) {
+                try {
+                    selector.select(EVENT_LOOP_TICK);
+                    doPending();
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            Connection connection = (Connection) key.attachment();
+                            connection.readResponses();
+                            if (connection.shouldCloseConnection.get()) {
+                                detach(connection);
+                            }
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheck >= EVENT_LOOP_TICK || !running.get()) {
+                        lastCheck = now;
+                        checkConnections(now);
+                    }
+                } catch (IOException e) {
+                    LOG.warn(getName() + " caught: " + StringUtils.stringifyException(e));
+                } catch (RuntimeException e) {
+                    LOG.error(getName() + " caught: " + StringUtils.stringifyException(e));
+                }
+            }
+            IOUtils.closeStream(selector);
+            if (LOG.isDebugEnabled())
+                LOG.debug(getName() + ": stopped");
+        }
+
+        private void doPending() {
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                if (connection.readKey == null && !connection.shouldCloseConnection.get()) {
+                    try {
+                        connection.readKey = connection.channel.register(
+                                selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException e) {
+                        connection.markClosed(e);
+                    }
+                }
+                if (connection.shouldCloseConnection.get()) {
+                    detach(connection);
+                }
+            }
+        }
+
+        /* Send pings and close idle connections, as waitForWork and
+         * PingInputStream do for a receiver thread. */
+        private void checkConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid() || connection.shouldCloseConnection.get()) {
+                    continue;
+                }
+                long idle = now - connection.lastActivity.get();
+                boolean idleCalls = connection.calls.isEmpty();
+                if (!running.get()) {
+                    connection.markClosed(idleCalls ? null : (IOException) new IOException()
+                            .initCause(new InterruptedException()));
+                } else if (idleCalls) {
+                    if (idle >= connection.maxIdleTime) {
+                        connection.markClosed(null);
+                    }
+                } else if (idle >= connection.pingInterval) {
+                    if (connection.rpcTimeout > 0) {
+                        connection.markClosed(new SocketTimeoutException("No response from " +
+                                connection.server + " in " + idle + " ms"));
+                    } else {
+                        try {
+                            connection.sendPing();
+                        } catch (IOException e) {
+                            connection.markClosed(e);
+                        }
+                    }
+                }
+                if (connection.shouldCloseConnection.get()) {
+                    detach(connection);
+                }
+            }
+        }
+
+        private void detach(Connection connection) {
+            if (!connection.detached) {
+                connection.detached = true;
+                if (connection.readKey != null) {
+                    connection.readKey.cancel();
+                }
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Call implementation used for streamed responses, and the iterator
+     * over their chunks. Chunks are queued by the receiving thread and taken
+     * by the caller; every half window taken is granted back to the server.
+     * The call completes with the frame that ends the stream, and its
+     * timeout, if any, only bounds the wait for the first chunk.
+     */
+    private class StreamCall extends Call implements StreamIterator<Writable> {
+        private final ArrayDeque<Writable> chunks = new ArrayDeque<Writable>();
+        private final InetSocketAddress address;
+        private final int window;
+        private int taken;                    // chunks taken since the last grant
+        private boolean closed;
+
+        public StreamCall(Writable param, InetSocketAddress address, int window) {
+            super(param);
+            this.address = address;
+            this.window = window;
+        }
+
+        synchronized void addChunk(Writable chunk) {
+            if (closed) {
+                return;
+            }
+            cancelTimeout();                  // the server has answered
+            chunks.add(chunk);
+            notifyAll();
+        }
+
+        /** Notify the caller, who may be waiting in hasNext. */
+        protected synchronized void callComplete() {
+            this.done = true;
+            notifyAll();
+        }
+
+        /** Fail the call, and cancel the stream on the server if it failed
+         * on this side, e.g. timed out. */
+        public void setException(IOException error) {
+            boolean cancel;
+            synchronized (this) {
+                super.setException(error);
+                cancel = !closed && !(error instanceof RemoteException) && connection != null;
+            }
+            if (cancel) {
+                connection.cancelStream(id);
+            }
+        }
+
+        public synchronized boolean hasNext() {
+            boolean interrupted = false;
+            while (chunks.isEmpty() && !done && !closed) {
+                try {
+                    wait();                           // wait for the next chunk
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (!chunks.isEmpty()) {
+                return true;
+            }
+            if (error != null && !closed) {
+                if (error instanceof RemoteException) {
+                    error.fillInStackTrace();
+                    throw new UncheckedIOException(error);
+                }
+                throw new UncheckedIOException(wrapException(address, error));
+            }
+            return false;
+        }
+
+        public Writable next() {
+            int grant = 0;
+            Writable chunk;
+            synchronized (this) {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                chunk = chunks.poll();
+                if (!done && ++taken >= (window + 1) / 2) {
+                    grant = taken;
+                    taken = 0;
+                }
+            }
+            if (grant > 0) {
+                connection.sendStreamCredit(id, grant);
+            }
+            return chunk;
+        }
+
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                chunks.clear();
+                notifyAll();
+            }
+            if (connection.calls.remove(id) != null) {
+                cancelTimeout();
+                connection.sendStreamCredit(id, -1);
             }
         }
     }
@@ -659,6 +1387,61 @@ public class Client {
         }
     }
 
+    /** Call implementation used for asynchronous calls. The outcome is set
+     * by the receiver thread or event loop, or by the timer thread when the
+     * call expires, under the call's monitor. None of them completes the
+     * future: that is left to the callback executor once the monitor is
+     * released, so dependent stages registered without an executor run on
+     * its threads and may block without holding up other calls. */
+    private class AsyncCall extends Call {
+        private final CompletableFuture<Writable> future = new CompletableFuture<Writable>();
+        private final InetSocketAddress address;
+        private final Executor executor;
+
+        public AsyncCall(Writable param, InetSocketAddress address, Executor executor) {
+            super(param);
+            this.address = address;
+            this.executor = executor;
+        }
+
+        /** Nobody waits on the monitor, the future is completed later. */
+        protected void callComplete() {
+            this.done = true;
+        }
+
+        public void setException(IOException error) {
+            super.setException(error);
+            completeFuture();
+        }
+
+        public void setValue(Writable value) {
+            super.setValue(value);
+            completeFuture();
+        }
+
+        /* Complete the future with the value or the error, on the executor. */
+        private void completeFuture() {
+            executor.execute(new Runnable() {
+                public void run() {
+                    Writable value;
+                    IOException error;
+                    synchronized (AsyncCall.this) {
+                        value = AsyncCall.this.value;
+                        error = AsyncCall.this.error;
+                    }
+                    if (error == null) {
+                        future.complete(value);
+                    } else if (error instanceof RemoteException) {
+                        error.fillInStackTrace();
+                        future.completeExceptionally(error);
+                    } else {
+                        future.completeExceptionally(wrapException(address, error));
+                    }
+                }
+            });
+        }
+    }
+
     /** Result collector for parallel calls. */
     private static class ParallelResults {
         private Writable[] values;
@@ -713,12 +1496,22 @@ public class Client {
             return;
         }
 
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
+
         // wake up all connections
-        synchronized (connections) {
-            for (Connection conn : connections.values()) {
+        for (ConnectionPool pool : connections.values()) {
+            for (Connection conn : pool.members) {
                 conn.interrupt();
             }
         }
+        EventLoop[] loops = eventLoops;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+        }
 
         // wait until all connections are closed
         while (!connections.isEmpty()) {
@@ -748,7 +1541,21 @@ public class Client {
      * threw an exception. */
     public Writable call(Writable param, ConnectionId remoteId)
             throws InterruptedException, IOException {
+        return call(param, remoteId, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /** Make a call, passing <code>param</code>, to the IPC server defined by
+     * <code>remoteId</code>, returning the value. If no response has arrived
+     * within <code>timeout</code> the call fails with a
+     * {@link SocketTimeoutException}; the connection and the other calls on it
+     * are not affected. A timeout of zero means no deadline.
+     * Throws exceptions if there are network problems or if the remote code
+     * threw an exception. */
+    public Writable call(Writable param, ConnectionId remoteId,
+                         long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
         Call call = new Call(param);
+        scheduleTimeout(call, timeout, unit);     // connection setup counts too
         Connection connection = getConnection(remoteId, call);
         connection.sendParam(call);                 // send the parameter
         boolean interrupted = false;
@@ -782,6 +1589,115 @@ public class Client {
         }
     }
 
+    /** Make an asynchronous call, passing <code>param</code>, to the IPC server
+     * running at <code>address</code> which is servicing the <code>protocol</code>
+     * protocol, with <code>rpcTimeout</code> as timeout. */
+    public CompletableFuture<Writable> callAsync(Writable param, InetSocketAddress addr,
+                                                 Class<?> protocol, int rpcTimeout)
+            throws InterruptedException, IOException {
+        ConnectionId remoteId = ConnectionId.getConnectionId(addr, protocol, rpcTimeout);
+        return callAsync(param, remoteId);
+    }
+
+    /** Make an asynchronous call, passing <code>param</code>, to the IPC server
+     * defined by <code>remoteId</code>. Unlike {@link #call(Writable, ConnectionId)}
+     * the calling thread does not wait for the response: the returned future is
+     * completed with the value, or exceptionally with the remote or local
+     * exception, once the response has been received. It is completed on
+     * the {@link #setCallbackExecutor callback executor}. */
+    public CompletableFuture<Writable> callAsync(Writable param, ConnectionId remoteId)
+            throws InterruptedException, IOException {
+        return callAsync(param, remoteId, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /** Make an asynchronous call with a deadline: the returned future is
+     * completed exceptionally with a {@link SocketTimeoutException} if no
+     * response has arrived within <code>timeout</code>. A timeout of zero
+     * means no deadline. */
+    public CompletableFuture<Writable> callAsync(Writable param, ConnectionId remoteId,
+                                                 long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
+        AsyncCall call = new AsyncCall(param, remoteId.getAddress(), callbackExecutor);
+        scheduleTimeout(call, timeout, unit);     // connection setup counts too
+        Connection connection = getConnection(remoteId, call);
+        connection.sendParam(call);                 // send the parameter
+        return call.future;
+    }
+
+    /** Make a call whose response is streamed, passing <code>param</code>, to
+     * the IPC server defined by <code>remoteId</code>. The call is sent
+     * right away and the returned iterator yields the chunks of the response
+     * as they arrive, see {@link StreamIterator}. If no chunk has arrived
+     * within <code>timeout</code> the iterator throws a
+     * {@link SocketTimeoutException}. A timeout of zero means no deadline. */
+    public StreamIterator<Writable> callStream(Writable param, ConnectionId remoteId,
+                                               long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
+        StreamCall call = new StreamCall(param, remoteId.getAddress(), streamWindow);
+        scheduleTimeout(call, timeout, unit);     // connection setup counts too
+        Connection connection = getConnection(remoteId, call);
+        connection.sendParam(call);                 // send the parameter
+        return call;
+    }
+
+    /* Arrange for a call to be failed once its deadline has passed. This
+     * comes before the call looks for a connection, so that setting one up
+     * is within the deadline too: a call that expires before it is added
+     * to its connection is failed as it is added.
+     */
+    private void scheduleTimeout(final Call call, long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            return;
+        }
+        call.timeoutMillis = unit.toMillis(timeout);
+        call.deadline = System.currentTimeMillis() + call.timeoutMillis;
+        call.timeout = getTimingWheel().schedule(new Runnable() {
+            public void run() {
+                call.expired = true;
+                Connection connection = call.connection;
+                if (connection != null) {
+                    connection.expireCall(call);
+                }
+            }
+        }, timeout, unit);
+    }
+
+    TimingWheel getTimingWheel() {
+        TimingWheel wheel = timingWheel;
+        if (wheel == null) {
+            synchronized (this) {
+                wheel = timingWheel;
+                if (wheel == null) {
+                    wheel = new TimingWheel("IPC Client (" + socketFactory.hashCode() +
+                            ") call timeouts", 10, TimeUnit.MILLISECONDS, 512);
+                    timingWheel = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    /* Return the next event loop, starting them with the first connection. */
+    private EventLoop getEventLoop() throws IOException {
+        EventLoop[] loops = eventLoops;
+        if (loops == null) {
+            synchronized (this) {
+                loops = eventLoops;
+                if (loops == null) {
+                    loops = new EventLoop[eventLoopThreads];
+                    for (int i = 0; i < loops.length; i++) {
+                        loops[i] = new EventLoop(i);
+                    }
+                    for (EventLoop loop : loops) {
+                        loop.start();
+                    }
+                    eventLoops = loops;
+                }
+            }
+        }
+        return loops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
     /**
      * Take an IOException and the address we were trying to connect to
      * and return an IOException with the input exception as the cause.
@@ -851,13 +1767,11 @@ public class Client {
 
     //for unit testing only
     Set<ConnectionId> getConnectionIds() {
-        synchronized (connections) {
-            return connections.keySet();
-        }
+        return connections.keySet();
     }
 
-    /** Get a connection from the pool, or create a new one and add it to the
-     * pool.  Connections to a given ConnectionId are reused. */
+    /** Get the least busy connection from the pool of the ConnectionId, or
+     * create a new one and add it to the pool. */
     private Connection getConnection(ConnectionId remoteId,
                                      Call call)
             throws IOException, InterruptedException {
@@ -870,23 +1784,107 @@ public class Client {
      * refs for keys in HashMap properly. For now its ok.
      */
         do {
-            synchronized (connections) {
-                connection = connections.get(remoteId);
-                if (connection == null) {
-                    connection = new Connection(remoteId);
-                    connections.put(remoteId, connection);
+            ConnectionPool pool = connections.get(remoteId);
+            if (pool == null) {
+                ConnectionPool created = new ConnectionPool(remoteId);
+                pool = connections.putIfAbsent(remoteId, created);
+                if (pool == null) {
+                    pool = created;
                 }
             }
-        } while (!connection.addCall(call));
+            connection = pool.select();
+        } while (connection == null || !connection.addCall(call));
 
-        //we don't invoke the method below inside "synchronized (connections)"
-        //block above. The reason for that is if the server happens to be slow,
+        //we don't invoke the method below while looking up the connection
+        //above. The reason for that is if the server happens to be slow,
         //it will take longer to establish a connection and that will slow the
         //entire system down.
         connection.setupIOstreams();
         return connection;
     }
 
+    /**
+     * The connections to one ConnectionId. Picking one takes no lock; only
+     * opening and closing connections synchronize on the pool. The pool
+     * leaves the client's map when its last connection closes, and a
+     * caller still holding it then looks it up again.
+     */
+    private class ConnectionPool {
+        private final ConnectionId remoteId;
+        private final CopyOnWriteArrayList<Connection> members =
+                new CopyOnWriteArrayList<Connection>();
+        private boolean closed;                       // guarded by this
+
+        ConnectionPool(ConnectionId remoteId) {
+            this.remoteId = remoteId;
+        }
+
+        /* Return the connection with the fewest outstanding calls, the
+         * first one on a tie so that the others can go idle, or a new one
+         * if all are busy. Null if the pool is closed. */
+        Connection select() throws IOException {
+            Connection best = leastBusy();
+            if (!shouldGrow(best)) {
+                return best;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                best = leastBusy();                   // another caller may have grown it
+                if (!shouldGrow(best)) {
+                    return best;
+                }
+                Connection created = new Connection(remoteId, this);
+                members.add(created);
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Opened connection " + members.size() + " to " +
+                            remoteId.getAddress());
+                return created;
+            }
+        }
+
+        private Connection leastBusy() {
+            Connection best = null;
+            int fewest = Integer.MAX_VALUE;
+            for (Connection c : members) {
+                if (c.shouldCloseConnection.get()) {
+                    continue;
+                }
+                int outstanding = c.calls.size();
+                if (outstanding < fewest) {
+                    best = c;
+                    fewest = outstanding;
+                }
+            }
+            return best;
+        }
+
+        private boolean shouldGrow(Connection best) {
+            if (best == null) {
+                return true;
+            }
+            if (best.calls.size() < connectionGrowThreshold) {
+                return false;
+            }
+            int open = 0;                             // a closing member is on its way out
+            for (Connection c : members) {
+                if (!c.shouldCloseConnection.get()) {
+                    open++;
+                }
+            }
+            return open < maxConnectionsPerId;
+        }
+
+        synchronized void remove(Connection connection) {
+            members.remove(connection);
+            if (members.isEmpty()) {
+                closed = true;
+                connections.remove(remoteId, this);
+            }
+        }
+    }
+
     /**
      * ЭֺԶ˵ַʶһ
      */
@@ -991,6 +1989,9 @@ public class Client {
             if (obj instanceof ConnectionId) {
                 ConnectionId that = (ConnectionId) obj;
                 return isEqual(this.address, that.address)
+                        // equals ignores the path of a Unix socket address
+                        && isEqual(UnixSocketAddress.getPath(this.address),
+                                   UnixSocketAddress.getPath(that.address))
                         && this.maxIdleTime == that.maxIdleTime
                         && isEqual(this.connectionRetryPolicy, that.connectionRetryPolicy)
                         && this.pingInterval == that.pingInterval
@@ -1006,6 +2007,8 @@ public class Client {
         public int hashCode() {
             int result = connectionRetryPolicy.hashCode();
             result = PRIME * result + ((address == null) ? 0 : address.hashCode());
+            String path = UnixSocketAddress.getPath(address);
+            result = PRIME * result + ((path == null) ? 0 : path.hashCode());
             result = PRIME * result + maxIdleTime;
             result = PRIME * result + pingInterval;
             result = PRIME * result + ((protocol == null) ? 0 : protocol.hashCode());
@@ -0,0 +1,14 @@
+package com.taobao.minirpc;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A call parameter with a shorter encoding that can be used once client and
+ * server have agreed on the protocol's method IDs in the connection header
+ * exchange. {@link #readFields} must accept both encodings.
+ */
+public interface CompactWritable extends Writable {
+
+    void writeCompact(DataOutput out) throws IOException;
+}
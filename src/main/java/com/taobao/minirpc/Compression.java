@@ -0,0 +1,224 @@
+package com.taobao.minirpc;
+
+import com.taobao.utils.Lz4;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of request and response bodies. A client asks for a codec in
+ * its {@link ConnectionHeader}; once the server accepts it, the body of
+ * every request and of every successful or failed response on the
+ * connection starts with a marker byte: either the body follows as is, or
+ * it was at least as large as the sender's threshold and follows as its
+ * uncompressed length and the compressed bytes. A body is only sent
+ * compressed if that makes it smaller.
+ *
+ * @see Client#setCompression(Compression)
+ * @see Server#setCompressionThreshold(int)
+ */
+public enum Compression {
+    /** Bodies are sent as they are, without a marker. */
+    NONE(0, null) {
+        DataOutput startBody(DataOutput out) {
+            return out;
+        }
+
+        void finishBody(DataOutput out, DataOutput body, int threshold) {
+            // written in place
+        }
+
+        void writeBody(DataOutput out, byte[] body, int length, int threshold)
+                throws IOException {
+            out.write(body, 0, length);
+        }
+
+        DataInput readBody(DataInput in, int length, int maxLength) {
+            return in;
+        }
+    },
+
+    /** zlib deflate from the JDK, the better ratio for slow links. */
+    DEFLATE(ConnectionHeader.DEFLATE_COMPRESSION, new DeflateCodec()),
+
+    /** LZ4, several times faster than deflate for a lower ratio. */
+    LZ4(ConnectionHeader.LZ4_COMPRESSION, new Lz4Codec());
+
+    private static final int RAW = 0;
+    private static final int COMPRESSED = 1;
+
+    final int option;                 // ConnectionHeader option asking for it
+    private final Codec codec;        // null if bodies are not compressed
+
+    private Compression(int option, Codec codec) {
+        this.option = option;
+        this.codec = codec;
+    }
+
+    /** The codec accepted among the options of a connection header, the
+     * fastest if several are. */
+    static Compression fromOptions(int options) {
+        if ((options & LZ4.option) != 0) {
+            return LZ4;
+        }
+        if ((options & DEFLATE.option) != 0) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+    /**
+     * Where to serialize a body that is then passed to {@link #finishBody}:
+     * <code>out</code> itself if bodies are not compressed, otherwise a
+     * buffer.
+     */
+    DataOutput startBody(DataOutput out) {
+        return new DataOutputBuffer();
+    }
+
+    /** Write a body serialized into {@link #startBody}'s output to out. */
+    void finishBody(DataOutput out, DataOutput body, int threshold) throws IOException {
+        DataOutputBuffer buf = (DataOutputBuffer) body;
+        writeBody(out, buf.getData(), buf.getLength(), threshold);
+    }
+
+    /**
+     * Write a serialized body with its marker, compressed if it has at
+     * least <code>threshold</code> bytes and compression makes it smaller.
+     */
+    void writeBody(DataOutput out, byte[] body, int length, int threshold) throws IOException {
+        if (length >= threshold) {
+            byte[] compressed = new byte[codec.maxCompressedLength(length)];
+            int n = codec.compress(body, 0, length, compressed);
+            if (n > 0 && n + 4 < length) {
+                out.writeByte(COMPRESSED);
+                out.writeInt(length);
+                out.write(compressed, 0, n);
+                return;
+            }
+        }
+        out.writeByte(RAW);
+        out.write(body, 0, length);
+    }
+
+    /**
+     * Read the marker of a body written by {@link #writeBody}.
+     * @param length the bytes left in the frame, marker included
+     * @param maxLength the most bytes a compressed body may inflate to; the
+     *                  codec's best ratio bounds it too, so a corrupt or
+     *                  hostile length cannot make us allocate more than the
+     *                  frame could hold
+     * @return where to read the uncompressed body from: <code>in</code>
+     *         itself if the body was not compressed
+     */
+    DataInput readBody(DataInput in, int length, int maxLength) throws IOException {
+        int marker = in.readByte();
+        if (marker == RAW) {
+            return in;
+        }
+        if (marker != COMPRESSED) {
+            throw new IOException("Unknown body marker " + marker);
+        }
+        int uncompressed = in.readInt();
+        if (uncompressed < 0) {
+            throw new IOException("Negative body length " + uncompressed);
+        }
+        long limit = Math.min(maxLength, codec.maxUncompressedLength(length - 5));
+        if (uncompressed > limit) {
+            throw new IOException("Body of " + (length - 5) + " compressed bytes claims " +
+                    uncompressed + " bytes, more than the " + limit + " allowed");
+        }
+        byte[] compressed = new byte[length - 5];
+        in.readFully(compressed);
+        byte[] body = new byte[uncompressed];
+        codec.decompress(compressed, 0, compressed.length, body);
+        DataInputBuffer buf = new DataInputBuffer();
+        buf.reset(body, body.length);
+        return buf;
+    }
+
+    /* Compresses whole bodies for a codec that sends them compressed. */
+    private interface Codec {
+        int maxCompressedLength(int length);
+
+        /* The most a body of this many compressed bytes can inflate to. */
+        long maxUncompressedLength(int length);
+
+        /* Return the compressed length, -1 if dst is too small. */
+        int compress(byte[] src, int off, int length, byte[] dst);
+
+        /* Fill dst, which is exactly the uncompressed length. */
+        void decompress(byte[] src, int off, int length, byte[] dst) throws IOException;
+    }
+
+    private static class DeflateCodec implements Codec {
+        // zlib streams hold native memory, so every thread reuses its own
+        private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(Deflater.BEST_SPEED);
+            }
+        };
+        private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater();
+            }
+        };
+
+        public int maxCompressedLength(int length) {
+            // zlib's compressBound
+            return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+        }
+
+        public long maxUncompressedLength(int length) {
+            return length * 1032L;                    // deflate's best ratio
+        }
+
+        public int compress(byte[] src, int off, int length, byte[] dst) {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(src, off, length);
+            deflater.finish();
+            int n = deflater.deflate(dst);
+            return deflater.finished() ? n : -1;
+        }
+
+        public void decompress(byte[] src, int off, int length, byte[] dst) throws IOException {
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(src, off, length);
+            try {
+                int n = inflater.inflate(dst);
+                if (n != dst.length || !inflater.finished()) {
+                    throw new IOException("Corrupt deflate body: " + n + " bytes instead of " +
+                            dst.length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate body: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Lz4Codec implements Codec {
+        public int maxCompressedLength(int length) {
+            return Lz4.maxCompressedLength(length);
+        }
+
+        public long maxUncompressedLength(int length) {
+            return length * 255L;                     // a byte extends a match by 255 at most
+        }
+
+        public int compress(byte[] src, int off, int length, byte[] dst) {
+            return Lz4.compress(src, off, length, dst, 0);
+        }
+
+        public void decompress(byte[] src, int off, int length, byte[] dst) throws IOException {
+            Lz4.decompress(src, off, length, dst, 0, dst.length);
+        }
+    }
+}
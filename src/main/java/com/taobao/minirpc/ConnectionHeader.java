@@ -17,7 +17,19 @@ import java.io.IOException;
 class ConnectionHeader implements Writable {
     public static final Log LOG = LogFactory.getLog(ConnectionHeader.class);
 
+    /** Invocations carry method IDs from the protocol's {@link MethodTable}. */
+    static final int COMPACT_INVOCATION = 1;
+
+    /** Bodies may be compressed with {@link Compression#DEFLATE}. */
+    static final int DEFLATE_COMPRESSION = 2;
+
+    /** Bodies may be compressed with {@link Compression#LZ4}. */
+    static final int LZ4_COMPRESSION = 4;
+
     private String protocol;
+    private int options;              // options requested by the client,
+                                      // accepted ones in the server's reply
+    private long methodTableHash;     // MethodTable hash, if COMPACT_INVOCATION
 
     public ConnectionHeader() {}
 
@@ -25,23 +37,49 @@ class ConnectionHeader implements Writable {
         this.protocol = protocol;
     }
 
+    public ConnectionHeader(String protocol, int options, long methodTableHash) {
+        this.protocol = protocol;
+        this.options = options;
+        this.methodTableHash = methodTableHash;
+    }
+
     @Override
     public void readFields(DataInput in) throws IOException {
         protocol = Text.readString(in);
         if (protocol.isEmpty()) {
             protocol = null;
         }
+        options = in.readInt();
+        if (hasOption(COMPACT_INVOCATION)) {
+            methodTableHash = in.readLong();
+        }
     }
 
     @Override
     public void write(DataOutput out) throws IOException {
         Text.writeString(out, (protocol == null) ? "" : protocol);
+        out.writeInt(options);
+        if (hasOption(COMPACT_INVOCATION)) {
+            out.writeLong(methodTableHash);
+        }
     }
 
     public String getProtocol() {
         return protocol;
     }
 
+    public int getOptions() {
+        return options;
+    }
+
+    public boolean hasOption(int option) {
+        return (options & option) != 0;
+    }
+
+    public long getMethodTableHash() {
+        return methodTableHash;
+    }
+
     public String toString() {
         return protocol;
     }
@@ -0,0 +1,168 @@
+package com.taobao.minirpc;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataOutput} that serializes a length-prefixed frame straight into
+ * a {@link ByteBuffer} taken from a {@link BufferPool}. Four bytes are
+ * reserved for the length when the frame is started and filled in when it
+ * is finished, so the frame can be written to a channel as is. The buffer
+ * grows by moving to a larger pooled buffer.
+ *
+ * The finished buffer belongs to the caller, who should give it back to the
+ * pool once it has been written.
+ */
+public class DataOutputByteBuffer implements DataOutput {
+    private static final int LENGTH_SIZE = 4;
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    public DataOutputByteBuffer(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** Starts a new frame in a buffer of at least <code>initialSize</code> bytes. */
+    public void startFrame(int initialSize) {
+        if (buffer == null) {
+            buffer = pool.acquire(Math.max(initialSize, LENGTH_SIZE));
+        }
+        buffer.clear();
+        buffer.putInt(0);                             // reserved for the length
+    }
+
+    /** Returns the number of bytes written since the frame was started. */
+    public int getLength() {
+        return buffer.position() - LENGTH_SIZE;
+    }
+
+    /**
+     * Fills in the length and returns the frame, ready to be written.
+     * The returned buffer is no longer used by this object.
+     */
+    public ByteBuffer finishFrame() {
+        ByteBuffer frame = buffer;
+        buffer = null;
+        frame.putInt(0, frame.position() - LENGTH_SIZE);
+        frame.flip();
+        return frame;
+    }
+
+    private void ensure(int n) {
+        if (buffer.remaining() >= n) {
+            return;
+        }
+        int needed = buffer.position() + n;
+        ByteBuffer bigger = pool.acquire(Math.max(needed, buffer.capacity() << 1));
+        bigger.limit(bigger.capacity());
+        buffer.flip();
+        bigger.put(buffer);
+        pool.release(buffer);
+        buffer = bigger;
+    }
+
+    public void write(int b) {
+        ensure(1);
+        buffer.put((byte) b);
+    }
+
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) {
+        ensure(len);
+        buffer.put(b, off, len);
+    }
+
+    public void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    public void writeByte(int v) {
+        write(v);
+    }
+
+    public void writeShort(int v) {
+        ensure(2);
+        buffer.putShort((short) v);
+    }
+
+    public void writeChar(int v) {
+        ensure(2);
+        buffer.putChar((char) v);
+    }
+
+    public void writeInt(int v) {
+        ensure(4);
+        buffer.putInt(v);
+    }
+
+    public void writeLong(long v) {
+        ensure(8);
+        buffer.putLong(v);
+    }
+
+    public void writeFloat(float v) {
+        ensure(4);
+        buffer.putFloat(v);
+    }
+
+    public void writeDouble(double v) {
+        ensure(8);
+        buffer.putDouble(v);
+    }
+
+    public void writeBytes(String s) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    public void writeChars(String s) {
+        int len = s.length();
+        ensure(len * 2);
+        for (int i = 0; i < len; i++) {
+            buffer.putChar(s.charAt(i));
+        }
+    }
+
+    /** Writes a string in the modified UTF-8 format of {@link DataOutput#writeUTF}. */
+    public void writeUTF(String s) throws IOException {
+        int strlen = s.length();
+        int utflen = 0;
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                utflen++;
+            } else if (c > 0x07FF) {
+                utflen += 3;
+            } else {
+                utflen += 2;
+            }
+        }
+        if (utflen > 65535) {
+            throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+        }
+        ensure(utflen + 2);
+        buffer.putShort((short) utflen);
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c > 0x07FF) {
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.taobao.minirpc;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link CallQueue} that keeps one heavy caller from starving the others.
+ *
+ * Every caller, identified by its remote address or by its connection, has a
+ * cost: the number of calls it made recently. The cost decays by
+ * {@link #setDecay a factor} every period, so it reflects the recent past
+ * only. A call goes into one of several priority levels according to its
+ * caller's share of the total cost: with the default four levels, a caller
+ * with less than 1/8 of the recent calls is on level 0, the highest, one
+ * with 1/2 or more is on level 3, the lowest.
+ *
+ * Calls are taken from the levels by weighted round robin: level 0 is served
+ * up to 2^(levels-1) times in a row, each lower level half as often, and an
+ * empty level is skipped. Every level holds up to capacity / levels calls,
+ * so a caller that fills its level only stops the server reading from the
+ * connections whose calls go into it.
+ *
+ * Costs are updated without a lock and are approximate under concurrency.
+ */
+public class FairCallQueue implements CallQueue {
+    public static final int DEFAULT_LEVELS = 4;
+    public static final long DEFAULT_DECAY_PERIOD = 5000;    // ms
+    public static final double DEFAULT_DECAY_FACTOR = 0.5;
+
+    private final int levels;
+    private final int levelCapacity;
+    private final ArrayDeque<Schedulable>[] queues;
+    private final int[] weights;                       // calls served in a row per level
+    private final double[] thresholds;                 // cost share that demotes to level i+1
+    private final long[] enqueued;                     // calls put per level, guarded by lock
+    private final boolean keyByConnection;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int size;
+    private int currentLevel;                          // level being served
+    private int servedInLevel;                         // calls taken from it in a row
+
+    private final ConcurrentHashMap<Object, AtomicLong> costs =
+            new ConcurrentHashMap<Object, AtomicLong>();
+    private final AtomicLong totalCost = new AtomicLong();
+    private volatile long decayPeriod = DEFAULT_DECAY_PERIOD;
+    private volatile double decayFactor = DEFAULT_DECAY_FACTOR;
+    private volatile long nextDecay = System.currentTimeMillis() + DEFAULT_DECAY_PERIOD;
+
+    /** Create a queue of {@link #DEFAULT_LEVELS} levels that tells callers
+     * apart by their remote address. */
+    public FairCallQueue(int capacity) {
+        this(capacity, DEFAULT_LEVELS, false);
+    }
+
+    /**
+     * @param capacity number of calls the queue holds, spread evenly over
+     *                 the levels
+     * @param levels number of priority levels
+     * @param keyByConnection tell callers apart by their connection instead
+     *                        of their remote address
+     */
+    @SuppressWarnings("unchecked")
+    public FairCallQueue(int capacity, int levels, boolean keyByConnection) {
+        if (levels < 1 || levels > 30) {
+            throw new IllegalArgumentException("Illegal number of levels: " + levels);
+        }
+        this.levels = levels;
+        this.levelCapacity = Math.max(1, capacity / levels);
+        this.keyByConnection = keyByConnection;
+        this.queues = (ArrayDeque<Schedulable>[]) new ArrayDeque<?>[levels];
+        this.weights = new int[levels];
+        this.thresholds = new double[levels - 1];
+        this.enqueued = new long[levels];
+        for (int i = 0; i < levels; i++) {
+            queues[i] = new ArrayDeque<Schedulable>();
+            weights[i] = 1 << (levels - 1 - i);
+        }
+        for (int i = 0; i < levels - 1; i++) {
+            thresholds[i] = 1.0 / (1 << (levels - 1 - i));
+        }
+    }
+
+    /**
+     * Set how fast costs are forgotten: every <code>period</code> ms each
+     * caller's cost is multiplied by <code>factor</code>.
+     */
+    public void setDecay(long period, double factor) {
+        if (period <= 0 || factor < 0 || factor >= 1) {
+            throw new IllegalArgumentException("Illegal decay: " + period + "ms, " + factor);
+        }
+        this.decayPeriod = period;
+        this.decayFactor = factor;
+        this.nextDecay = System.currentTimeMillis() + period;
+    }
+
+    public boolean offer(Schedulable call) {
+        long now = System.currentTimeMillis();
+        if (now >= nextDecay) {
+            decayCosts(now);
+        }
+        Object key = call.getRemoteAddress();
+        if (keyByConnection && call.getConnection() != null) {
+            key = call.getConnection();                // in-process calls have none
+        }
+        int level = getPriorityLevel(key);
+        lock.lock();
+        try {
+            if (queues[level].size() >= levelCapacity) {
+                return false;                          // not charged, the call is offered again
+            }
+            queues[level].add(call);
+            enqueued[level]++;
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        charge(key);
+        return true;
+    }
+
+    public Schedulable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            int level = nextLevel();
+            Schedulable call = queues[level].poll();
+            size--;
+            return call;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The number of calls waiting in each level, highest priority first. */
+    public int[] getQueueSizes() {
+        lock.lock();
+        try {
+            int[] sizes = new int[levels];
+            for (int i = 0; i < levels; i++) {
+                sizes[i] = queues[i].size();
+            }
+            return sizes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The number of calls put into each level since the queue was created,
+     * highest priority first. */
+    public long[] getEnqueuedCounts() {
+        lock.lock();
+        try {
+            return enqueued.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Return the level of a caller's next call, counting that call. */
+    private int getPriorityLevel(Object key) {
+        if (key == null) {
+            return levels - 1;
+        }
+        AtomicLong cost = costs.get(key);
+        long callerCost = cost == null ? 1 : cost.get() + 1;
+        double share = (double) callerCost / (totalCost.get() + 1);
+        for (int level = levels - 1; level > 0; level--) {
+            if (share >= thresholds[level - 1]) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /* Add a queued call to its caller's cost. */
+    private void charge(Object key) {
+        if (key == null) {
+            return;
+        }
+        AtomicLong cost = costs.get(key);
+        if (cost == null) {
+            AtomicLong created = new AtomicLong();
+            cost = costs.putIfAbsent(key, created);
+            if (cost == null) {
+                cost = created;
+            }
+        }
+        cost.incrementAndGet();
+        totalCost.incrementAndGet();
+    }
+
+    private synchronized void decayCosts(long now) {
+        if (now < nextDecay) {
+            return;                                    // another thread decayed them
+        }
+        nextDecay = now + decayPeriod;
+        long total = 0;
+        Iterator<Map.Entry<Object, AtomicLong>> it = costs.entrySet().iterator();
+        while (it.hasNext()) {
+            AtomicLong cost = it.next().getValue();
+            long decayed = (long) (cost.get() * decayFactor);
+            if (decayed == 0) {
+                it.remove();
+            } else {
+                cost.set(decayed);
+                total += decayed;
+            }
+        }
+        totalCost.set(total);
+    }
+
+    /* Pick the level to take from by weighted round robin; lock held and
+     * the queue not empty. */
+    private int nextLevel() {
+        for (int i = 0; i < levels; i++) {
+            int level = (currentLevel + i) % levels;
+            if (queues[level].isEmpty()) {
+                continue;
+            }
+            if (level != currentLevel) {
+                currentLevel = level;
+                servedInLevel = 0;
+            }
+            if (++servedInLevel >= weights[level]) {
+                currentLevel = (level + 1) % levels;
+                servedInLevel = 0;
+            }
+            return level;
+        }
+        throw new IllegalStateException("No call in a non-empty queue");
+    }
+}
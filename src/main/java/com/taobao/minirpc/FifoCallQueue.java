@@ -0,0 +1,28 @@
+package com.taobao.minirpc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The default {@link CallQueue}: calls are taken in the order they arrived,
+ * whoever sent them.
+ */
+public class FifoCallQueue implements CallQueue {
+    private final BlockingQueue<Schedulable> queue;
+
+    public FifoCallQueue(int capacity) {
+        this.queue = new LinkedBlockingQueue<Schedulable>(capacity);
+    }
+
+    public boolean offer(Schedulable call) {
+        return queue.offer(call);
+    }
+
+    public Schedulable take() throws InterruptedException {
+        return queue.take();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,83 @@
+package com.taobao.minirpc;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numeric IDs for the methods of a protocol interface. The IDs are the
+ * positions of the methods sorted by signature, so client and server derive
+ * the same table from the same interface without exchanging it. The hash
+ * covers every signature and is compared during the connection header
+ * exchange to make sure both sides have the same interface.
+ */
+class MethodTable {
+    private static final Map<Class<?>, MethodTable> TABLES =
+            new ConcurrentHashMap<Class<?>, MethodTable>();
+
+    private final Method[] methods;
+    private final Map<Method, Integer> ids;
+    private final long hash;
+
+    /** Get the method table of a protocol. */
+    static MethodTable get(Class<?> protocol) {
+        MethodTable table = TABLES.get(protocol);
+        if (table == null) {
+            table = new MethodTable(protocol);
+            TABLES.put(protocol, table);
+        }
+        return table;
+    }
+
+    private MethodTable(Class<?> protocol) {
+        final Map<Method, String> signatures = new HashMap<Method, String>();
+        for (Method method : protocol.getMethods()) {
+            signatures.put(method, signature(method));
+        }
+        methods = signatures.keySet().toArray(new Method[signatures.size()]);
+        Arrays.sort(methods, new Comparator<Method>() {
+            public int compare(Method a, Method b) {
+                return signatures.get(a).compareTo(signatures.get(b));
+            }
+        });
+
+        ids = new HashMap<Method, Integer>();
+        long h = 0xcbf29ce484222325L;                 // FNV-1a
+        for (int i = 0; i < methods.length; i++) {
+            ids.put(methods[i], i);
+            String signature = signatures.get(methods[i]);
+            for (int j = 0; j < signature.length(); j++) {
+                h = (h ^ signature.charAt(j)) * 0x100000001b3L;
+            }
+            h = (h ^ '\n') * 0x100000001b3L;
+        }
+        hash = h;
+    }
+
+    private static String signature(Method method) {
+        StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i != 0)
+                sb.append(',');
+            sb.append(parameterTypes[i].getName());
+        }
+        return sb.append(')').append(method.getReturnType().getName()).toString();
+    }
+
+    /** The ID of a method, -1 if it is not part of the protocol. */
+    int getId(Method method) {
+        Integer id = ids.get(method);
+        return id == null ? -1 : id;
+    }
+
+    /** The method with the given ID, null if there is none. */
+    Method getMethod(int id) {
+        return (id >= 0 && id < methods.length) ? methods[id] : null;
+    }
+
+    /** Hash of all method signatures of the protocol. */
+    long getHash() {
+        return hash;
+    }
+}
@@ -1,22 +1,40 @@
 package com.taobao.minirpc;
 
 import com.taobao.utils.Configuration;
+import com.taobao.utils.IOUtils;
 import com.taobao.utils.NetUtils;
 import com.taobao.utils.ObjectWritable;
+import com.taobao.utils.StringUtils;
+import com.taobao.utils.TimingWheel;
 import com.taobao.utils.UTF8;
+import com.taobao.utils.WritableUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import javax.net.SocketFactory;
 import java.io.DataInput;
+import java.io.Closeable;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Created by shili on 14-2-27.
@@ -27,21 +45,37 @@ public class RPC {
     private RPC() {}                                  // no public ctor
 
 
-    /** A method invocation, including the method name and its parameters.*/
-    private static class Invocation implements Writable, Configurable {
+    /** A method invocation, including the method name and its parameters.
+     * In its compact form the method is identified by its ID in the
+     * protocol's {@link MethodTable} and the parameters are written without
+     * class names. The compact form starts with an empty method name. */
+    static class Invocation implements CompactWritable, Configurable {
         private String methodName;
         private Class[] parameterClasses;
         private Object[] parameters;
         private Configuration conf;
+        private MethodTable methodTable;   // method IDs of the protocol called
+        private int methodId = -1;
 
         public Invocation() {}
 
+        /** An invocation to be read from a connection for the given protocol. */
+        public Invocation(MethodTable methodTable) {
+            this.methodTable = methodTable;
+        }
+
         public Invocation(Method method, Object[] parameters) {
             this.methodName = method.getName();
             this.parameterClasses = method.getParameterTypes();
             this.parameters = parameters;
         }
 
+        public Invocation(Method method, Object[] parameters, MethodTable methodTable) {
+            this(method, parameters);
+            this.methodTable = methodTable;
+            this.methodId = methodTable.getId(method);
+        }
+
         /** The name of the method invoked. */
         public String getMethodName() { return methodName; }
 
@@ -53,6 +87,10 @@ public class RPC {
 
         public void readFields(DataInput in) throws IOException {
             methodName = UTF8.readString(in);
+            if (methodName.isEmpty()) {
+                readCompact(in);
+                return;
+            }
             parameters = new Object[in.readInt()];
             parameterClasses = new Class[parameters.length];
             ObjectWritable objectWritable = new ObjectWritable();
@@ -71,6 +109,33 @@ public class RPC {
             }
         }
 
+        public void writeCompact(DataOutput out) throws IOException {
+            if (methodId < 0) {
+                write(out);
+                return;
+            }
+            out.writeShort(0);                  // an empty UTF8 method name
+            WritableUtils.writeVInt(out, methodId);
+            for (int i = 0; i < parameterClasses.length; i++) {
+                ObjectWritable.writeObjectCompact(out, parameters[i], parameterClasses[i],
+                        conf);
+            }
+        }
+
+        private void readCompact(DataInput in) throws IOException {
+            int id = WritableUtils.readVInt(in);
+            Method method = (methodTable == null) ? null : methodTable.getMethod(id);
+            if (method == null) {
+                throw new IOException("Unknown method id " + id);
+            }
+            methodName = method.getName();
+            parameterClasses = method.getParameterTypes();
+            parameters = new Object[parameterClasses.length];
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = ObjectWritable.readObjectCompact(in, parameterClasses[i], conf);
+            }
+        }
+
         public String toString() {
             StringBuffer buffer = new StringBuffer();
             buffer.append(methodName);
@@ -154,9 +219,134 @@ public class RPC {
         return CLIENTS.getClient();
     }
 
+    /** Unwraps the value of an {@link ObjectWritable} response. */
+    private static final Function<Writable, Object> UNWRAP = new Function<Writable, Object>() {
+        public Object apply(Writable value) {
+            return ((ObjectWritable) value).get();
+        }
+    };
+
+    /** Whether a protocol method streams its response, see {@link StreamIterator}. */
+    private static boolean isStreaming(Method method) {
+        Class<?> returnType = method.getReturnType();
+        return returnType == Iterator.class || returnType == StreamIterator.class;
+    }
+
+    /** Unwraps the chunks of a streamed response, {@link ObjectWritable}s. */
+    private static class UnwrappingIterator implements StreamIterator<Object> {
+        private final StreamIterator<Writable> chunks;
+
+        UnwrappingIterator(StreamIterator<Writable> chunks) {
+            this.chunks = chunks;
+        }
+
+        public boolean hasNext() {
+            return chunks.hasNext();
+        }
+
+        public Object next() {
+            return ((ObjectWritable) chunks.next()).get();
+        }
+
+        public void close() {
+            chunks.close();
+        }
+    }
+
+    /** The chunks of a stream returned by a server of this JVM, pulled
+     * from it on the caller's thread once the call has returned it. A
+     * failure reaches the caller as it does through a connection. */
+    private static class LocalStreamIterator implements StreamIterator<Writable> {
+        private final CompletableFuture<ResponseStream> call;
+        private ResponseStream source;                // null until the call returns
+        private Writable next;                        // read ahead by hasNext
+        private boolean ended;
+
+        LocalStreamIterator(CompletableFuture<ResponseStream> call) {
+            this.call = call;
+        }
+
+        /* Wait for the call, like Client.call does. */
+        private ResponseStream getSource() {
+            boolean interrupted = false;
+            try {
+                while (source == null) {
+                    try {
+                        source = call.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        ended = true;
+                        Throwable cause = e.getCause();
+                        cause.fillInStackTrace();
+                        throw new UncheckedIOException(cause instanceof IOException ?
+                                (IOException) cause : new IOException(cause));
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return source;
+        }
+
+        public boolean hasNext() {
+            if (next == null && !ended) {
+                ResponseStream source = getSource();
+                try {
+                    next = source.next();
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedIOException(toRemoteException(e));
+                } catch (RuntimeException e) {
+                    close();
+                    throw new UncheckedIOException(toRemoteException(e));
+                }
+                if (next == null) {
+                    close();
+                }
+            }
+            return next != null;
+        }
+
+        public Writable next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Writable chunk = next;
+            next = null;
+            return chunk;
+        }
+
+        public void close() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            next = null;
+            if (source != null) {
+                source.close();
+            } else {
+                // release the stream whenever the call returns it
+                call.thenAccept(new Consumer<ResponseStream>() {
+                    public void accept(ResponseStream value) {
+                        value.close();
+                    }
+                });
+            }
+        }
+
+        private static RemoteException toRemoteException(Exception e) {
+            return new RemoteException(e.getClass().getName(), StringUtils.stringifyException(e));
+        }
+    }
+
     private static class Invoker implements InvocationHandler {
         private Client.ConnectionId remoteId;
         private Client client;
+        private MethodTable methodTable;
+        private volatile long callTimeout;            // per-call deadline in ms, 0 if none
         private boolean isClosed = false;
 
         private Invoker(Class<? extends VersionedProtocol> protocol,
@@ -164,10 +354,36 @@ public class RPC {
                         int rpcTimeout, RetryPolicy connectionRetryPolicy) throws IOException {
             this.remoteId = Client.ConnectionId.getConnectionId(address, protocol, rpcTimeout, connectionRetryPolicy);
             this.client = CLIENTS.getClient(factory);
+            this.methodTable = MethodTable.get(protocol);
         }
 
         public Object invoke(Object proxy, Method method, Object[] args)
                 throws Throwable {
+            com.taobao.minirpc.Server server =
+                    com.taobao.minirpc.Server.getInProcessServer(remoteId.getAddress());
+            if (server != null) {
+                return invokeInProcess(server, method, args);
+            }
+            if (isStreaming(method)) {
+                // streaming protocol method: chunks are read as the caller iterates
+                return new UnwrappingIterator(client.callStream(
+                        new Invocation(method, args, methodTable), remoteId,
+                        callTimeout, TimeUnit.MILLISECONDS));
+            }
+            if (method.getReturnType() == CompletableFuture.class) {
+                // async protocol method: don't wait for the response, and
+                // report a failure to connect through the future too
+                try {
+                    return client.callAsync(new Invocation(method, args, methodTable), remoteId,
+                            callTimeout, TimeUnit.MILLISECONDS).thenApply(UNWRAP);
+                } catch (IOException e) {
+                    return failedFuture(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return failedFuture(e);
+                }
+            }
+
             final boolean logDebug = LOG.isDebugEnabled();
             long startTime = 0;
             if (logDebug) {
@@ -175,7 +391,8 @@ public class RPC {
             }
 
             ObjectWritable value = (ObjectWritable)
-                    client.call(new Invocation(method, args), remoteId);   //贫ЭֻҪƺͲΪЭѾConnectionHeader뵽Server
+                    client.call(new Invocation(method, args, methodTable), remoteId,
+                            callTimeout, TimeUnit.MILLISECONDS);   //贫ЭֻҪƺͲΪЭѾConnectionHeader뵽Server
             if (logDebug) {
                 long callTime = System.currentTimeMillis() - startTime;
                 LOG.debug("Call: " + method.getName() + " " + callTime);
@@ -183,6 +400,65 @@ public class RPC {
             return value.get();
         }
 
+        /* Call a server of this JVM without a socket, with the same results
+         * and errors as through the client. */
+        private Object invokeInProcess(com.taobao.minirpc.Server server, Method method,
+                                       Object[] args) throws Throwable {
+            long timeout = callTimeout;
+            Invocation invocation = new Invocation(method, args, methodTable);
+            if (isStreaming(method)) {
+                return new UnwrappingIterator(new LocalStreamIterator(expireAfter(
+                        server.streamInProcess(remoteId.getProtocol(), invocation, timeout),
+                        timeout)));
+            }
+            CompletableFuture<Writable> future = expireAfter(
+                    server.callInProcess(remoteId.getProtocol(), invocation, timeout), timeout);
+            if (method.getReturnType() == CompletableFuture.class) {
+                // completed by a handler or the timer, which must not run
+                // the caller's stages
+                return future.thenApplyAsync(UNWRAP, client.getCallbackExecutor());
+            }
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return ((ObjectWritable) future.get()).get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;           // wait like Client.call does
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        cause.fillInStackTrace();
+                        throw cause;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /* Fail an in-process call once its timeout has passed; the deadline
+         * is kept by the client's timer, as for its own calls. */
+        private <T> CompletableFuture<T> expireAfter(final CompletableFuture<T> future,
+                                                     final long timeout) {
+            if (timeout <= 0) {
+                return future;
+            }
+            final TimingWheel.Timeout timer = client.getTimingWheel().schedule(new Runnable() {
+                public void run() {
+                    future.completeExceptionally(new SocketTimeoutException("Call to " +
+                            remoteId.getAddress() + " timed out after " + timeout + " ms"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete(new BiConsumer<T, Throwable>() {
+                public void accept(T value, Throwable error) {
+                    timer.cancel();
+                }
+            });
+            return future;
+        }
+
         /* close the IPC client that's responsible for this invoker's RPCs */
         synchronized private void close() {
             if (!isClosed) {
@@ -317,7 +593,11 @@ public class RPC {
     }
 
     /** Construct a client-side proxy object that implements the named protocol,
-     * talking to a server at the named address. */
+     * talking to a server at the named address.
+     *
+     * Protocol methods declared to return {@link CompletableFuture} are called
+     * asynchronously: the proxy returns as soon as the request has been sent
+     * and the future is completed when the response arrives. */
     public static VersionedProtocol getProxy(
             Class<? extends VersionedProtocol> protocol,   //ЭӿڣʵֽӿVersionedProtocol
             long clientVersion, InetSocketAddress addr, SocketFactory factory, int rpcTimeout,
@@ -366,6 +646,18 @@ public class RPC {
         }
     }
 
+    /**
+     * Give every call made through this proxy a deadline. A call without a
+     * response after <code>timeout</code> fails with a
+     * {@link java.net.SocketTimeoutException} (or its future completes
+     * exceptionally with one) while the connection stays open for the other
+     * calls. A timeout of zero, the default, means no deadline.
+     * @param proxy the proxy to set the deadline for
+     */
+    public static void setCallTimeout(VersionedProtocol proxy, long timeout, TimeUnit unit) {
+        ((Invoker)Proxy.getInvocationHandler(proxy)).callTimeout = unit.toMillis(timeout);
+    }
+
     /** Expert: Make multiple, parallel calls to a set of servers. */
     public static Object[] call(Method method, Object[][] params,
                                 InetSocketAddress[] addrs)
@@ -415,6 +707,88 @@ public class RPC {
     public static class Server extends com.taobao.minirpc.Server {
         private Object instance;
         private boolean verbose;
+        // protocol -> method name -> overloads, resolved once per protocol
+        private final Map<Class<?>, Map<String, Dispatch[]>> dispatchTable =
+                new ConcurrentHashMap<Class<?>, Map<String, Dispatch[]>>();
+
+        /** Call count and time spent in a protocol method. The time of a
+         * call to an async method runs until the future it returned completes,
+         * and the call is counted then; that of a streaming method until it
+         * returns its iterator. */
+        public static class MethodMetrics {
+            private final LongAdder calls = new LongAdder();
+            private final LongAdder dispatchNanos = new LongAdder();
+
+            void add(long nanos) {
+                calls.increment();
+                dispatchNanos.add(nanos);
+            }
+
+            /** The number of completed calls to the method. */
+            public long getCalls() {
+                return calls.sum();
+            }
+
+            /** The total time of the calls to the method, in nanoseconds. */
+            public long getDispatchNanos() {
+                return dispatchNanos.sum();
+            }
+
+            /** The average time of a call to the method, in nanoseconds. */
+            public double getAverageDispatchNanos() {
+                long n = calls.sum();
+                return n == 0 ? 0 : (double) dispatchNanos.sum() / n;
+            }
+
+            public String toString() {
+                return "calls=" + getCalls() + " avgDispatchNanos=" + getAverageDispatchNanos();
+            }
+        }
+
+        /** A protocol method resolved to a method handle bound to the instance. */
+        private static class Dispatch {
+            private final Method method;
+            private final Class<?>[] parameterClasses;
+            private final MethodHandle handle;       // (Object[])Object
+            private final boolean async;             // returns a CompletableFuture
+            private final MethodMetrics metrics = new MethodMetrics();
+
+            Dispatch(Method method, Object instance) throws IllegalAccessException {
+                this.method = method;
+                this.parameterClasses = method.getParameterTypes();
+                this.async = method.getReturnType() == CompletableFuture.class;
+                method.setAccessible(true);
+                this.handle = MethodHandles.lookup().unreflect(method)
+                        .bindTo(instance)
+                        .asSpreader(Object[].class, parameterClasses.length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            }
+
+            /** Invoke the method; exceptions it throws are wrapped like
+             * {@link Method#invoke} does. */
+            Object invoke(Object[] parameters) throws InvocationTargetException {
+                final long start = System.nanoTime();
+                Object value;
+                try {
+                    value = (Object) handle.invokeExact(parameters);
+                } catch (Throwable e) {
+                    metrics.add(System.nanoTime() - start);
+                    throw new InvocationTargetException(e);
+                }
+                if (async && value instanceof CompletableFuture) {
+                    // the handler is done, the call is not
+                    CompletableFuture<?> future = (CompletableFuture<?>) value;
+                    future.whenComplete(new BiConsumer<Object, Throwable>() {
+                        public void accept(Object result, Throwable e) {
+                            metrics.add(System.nanoTime() - start);
+                        }
+                    });
+                } else {
+                    metrics.add(System.nanoTime() - start);
+                }
+                return value;
+            }
+        }
 
         /** Construct an RPC server.
          * @param instance the instance whose methods will be called
@@ -448,47 +822,297 @@ public class RPC {
                     classNameBase(instance.getClass().getName()));
             this.instance = instance;
             this.verbose = verbose;
+            for (Class<?> protocol : getProtocols(instance.getClass())) {
+                addProtocol(protocol);
+            }
+        }
+
+        /** All interfaces implemented by a class and its superclasses. */
+        private static Set<Class<?>> getProtocols(Class<?> clazz) {
+            Set<Class<?>> protocols = new LinkedHashSet<Class<?>>();
+            LinkedList<Class<?>> pending = new LinkedList<Class<?>>();
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                pending.addAll(Arrays.asList(c.getInterfaces()));
+            }
+            while (!pending.isEmpty()) {
+                Class<?> protocol = pending.removeFirst();
+                if (protocols.add(protocol)) {
+                    pending.addAll(Arrays.asList(protocol.getInterfaces()));
+                }
+            }
+            return protocols;
+        }
+
+        @Override
+        protected Writable newParam(Class<?> protocol) {
+            return new Invocation(protocol == null ? null : MethodTable.get(protocol));
+        }
+
+        /** Resolve the methods of a protocol the instance implements. */
+        private Map<String, Dispatch[]> addProtocol(Class<?> protocol) throws IOException {
+            Map<String, Dispatch[]> methods = dispatchTable.get(protocol);
+            if (methods != null) {
+                return methods;
+            }
+            if (!protocol.isInstance(instance)) {
+                throw new IOException("Protocol " + protocol.getName() +
+                        " is not implemented by " + instance.getClass().getName());
+            }
+            Map<String, List<Dispatch>> byName = new HashMap<String, List<Dispatch>>();
+            for (Method method : protocol.getMethods()) {
+                List<Dispatch> overloads = byName.get(method.getName());
+                if (overloads == null) {
+                    overloads = new ArrayList<Dispatch>(1);
+                    byName.put(method.getName(), overloads);
+                }
+                try {
+                    overloads.add(new Dispatch(method, instance));
+                } catch (IllegalAccessException e) {
+                    throw new IOException("Cannot access " + method, e);
+                }
+            }
+            methods = new HashMap<String, Dispatch[]>();
+            for (Map.Entry<String, List<Dispatch>> entry : byName.entrySet()) {
+                methods.put(entry.getKey(), entry.getValue().toArray(new Dispatch[0]));
+            }
+            Map<String, Dispatch[]> existing = dispatchTable.putIfAbsent(protocol, methods);
+            return existing == null ? methods : existing;
+        }
+
+        private Dispatch getDispatch(Class<?> protocol, String methodName,
+                                     Class<?>[] parameterClasses) throws IOException {
+            if (protocol == null) {
+                throw new IOException("No protocol given for method " + methodName);
+            }
+            Map<String, Dispatch[]> methods = dispatchTable.get(protocol);
+            if (methods == null) {
+                methods = addProtocol(protocol);
+            }
+            Dispatch[] overloads = methods.get(methodName);
+            if (overloads != null) {
+                for (Dispatch dispatch : overloads) {
+                    if (Arrays.equals(dispatch.parameterClasses, parameterClasses)) {
+                        return dispatch;
+                    }
+                }
+            }
+            throw new IOException("Unknown method " + methodName +
+                    Arrays.toString(parameterClasses) + " in " + protocol.getName());
+        }
+
+        /**
+         * Per method call counts and dispatch times, keyed by
+         * <code>protocol.method(parameter types)</code>.
+         */
+        public Map<String, MethodMetrics> getMethodMetrics() {
+            Map<String, MethodMetrics> result = new TreeMap<String, MethodMetrics>();
+            for (Map.Entry<Class<?>, Map<String, Dispatch[]>> protocol : dispatchTable.entrySet()) {
+                for (Dispatch[] overloads : protocol.getValue().values()) {
+                    for (Dispatch dispatch : overloads) {
+                        StringBuilder key = new StringBuilder(protocol.getKey().getName());
+                        key.append('.').append(dispatch.method.getName()).append('(');
+                        for (int i = 0; i < dispatch.parameterClasses.length; i++) {
+                            if (i != 0)
+                                key.append(", ");
+                            key.append(dispatch.parameterClasses[i].getSimpleName());
+                        }
+                        result.put(key.append(')').toString(), dispatch.metrics);
+                    }
+                }
+            }
+            return result;
         }
 
+        /** Invoke a protocol method, waiting for the value of an async one. */
         public Writable call(Class<?> protocol, Writable param, long receivedTime)
                 throws IOException {
+            CompletableFuture<? extends Writable> response =
+                    callAsync(protocol, param, receivedTime);
+            try {
+                return response.get();
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException(
+                        "Interrupted waiting for " + param).initCause(e);
+            } catch (ExecutionException e) {
+                throw toIOException(e.getCause());
+            }
+        }
+
+        /** Invoke a protocol method. The response of an async one is sent
+         * when the future it returned completes, not on the handler. */
+        @Override
+        protected CompletableFuture<? extends Writable> callAsync(Class<?> protocol,
+                Writable param, long receivedTime) throws IOException {
             try {
                 Invocation call = (Invocation)param;
                 if (verbose) log("Call: " + call);
 
-                Method method =
-                        protocol.getMethod(call.getMethodName(),
-                                call.getParameterClasses());
-                method.setAccessible(true);
+                Dispatch dispatch = getDispatch(protocol, call.getMethodName(),
+                        call.getParameterClasses());
+                Method method = dispatch.method;
+                if (isStreaming(method)) {
+                    throw new IOException("Method " + method.getName() +
+                            " streams its response, but was not called as a stream");
+                }
 
                 long startTime = System.currentTimeMillis();
-                Object value = method.invoke(instance, call.getParameters());
+                Object value = dispatch.invoke(call.getParameters());
+                Class<?> returnType = method.getReturnType();
+                if (returnType == CompletableFuture.class) {
+                    // async protocol method
+                    return asyncResponse(method, (CompletableFuture<?>) value);
+                }
                 int processingTime = (int) (System.currentTimeMillis() - startTime);
                 int qTime = (int) (startTime-receivedTime);
                 LOG.debug("****Served: " + call.getMethodName() +
                             " queueTime= " + qTime + " procesingTime= " + processingTime + "***");
                 if (verbose) log("Return: "+value);
 
-                return new ObjectWritable(method.getReturnType(), value);
+                return CompletableFuture.completedFuture(
+                        new ObjectWritable(returnType, value));
 
             } catch (InvocationTargetException e) {
-                Throwable target = e.getTargetException();
-                if (target instanceof IOException) {
-                    throw (IOException)target;
-                } else {
-                    IOException ioe = new IOException(target.toString());
-                    ioe.setStackTrace(target.getStackTrace());
-                    throw ioe;
+                throw toIOException(e.getTargetException());
+            } catch (Throwable e) {
+                throw unexpected(e);
+            }
+        }
+
+        /** Invoke a streaming protocol method, one chunk per element of the
+         * iterator it returns. */
+        @Override
+        protected ResponseStream callStream(Class<?> protocol, Writable param,
+                                            long receivedTime) throws IOException {
+            try {
+                Invocation call = (Invocation)param;
+                if (verbose) log("Stream: " + call);
+
+                Dispatch dispatch = getDispatch(protocol, call.getMethodName(),
+                        call.getParameterClasses());
+                Method method = dispatch.method;
+                if (!isStreaming(method)) {
+                    throw new IOException("Method " + method.getName() +
+                            " does not stream its response");
                 }
+                return new IteratorStream(method, (Iterator<?>) dispatch.invoke(
+                        call.getParameters()));
+
+            } catch (InvocationTargetException e) {
+                throw toIOException(e.getTargetException());
             } catch (Throwable e) {
-                if (!(e instanceof IOException)) {
-                    LOG.error("Unexpected throwable object ", e);
+                throw unexpected(e);
+            }
+        }
+
+        private static IOException unexpected(Throwable e) {
+            if (!(e instanceof IOException)) {
+                LOG.error("Unexpected throwable object ", e);
+            }
+            IOException ioe = new IOException(e.toString());
+            ioe.setStackTrace(e.getStackTrace());
+            return ioe;
+        }
+    }
+
+    /** The response of a streaming protocol method: a chunk for each
+     * element of the iterator it returned, taken as the client has room. */
+    private static class IteratorStream implements ResponseStream {
+        private final Method method;
+        private final Iterator<?> elements;           // null for no elements
+
+        IteratorStream(Method method, Iterator<?> elements) {
+            this.method = method;
+            this.elements = elements;
+        }
+
+        public Writable next() {
+            if (elements == null || !elements.hasNext()) {
+                return null;
+            }
+            Object element = elements.next();
+            return new ObjectWritable(typeArgumentClass(method, element), element);
+        }
+
+        /** The stream ends without a value. */
+        public Writable end() {
+            return new ObjectWritable(Void.TYPE, null);
+        }
+
+        public void close() {
+            if (elements instanceof Closeable) {
+                IOUtils.closeStream((Closeable) elements);
+            }
+        }
+    }
+
+    private static IOException toIOException(Throwable target) {
+        if (target instanceof IOException) {
+            return (IOException)target;
+        }
+        IOException ioe = new IOException(target.toString());
+        ioe.setStackTrace(target.getStackTrace());
+        return ioe;
+    }
+
+    /** A future already failed with the given exception. */
+    private static CompletableFuture<Object> failedFuture(Throwable e) {
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /** The response of an async protocol method, completed with the value
+     * of the future it returned, or with its failure as an IOException. */
+    private static CompletableFuture<Writable> asyncResponse(final Method method,
+                                                             CompletableFuture<?> value) {
+        final CompletableFuture<Writable> response = new CompletableFuture<Writable>();
+        value.whenComplete(new BiConsumer<Object, Throwable>() {
+            public void accept(Object result, Throwable e) {
+                if (e == null) {
+                    response.complete(new ObjectWritable(
+                            typeArgumentClass(method, result), result));
+                    return;
                 }
-                IOException ioe = new IOException(e.toString());
-                ioe.setStackTrace(e.getStackTrace());
-                throw ioe;
+                if (e instanceof CompletionException && e.getCause() != null) {
+                    e = e.getCause();
+                }
+                response.completeExceptionally(toIOException(e));
             }
+        });
+        return response;
+    }
+
+    private static final Map<Class<?>, Class<?>> PRIMITIVE_TYPES = new HashMap<Class<?>, Class<?>>();
+    static {
+        PRIMITIVE_TYPES.put(Boolean.class, Boolean.TYPE);
+        PRIMITIVE_TYPES.put(Byte.class, Byte.TYPE);
+        PRIMITIVE_TYPES.put(Character.class, Character.TYPE);
+        PRIMITIVE_TYPES.put(Short.class, Short.TYPE);
+        PRIMITIVE_TYPES.put(Integer.class, Integer.TYPE);
+        PRIMITIVE_TYPES.put(Long.class, Long.TYPE);
+        PRIMITIVE_TYPES.put(Float.class, Float.TYPE);
+        PRIMITIVE_TYPES.put(Double.class, Double.TYPE);
+        PRIMITIVE_TYPES.put(Void.class, Void.TYPE);
+    }
+
+    /** The class the value of a <code>CompletableFuture&lt;T&gt;</code>, or
+     * an element of an <code>Iterator&lt;T&gt;</code>, return value is
+     * written as: T, or its primitive type for the boxed types, if it is a
+     * plain class, otherwise the value's own class. */
+    private static Class<?> typeArgumentClass(Method method, Object value) {
+        Class<?> valueClass = null;
+        Type type = method.getGenericReturnType();
+        if (type instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (arg instanceof Class) {
+                valueClass = (Class<?>) arg;
+            }
+        }
+        if (valueClass == null || valueClass == Object.class) {
+            valueClass = (value == null) ? Void.class : value.getClass();
         }
+        Class<?> primitive = PRIMITIVE_TYPES.get(valueClass);
+        return primitive == null ? valueClass : primitive;
     }
 
     private static void log(String value) {
@@ -0,0 +1,24 @@
+package com.taobao.minirpc;
+
+import java.io.IOException;
+
+/**
+ * A response sent as a stream of chunks rather than as one value, each chunk
+ * in its own frame on the call's connection. {@link Server#callStream}
+ * returns one for a call the client opened as a stream; handlers pull chunks
+ * from it only while the client has granted credits for them, so a slow
+ * reader holds the producer back instead of filling the server's memory.
+ */
+public interface ResponseStream {
+
+    /** The next chunk, null once the stream is exhausted. Called on a
+     * handler, which it may block. */
+    Writable next() throws IOException;
+
+    /** The value of the frame that ends the stream, asked for once
+     * {@link #next} has returned null. */
+    Writable end();
+
+    /** Release the stream, at its end or when it is cancelled. */
+    void close();
+}
@@ -0,0 +1,17 @@
+package com.taobao.minirpc;
+
+import java.net.InetAddress;
+
+/**
+ * A call as seen by a {@link CallQueue}: what a queue may use to decide
+ * which call to hand to a handler next.
+ */
+public interface Schedulable {
+
+    /** The address of the client that made the call, null if unknown. */
+    InetAddress getRemoteAddress();
+
+    /** The connection the call arrived on, null for a call made in the
+     * server's JVM without a socket. */
+    Server.Connection getConnection();
+}
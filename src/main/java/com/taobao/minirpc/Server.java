@@ -1,19 +1,26 @@
 package com.taobao.minirpc;
 
 import com.taobao.utils.Configuration;
+import com.taobao.utils.ReflectionUtils;
 import com.taobao.utils.StringUtils;
+import com.taobao.utils.TimingWheel;
+import com.taobao.utils.UnixSocketAddress;
 import com.taobao.utils.WritableUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * Created by shili on 14-2-27.
@@ -65,7 +72,12 @@ public abstract class Server {
     // 1 : Introduce ping and server does not throw away RPCs
     // 3 : Introduce the protocol into the RPC connection header
     // 4 : Introduced SASL security layer
-    public static final byte CURRENT_VERSION = 4;
+    // 5 : Responses are prefixed with their length
+    // 6 : Connection header carries options, answered by the server
+    // 7 : Primitive and homogeneous Writable arrays are written in bulk
+    // 8 : Requests carry the caller's remaining timeout
+    // 9 : Streamed responses, sent as chunks against credits from the client
+    public static final byte CURRENT_VERSION = 9;
 
     /**
      * How many calls/handler are allowed in the queue.
@@ -75,9 +87,13 @@ public abstract class Server {
             "ipc.server.handler.queue.size";
 
     /**
-     * Initial and max size of response buffer
+     * Initial size of response buffer, and the response size above which a
+     * warning is logged
      */
-    static int INITIAL_RESP_BUF_SIZE = 10240;
+    static int INITIAL_RESP_BUF_SIZE = 1024;
+
+    /** How often, in ms, the readers' loads are sampled. */
+    static final long LOAD_SAMPLE_INTERVAL = 1000;
     static final String IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY =
             "ipc.server.max.response.size";
     static final int IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT = 1024*1024;
@@ -105,6 +121,41 @@ public abstract class Server {
         return SERVER.get();
     }
 
+    // running servers that take calls from this JVM without a socket, by
+    // port, or by path for a Unix socket
+    private static final ConcurrentHashMap<Object, Server> IN_PROCESS_SERVERS =
+            new ConcurrentHashMap<Object, Server>();
+
+    private static Object inProcessKey(InetSocketAddress address) {
+        String path = UnixSocketAddress.getPath(address);
+        return path != null ? path : Integer.valueOf(address.getPort());
+    }
+
+    /**
+     * The running server of this JVM that takes in-process calls at the given
+     * address, null if there is none: one listening at that address, or at
+     * the wildcard address if the given one is a loopback address.
+     */
+    static Server getInProcessServer(InetSocketAddress address) {
+        if (IN_PROCESS_SERVERS.isEmpty() || address == null) {
+            return null;
+        }
+        Server server = IN_PROCESS_SERVERS.get(inProcessKey(address));
+        if (server == null || address instanceof UnixSocketAddress) {
+            return server;
+        }
+        InetAddress listening = server.listener.getAddress().getAddress();
+        InetAddress target = address.getAddress();
+        if (target == null) {
+            return null;                               // unresolved
+        }
+        if (listening.equals(target) ||
+                (listening.isAnyLocalAddress() && target.isLoopbackAddress())) {
+            return server;
+        }
+        return null;
+    }
+
     /** This is set to Call object before Handler invokes an RPC and reset
      * after the call returns.
      */
@@ -116,7 +167,7 @@ public abstract class Server {
     public static InetAddress getRemoteIp() {
         Call call = CurCall.get();
         if (call != null) {
-            return call.connection.socket.getInetAddress();
+            return call.getRemoteAddress();
         }
         return null;
     }
@@ -128,20 +179,31 @@ public abstract class Server {
         return (addr == null) ? null : addr.getHostAddress();
     }
 
+    /** Returns the remote side port when invoked inside an RPC, which tells
+     *  apart the connections of one client. Returns 0 outside an RPC, and
+     *  for a call made in process or over a Unix socket.
+     */
+    public static int getRemotePort() {
+        Call call = CurCall.get();
+        if (call != null && call.connection != null) {
+            return call.connection.remotePort;
+        }
+        return 0;
+    }
+
     private String bindAddress;
     private int port;                               // port we listen on
     private int handlerCount;                       // number of handler threads
     private int readThreads;                        // number of read threads
     private Class<? extends Writable> paramClass;   // class of call parameters
+    private boolean inProcessCalls = false;         // take calls from this JVM without a socket
+    private volatile boolean inProcessCopyFree = false; // hand their Writables over as they are
     private int maxIdleTime;                        // the maximum idle time after
     // which a client may be disconnected
     private int thresholdIdleConnections;           // the number of idle connections
     // after which we will start
     // cleaning up idle
     // connections
-    int maxConnectionsToNuke;                       // the max number of
-    // connections to nuke
-    //during a cleanup
 
     private Configuration conf;
     private int maxQueueSize;
@@ -150,16 +212,39 @@ public abstract class Server {
     private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
     volatile private boolean running = true;         // true while server runs
-    private BlockingQueue<Call> callQueue; // queued calls
-
-    private List<Connection> connectionList =
-            Collections.synchronizedList(new LinkedList<Connection>());
-    //maintain a list
-    //of client connections
+    private CallQueue callQueue; // queued calls
+    private volatile boolean balanceReadersByBytes; // reader load in bytes instead of calls
+    private volatile long readerRebalanceInterval;  // ms between connection moves, 0 if never
+    private volatile int compressionThreshold = Client.DEFAULT_COMPRESSION_THRESHOLD; // smallest body compressed
+    private volatile int maxUncompressedLength = Client.DEFAULT_MAX_UNCOMPRESSED_LENGTH; // largest body inflated
+    private final AtomicLong expiredCalls = new AtomicLong(); // calls dropped past their deadline
+    private final AtomicLong inProcessCallCount = new AtomicLong(); // calls taken from this JVM
+    // in-process calls not completed yet, failed if the server stops
+    private final Set<LocalCall> localCalls =
+            Collections.newSetFromMap(new ConcurrentHashMap<LocalCall, Boolean>());
+    private final Object localCallRoom = new Object(); // in-process callers wait for callQueue
+    private final AtomicInteger blockedLocalCalls = new AtomicInteger();
+    // connections not read from until their pending call fits in callQueue
+    private final ConcurrentLinkedDeque<Connection> blockedConnections =
+            new ConcurrentLinkedDeque<Connection>();
+    // bumped by every take, tells a resuming thread room was made meanwhile
+    private final AtomicLong callsTaken = new AtomicLong();
+
+    // the open client connections
+    private final Set<Connection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    // expires idle connections and responses that could not be sent
+    private volatile TimingWheel timingWheel;
     private Listener listener = null;
-    private Responder responder = null;
-    private int numConnections = 0;
+    private Responder[] responders = null;      // connections are spread over them
+    private int currentResponder = 0;          // next responder, listener thread only
+    private final AtomicInteger numConnections = new AtomicInteger();
     private Handler[] handlers = null;
+    private Executor callExecutor = null;      // runs calls instead of handlers if set
+    private boolean ownCallExecutor = false;   // true if the server created callExecutor
+    private Dispatcher dispatcher = null;
+    private BufferPool bufferPool = new BufferPool(false); // request frame buffers
+    private final BufferPool responsePool = new BufferPool(true); // response frame buffers
 
 
     public static void bind(ServerSocket socket, InetSocketAddress address,
@@ -184,13 +269,15 @@ public abstract class Server {
     }
 
     /** A call queued for handling. */
-    private static class Call {
+    private static class Call implements Schedulable {
         private int id;                               // the client's call id
         private Writable param;                       // the parameter passed
         private Connection connection;                // connection to client
         private long timestamp;     // the time received when response is null
         // the time served when response is not null
-        private ByteBuffer response;                      // the response for this call
+        private long deadline;      // the time the caller gives up, 0 if never
+        private ByteBuffer response;                      // the response for this call,
+                                                          // from responsePool
 
         public Call(int id, Writable param, Connection connection) {
             this.id = id;
@@ -202,12 +289,144 @@ public abstract class Server {
 
         @Override
         public String toString() {
-            return param.toString() + " from " + connection.toString();
+            return (param == null ? "#" + id : param.toString()) + " from " + connection.toString();
         }
 
         public void setResponse(ByteBuffer response) {
             this.response = response;
         }
+
+        public InetAddress getRemoteAddress() {
+            return connection.addr;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /** The protocol the call was made on. */
+        Class<?> getProtocol() {
+            return connection.protocol;
+        }
+    }
+
+    /**
+     * A call made from this JVM, see {@link #callInProcess}. It goes through
+     * callQueue and the handlers like a call read off a connection, but has
+     * no connection: the handler completes its future instead of queuing a
+     * response.
+     */
+    private static class LocalCall extends Call {
+        private final Class<?> protocol;
+        private final boolean copy;                   // copy the value the caller gets
+        private final CompletableFuture<Writable> future; // null for a stream
+        private final CompletableFuture<ResponseStream> stream; // null unless a stream
+
+        LocalCall(Class<?> protocol, Writable param, boolean copy, boolean stream,
+                  long timeout) {
+            super(0, param, null);
+            this.protocol = protocol;
+            this.copy = copy;
+            this.future = stream ? null : new CompletableFuture<Writable>();
+            this.stream = stream ? new CompletableFuture<ResponseStream>() : null;
+            if (timeout > 0) {
+                super.deadline = super.timestamp + timeout;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (super.param == null ? "call" : super.param.toString()) + " in process";
+        }
+
+        @Override
+        public InetAddress getRemoteAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        Class<?> getProtocol() {
+            return protocol;
+        }
+
+        /* Complete the call as a client would see the response. */
+        boolean complete(Writable value, String errorClass, String error) {
+            if (error != null) {
+                return fail(new RemoteException(errorClass, error));
+            }
+            try {
+                return future.complete(copy && value != null ?
+                        copy(value, ReflectionUtils.newInstance(value.getClass())) : value);
+            } catch (IOException e) {
+                return future.completeExceptionally(e);
+            }
+        }
+
+        /* Hand a streamed response over; the caller pulls the chunks
+         * itself, unless it gave up. */
+        boolean completeStream(ResponseStream source) {
+            if (!stream.complete(copy ? new CopiedStream(source) : source)) {
+                source.close();
+                return false;
+            }
+            return true;
+        }
+
+        boolean fail(IOException e) {
+            return future != null ? future.completeExceptionally(e) :
+                    stream.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A streamed response, see {@link ResponseStream}. It is opened by the
+     * client's first grant of credits, which comes before the call, and is
+     * queued for a handler again whenever a grant or a cancel finds it
+     * parked for want of credits.
+     */
+    private static class StreamCall extends Call {
+        private volatile ResponseStream source;       // null until the call returns it
+        private final AtomicInteger credits = new AtomicInteger(); // chunks the client has room for
+        // queued for or held by a handler, the only one to pull chunks
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        StreamCall(int id, Connection connection) {
+            super(id, null, connection);
+        }
+    }
+
+    /* The chunks of a stream copied as a connection would, for a caller in
+     * this JVM. */
+    private static class CopiedStream implements ResponseStream {
+        private final ResponseStream source;
+
+        CopiedStream(ResponseStream source) {
+            this.source = source;
+        }
+
+        public Writable next() throws IOException {
+            Writable chunk = source.next();
+            return chunk == null ? null : copy(chunk, ReflectionUtils.newInstance(chunk.getClass()));
+        }
+
+        public Writable end() {
+            return source.end();
+        }
+
+        public void close() {
+            source.close();
+        }
+    }
+
+    /* Copy a Writable by serializing it, as a connection would. */
+    private static Writable copy(Writable value, Writable into) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        value.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        into.readFields(in);
+        return into;
     }
 
     /** Listens on the socket. Creates jobs for the handler threads*/
@@ -217,31 +436,38 @@ public abstract class Server {
         private Selector selector = null; //the selector that we use for the server
         private Reader[] readers = null;
         private int currentReader = 0;
-        private InetSocketAddress address; //the address we bind at
-        private Random rand = new Random();
-        private long lastCleanupRunTime = 0; //the last time when a cleanup connec-
-        //-tion (for idle connections) ran
-        private long cleanupInterval = 10000; //the minimum interval between
-        //two cleanup runs
+        private InetSocketAddress address; //the address we are bound at
         private int backlogLength = 128;
         private ExecutorService readPool;
+        private long lastLoadSample = System.currentTimeMillis(); // when reader loads were sampled
+        private long lastRebalance = lastLoadSample;       // when a connection was last moved
 
         public Listener() throws IOException {
-            address = new InetSocketAddress(bindAddress, port);
-            // Create a new server socket and set to non blocking mode
-            acceptChannel = ServerSocketChannel.open();
-            acceptChannel.configureBlocking(false);
-
-            // Bind the server socket to the local host and port
-            bind(acceptChannel.socket(), address, backlogLength);
-            port = acceptChannel.socket().getLocalPort(); //Could be an ephemeral port
+            if (UnixSocketAddress.hasScheme(bindAddress)) {
+                // a Unix domain socket for clients on this host
+                UnixSocketAddress unixAddress = UnixSocketAddress.parse(bindAddress);
+                acceptChannel = unixAddress.bind(backlogLength);
+                acceptChannel.configureBlocking(false);
+                address = unixAddress;
+            } else {
+                address = new InetSocketAddress(bindAddress, port);
+                // Create a new server socket and set to non blocking mode
+                acceptChannel = ServerSocketChannel.open();
+                acceptChannel.configureBlocking(false);
+
+                // Bind the server socket to the local host and port
+                bind(acceptChannel.socket(), address, backlogLength);
+                port = acceptChannel.socket().getLocalPort(); //Could be an ephemeral port
+                // kept, the channel is gone once the listener has stopped
+                address = (InetSocketAddress) acceptChannel.socket().getLocalSocketAddress();
+            }
             // create a selector;
             selector= Selector.open();
             readers = new Reader[readThreads];
             readPool = Executors.newFixedThreadPool(readThreads);
             for (int i = 0; i < readThreads; i++) {
                 Selector readSelector = Selector.open();
-                Reader reader = new Reader(readSelector);
+                Reader reader = new Reader(i, readSelector);
                 readers[i] = reader;
                 readPool.execute(reader);
             }
@@ -255,8 +481,26 @@ public abstract class Server {
         private class Reader implements Runnable {
             private volatile boolean adding = false;
             private Selector readSelector = null;
-
-            Reader(Selector readSelector) {
+            private final int index;
+
+            // load, counted by the reader thread and sampled by the listener
+            private final AtomicInteger connections = new AtomicInteger();
+            private volatile long calls;
+            private volatile long bytes;
+            private long sampledCalls;
+            private long sampledBytes;
+            private volatile double callRate;             // calls/s over the last sample
+            private volatile double byteRate;             // bytes/s over the last sample
+            private double load;                          // listener only, see getReader
+            // connections to hand over to another reader, see rebalanceReaders,
+            // and connections handed over by another reader
+            private final ConcurrentLinkedQueue<Connection> moves =
+                    new ConcurrentLinkedQueue<Connection>();
+            private final ConcurrentLinkedQueue<Connection> arrivals =
+                    new ConcurrentLinkedQueue<Connection>();
+
+            Reader(int index, Selector readSelector) {
+                this.index = index;
                 this.readSelector = readSelector;
             }
             public void run() {
@@ -268,6 +512,12 @@ public abstract class Server {
                             while (adding) {
                                 this.wait(1000);
                             }
+                            if (!moves.isEmpty()) {
+                                doMoves();
+                            }
+                            if (!arrivals.isEmpty()) {
+                                doArrivals();
+                            }
 
                             Iterator<SelectionKey> iter = readSelector.selectedKeys().iterator();
                             while (iter.hasNext()) {
@@ -313,53 +563,81 @@ public abstract class Server {
                 adding = false;
                 this.notify();
             }
-        }
 
-        /** cleanup connections from connectionList. Choose a random range
-         * to scan and also have a limit on the number of the connections
-         * that will be cleanedup per run. The criteria for cleanup is the time
-         * for which the connection was idle. If 'force' is true then all
-         * connections will be looked at for the cleanup.
-         */
-        private void cleanupConnections(boolean force) {
-            if (force || numConnections > thresholdIdleConnections) {
-                long currentTime = System.currentTimeMillis();
-                if (!force && (currentTime - lastCleanupRunTime) < cleanupInterval) {
-                    return;
-                }
-                int start = 0;
-                int end = numConnections - 1;
-                if (!force) {
-                    start = rand.nextInt() % numConnections;
-                    end = rand.nextInt() % numConnections;
-                    int temp;
-                    if (end < start) {
-                        temp = start;
-                        start = end;
-                        end = temp;
+            /* Move a connection to another reader. This reader lets go of it
+             * between two reads, the other one registers it on its own thread,
+             * so no reader ever waits for another. */
+            void move(Connection c, Reader to) {
+                c.moveTo = to;
+                moves.add(c);
+                readSelector.wakeup();
+            }
+
+            private void doMoves() {
+                Connection c;
+                while ((c = moves.poll()) != null) {
+                    Reader to = c.moveTo;
+                    c.moveTo = null;
+                    SelectionKey oldKey = c.readKey;
+                    // suspended connections wait for a handler, leave them
+                    if (c.reader != this || c.pendingCall != null || !oldKey.isValid()) {
+                        continue;
                     }
+                    oldKey.cancel();
+                    if (LOG.isDebugEnabled())
+                        LOG.debug(getName() + ": moving " + c + " from reader " + index +
+                                " to reader " + to.index);
+                    to.arrivals.add(c);
+                    to.readSelector.wakeup();
                 }
-                int i = start;
-                int numNuked = 0;
-                while (i <= end) {
-                    Connection c;
-                    synchronized (connectionList) {
-                        try {
-                            c = connectionList.get(i);
-                        } catch (Exception e) {return;}
-                    }
-                    if (c.timedOut(currentTime)) {
-                        if (LOG.isDebugEnabled())
-                            LOG.debug(getName() + ": disconnecting client " + c.getHostAddress());
+            }
+
+            private void doArrivals() {
+                Connection c;
+                while ((c = arrivals.poll()) != null) {
+                    Reader from = c.reader;
+                    try {
+                        c.readKey = c.channel.register(readSelector, SelectionKey.OP_READ, c);
+                        c.reader = this;
+                        from.connections.decrementAndGet();
+                        connections.incrementAndGet();
+                    } catch (IOException e) {
+                        LOG.info(getName() + ": failed to move " + c + " to reader " +
+                                index + ": " + e);
                         closeConnection(c);
-                        numNuked++;
-                        end--;
-                        c = null;
-                        if (!force && numNuked == maxConnectionsToNuke) break;
                     }
-                    else i++;
                 }
-                lastCleanupRunTime = System.currentTimeMillis();
+            }
+
+            /* Update the rates from the counters; listener thread only. */
+            void sample(long elapsed) {
+                long c = calls;
+                long b = bytes;
+                callRate = (c - sampledCalls) * 1000.0 / elapsed;
+                byteRate = (b - sampledBytes) * 1000.0 / elapsed;
+                sampledCalls = c;
+                sampledBytes = b;
+                load = balanceReadersByBytes ? byteRate : callRate;
+            }
+
+            ReaderMetrics getMetrics() {
+                return new ReaderMetrics(index, connections.get(), calls, bytes,
+                        callRate, byteRate);
+            }
+        }
+
+        /** Close every connection that has been idle for longer than the
+         * maximum idle time, however many connections there are. Otherwise
+         * idle connections are closed by their idle timeout.
+         */
+        private void closeIdleConnections() {
+            long currentTime = System.currentTimeMillis();
+            for (Connection c : connections) {
+                if (c.timedOut(currentTime)) {
+                    if (LOG.isDebugEnabled())
+                        LOG.debug(getName() + ": disconnecting client " + c.getHostAddress());
+                    closeConnection(c);
+                }
             }
         }
 
@@ -369,7 +647,7 @@ public abstract class Server {
             while (running) {
                 SelectionKey key = null;
                 try {
-                    selector.select();
+                    selector.select(LOAD_SAMPLE_INTERVAL);
                     Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
                     while (iter.hasNext()) {
                         key = iter.next();
@@ -389,12 +667,12 @@ public abstract class Server {
                     // some thread(s) a chance to finish
                     LOG.warn("Out of Memory in server select", e);
                     closeCurrentConnection(key, e);
-                    cleanupConnections(true);
+                    closeIdleConnections();
                     try { Thread.sleep(60000); } catch (Exception ie) {}
                 } catch (Exception e) {
                     closeCurrentConnection(key, e);
                 }
-                cleanupConnections(false);
+                sampleLoads();
             }
             LOG.info("Stopping " + this.getName());
 
@@ -408,8 +686,8 @@ public abstract class Server {
                 acceptChannel= null;
 
                 // clean up all connections
-                while (!connectionList.isEmpty()) {
-                    closeConnection(connectionList.remove(0));
+                for (Connection c : connections) {
+                    closeConnection(c);
                 }
             }
         }
@@ -427,7 +705,7 @@ public abstract class Server {
         }
 
         InetSocketAddress getAddress() {
-            return (InetSocketAddress)acceptChannel.socket().getLocalSocketAddress();
+            return address;
         }
 
         void doAccept(SelectionKey key) throws IOException,  OutOfMemoryError {
@@ -436,17 +714,21 @@ public abstract class Server {
             SocketChannel channel;
             while ((channel = server.accept()) != null) {
                 channel.configureBlocking(false);
-                channel.socket().setTcpNoDelay(tcpNoDelay);
+                if (!(address instanceof UnixSocketAddress)) {
+                    channel.socket().setTcpNoDelay(tcpNoDelay);
+                }
                 Reader reader = getReader();
                 try {
                     reader.startAdd();
                     SelectionKey readKey = reader.registerChannel(channel);
                     c = new Connection(readKey, channel, System.currentTimeMillis());
+                    c.reader = reader;
+                    reader.connections.incrementAndGet();
+                    reader.load += averageConnectionLoad();
                     readKey.attach(c);
-                    synchronized (connectionList) {
-                        connectionList.add(numConnections, c);
-                        numConnections++;
-                    }
+                    connections.add(c);
+                    numConnections.incrementAndGet();
+                    c.scheduleIdleTimeout(maxIdleTime);
                     LOG.info("Server connection from " + c.toString() + "; # active connections: " + numConnections +
                                 "; # queued calls: " + callQueue.size());
                 } finally {
@@ -491,32 +773,130 @@ public abstract class Server {
             }
             if (acceptChannel != null) {
                 try {
-                    acceptChannel.socket().close();
+                    acceptChannel.close();
                 } catch (IOException e) {
                     LOG.info(getName() + ":Exception in closing listener socket. " + e);
                 }
+                if (address instanceof UnixSocketAddress) {
+                    ((UnixSocketAddress) address).delete();
+                }
             }
             readPool.shutdown();
         }
 
-        // The method that will return the next reader to work with
-        // Simplistic implementation of round robin for now
+        // The method that will return the next reader to work with: the one
+        // with the least load in the last sample, counting the connections
+        // given to it since, then the one with the fewest connections.
         Reader getReader() {
-            currentReader = (currentReader + 1) % readers.length;
-            return readers[currentReader];
+            Reader best = null;
+            for (int i = 0; i < readers.length; i++) {
+                // start after the last choice, so ties go round robin
+                Reader r = readers[(currentReader + 1 + i) % readers.length];
+                if (best == null || r.load < best.load ||
+                        (r.load == best.load && r.connections.get() < best.connections.get())) {
+                    best = r;
+                }
+            }
+            currentReader = best.index;
+            return best;
+        }
+
+        /* The load a new connection is expected to add to its reader. */
+        private double averageConnectionLoad() {
+            double total = 0;
+            int connections = 0;
+            for (Reader r : readers) {
+                total += balanceReadersByBytes ? r.byteRate : r.callRate;
+                connections += r.connections.get();
+            }
+            return connections == 0 ? 0 : total / connections;
+        }
+
+        /* Turn the readers' and connections' counters into rates once per
+         * LOAD_SAMPLE_INTERVAL, and rebalance if it is time to. */
+        private void sampleLoads() {
+            long now = System.currentTimeMillis();
+            long elapsed = now - lastLoadSample;
+            if (elapsed < LOAD_SAMPLE_INTERVAL) {
+                return;
+            }
+            lastLoadSample = now;
+            for (Reader r : readers) {
+                r.sample(elapsed);
+            }
+            long interval = readerRebalanceInterval;
+            if (interval > 0) {
+                Connection[] all = connections.toArray(new Connection[0]);
+                for (Connection c : all) {
+                    c.sampleLoad(elapsed);
+                }
+                if (now - lastRebalance >= interval) {
+                    lastRebalance = now;
+                    rebalanceReaders(all);
+                }
+            }
+        }
+
+        /* Move one connection from the busiest to the least busy reader, if
+         * the busiest has more than twice the load. The connection moved is
+         * the busiest one carrying at most half the difference, so the move
+         * narrows the gap instead of moving the hot spot. */
+        private void rebalanceReaders(Connection[] connections) {
+            Reader busiest = readers[0];
+            Reader idlest = readers[0];
+            for (Reader r : readers) {
+                if (r.load > busiest.load) {
+                    busiest = r;
+                }
+                if (r.load < idlest.load) {
+                    idlest = r;
+                }
+            }
+            if (busiest == idlest || busiest.load <= 2 * idlest.load) {
+                return;
+            }
+            double limit = (busiest.load - idlest.load) / 2;
+            Connection candidate = null;
+            for (Connection c : connections) {
+                if (c.reader == busiest && c.load > 0 && c.load <= limit &&
+                        (candidate == null || c.load > candidate.load)) {
+                    candidate = c;
+                }
+            }
+            if (candidate != null) {
+                busiest.load -= candidate.load;
+                idlest.load += candidate.load;
+                busiest.move(candidate, idlest);
+            }
+        }
+
+        List<ReaderMetrics> getReaderMetrics() {
+            List<ReaderMetrics> metrics = new ArrayList<ReaderMetrics>(readers.length);
+            for (Reader r : readers) {
+                metrics.add(r.getMetrics());
+            }
+            return metrics;
         }
 
     }
 
     // Sends responses of RPC back to clients.
+    /**
+     * Writes the responses that could not be written by the handler. Every
+     * connection is served by one responder, picked round robin when it is
+     * accepted, so a slow client only holds up the connections sharing its
+     * responder.
+     */
     private class Responder extends Thread {
         private Selector writeSelector;
         private int pending;         // connections waiting to register
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHERED_RESPONSES];
+        private final Call[] gathered = new Call[MAX_GATHERED_RESPONSES];
 
         final static int PURGE_INTERVAL = 900000; // 15mins
 
-        Responder() throws IOException {
-            this.setName("IPC Server Responder");
+        Responder(int index) throws IOException {
+            this.setName("IPC Server Responder " + index);
             this.setDaemon(true);
             writeSelector = Selector.open(); // create a selector
             pending = 0;
@@ -525,12 +905,11 @@ public abstract class Server {
         @Override
         public void run() {
             SERVER.set(Server.this);
-            long lastPurgeTime = 0;   // last check for old calls.
 
             while (running) {
                 try {
                     waitPending();     // If a channel is being registered, wait.
-                    writeSelector.select(PURGE_INTERVAL);
+                    writeSelector.select();
                     Iterator<SelectionKey> iter = writeSelector.selectedKeys().iterator();
                     while (iter.hasNext()) {
                         SelectionKey key = iter.next();
@@ -543,38 +922,6 @@ public abstract class Server {
                             LOG.info(getName() + ": doAsyncWrite threw exception " + e);
                         }
                     }
-                    long now = System.currentTimeMillis();
-                    if (now < lastPurgeTime + PURGE_INTERVAL) {
-                        continue;
-                    }
-                    lastPurgeTime = now;
-                    //
-                    // If there were some calls that have not been sent out for a
-                    // long time, discard them.
-                    //
-                    LOG.debug("Checking for old call responses.");
-                    ArrayList<Call> calls;
-
-                    // get the list of channels from list of keys.
-                    synchronized (writeSelector.keys()) {
-                        calls = new ArrayList<Call>(writeSelector.keys().size());
-                        iter = writeSelector.keys().iterator();
-                        while (iter.hasNext()) {
-                            SelectionKey key = iter.next();
-                            Call call = (Call)key.attachment();
-                            if (call != null && key.channel() == call.connection.channel) {
-                                calls.add(call);
-                            }
-                        }
-                    }
-
-                    for(Call call : calls) {
-                        try {
-                            doPurge(call, now);
-                        } catch (IOException e) {
-                            LOG.warn("Error in purging old calls " + e);
-                        }
-                    }
                 } catch (OutOfMemoryError e) {
                     //
                     // we can run out of memory if we have too many threads
@@ -592,140 +939,171 @@ public abstract class Server {
         }
 
         private void doAsyncWrite(SelectionKey key) throws IOException {
-            Call call = (Call)key.attachment();
-            if (call == null) {
+            Connection c = (Connection)key.attachment();
+            if (c == null) {
                 return;
             }
-            if (key.channel() != call.connection.channel) {
+            if (key.channel() != c.channel) {
                 throw new IOException("doAsyncWrite: bad channel");
             }
-
-            synchronized(call.connection.responseQueue) {
-                if (processResponse(call.connection.responseQueue, false)) {
-                    try {
-                        key.interestOps(0);
-                    } catch (CancelledKeyException e) {
-            /* The Listener/reader might have closed the socket.
-             * We don't explicitly cancel the key, so not sure if this will
-             * ever fire.
-             * This warning could be removed.
-             */
-                        LOG.warn("Exception while changing ops : " + e);
-                    }
-                }
-            }
+            // the responder holds the connection's write flag while the key
+            // is interested in writes
+            processResponse(c, false);
         }
 
+        // Writes the responses queued for one connection, as many of them as
+        // fit with one gathering write at a time. The caller holds the
+        // connection's write flag. The flag is released once the queue is
+        // drained, or kept by the responder until it is if the channel is
+        // full. Returns true if there are no more pending data for this
+        // channel.
         //
-        // Remove calls that have been pending in the responseQueue
-        // for a long time.
-        //
-        private void doPurge(Call call, long now) throws IOException {
-            LinkedList<Call> responseQueue = call.connection.responseQueue;
-            synchronized (responseQueue) {
-                Iterator<Call> iter = responseQueue.listIterator(0);
-                while (iter.hasNext()) {
-                    call = iter.next();
-                    if (now > call.timestamp + PURGE_INTERVAL) {
-                        closeConnection(call.connection);
-                        break;
-                    }
-                }
-            }
-        }
-
-        // Processes one response. Returns true if there are no more pending
-        // data for this channel.
-        //
-        private boolean processResponse(LinkedList<Call> responseQueue,
+        private boolean processResponse(Connection connection,
                                         boolean inHandler) throws IOException {
+            ConcurrentLinkedQueue<Call> responseQueue = connection.responseQueue;
+            SocketChannel channel = connection.channel;
             boolean error = true;
-            boolean done = false;       // there is more data for this channel.
-            int numElements = 0;
+            boolean registered = !inHandler;  // the key is interested in writes
             Call call = null;
             try {
-                synchronized (responseQueue) {
-                    //
-                    // If there are no items for this channel, then we are done
-                    //
-                    numElements = responseQueue.size();
-                    if (numElements == 0) {
-                        error = false;
-                        return true;              // no more data for this channel.
-                    }
-                    //
-                    // Extract the first call
-                    //
-                    call = responseQueue.removeFirst();
-                    SocketChannel channel = call.connection.channel;
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug(getName() + ": responding to #" + call.id + " from " +
-                                call.connection);
-                    }
-                    //
-                    // Send as much data as we can in the non-blocking fashion
-                    //
-                    int numBytes = channelWrite(channel, call.response);
-                    if (numBytes < 0) {
-                        return true;
-                    }
-                    if (!call.response.hasRemaining()) {
-                        call.connection.decRpcCount();
-                        if (numElements == 1) {    // last call fully processes.
-                            done = true;             // no more data for this channel.
-                        } else {
-                            done = false;            // more calls pending to be sent.
-                        }
-                        LOG.info(getName() + ": responding to #" + call.id + " from " +
-                                    call.connection + " Wrote " + numBytes + " bytes.");
-                    } else {
+                while (true) {
+                    call = responseQueue.peek();
+                    if (call == null) {
                         //
-                        // If we were unable to write the entire response out, then
-                        // insert in Selector queue.
+                        // Nothing left. Stop waiting for the channel to be
+                        // writable before releasing the flag, a handler that
+                        // takes it next may need the key again.
                         //
-                        call.connection.responseQueue.addFirst(call);
-
-                        if (inHandler) {
-                            // set the serve time when the response has to be sent later
-                            call.timestamp = System.currentTimeMillis();
-
-                            incPending();
+                        if (registered) {
                             try {
-                                // Wakeup the thread blocked on select, only then can the call
-                                // to channel.register() complete.
-                                writeSelector.wakeup();
-                                channel.register(writeSelector, SelectionKey.OP_WRITE, call);
-                            } catch (ClosedChannelException e) {
-                                //Its ok. channel might be closed else where.
-                                done = true;
-                            } finally {
-                                decPending();
+                                connection.writeKey.interestOps(0);
+                            } catch (CancelledKeyException e) {
+                                // the connection was closed
                             }
+                            connection.cancelPurgeTimeout();
+                            registered = false;
                         }
-                        LOG.debug(getName() + ": responding to #" + call.id + " from " +
-                                    call.connection + " Wrote partial " + numBytes + " bytes.");
+                        connection.writing.set(false);
+                        if (responseQueue.isEmpty() || !connection.writing.compareAndSet(false, true)) {
+                            error = false;
+                            return true;          // no more data for this channel.
+                        }
+                        continue;                 // a response came in meanwhile
+                    }
+                    if (!writeResponses(channel, call, inHandler)) {
+                        break;                    // channel full
                     }
-                    error = false;              // everything went off well
                 }
+                //
+                // If we were unable to write all responses out, then wait
+                // for the channel in the Selector, keeping the flag.
+                //
+                call = responseQueue.peek();
+                if (!registered) {
+                    // set the serve time when the response has to be sent later
+                    call.timestamp = System.currentTimeMillis();
+                    connection.schedulePurgeTimeout(PURGE_INTERVAL);
+
+                    incPending();
+                    try {
+                        // Wakeup the thread blocked on select, only then can the call
+                        // to channel.register() complete.
+                        writeSelector.wakeup();
+                        connection.writeKey = channel.register(writeSelector,
+                                SelectionKey.OP_WRITE, connection);
+                    } catch (ClosedChannelException e) {
+                        //Its ok. channel might be closed else where.
+                        error = false;
+                        return true;
+                    } finally {
+                        decPending();
+                    }
+                }
+                LOG.debug(getName() + ": responding to #" + call.id + " from " +
+                            connection + " Wrote partial response.");
+                error = false;              // everything went off well
+                return false;
             } finally {
                 if (error && call != null) {
                     LOG.warn(getName()+", call " + call + ": output error");
-                    done = true;               // error. no more data for this channel.
-                    closeConnection(call.connection);
+                    closeConnection(connection);
+                }
+            }
+        }
+
+        // Writes the responses at the head of a queue, the first being
+        // call. Returns false if the channel could not take all of them.
+        //
+        private boolean writeResponses(SocketChannel channel, Call call,
+                                       boolean inHandler) throws IOException {
+            ConcurrentLinkedQueue<Call> responseQueue = call.connection.responseQueue;
+            Iterator<Call> it = responseQueue.iterator();
+            it.next();
+            if (!it.hasNext()) {
+                //
+                // Send as much data as we can in the non-blocking fashion
+                //
+                int numBytes = channelWrite(channel, call.response);
+                if (numBytes < 0) {
+                    throw new IOException("Channel closed");
+                }
+                if (call.response.hasRemaining()) {
+                    return false;
+                }
+                responseQueue.poll();
+                responded(call, numBytes);
+                return true;
+            }
+            //
+            // Gather the first calls. Only the responder thread uses its own
+            // arrays, a handler usually has one call to write.
+            //
+            ByteBuffer[] srcs = inHandler ? new ByteBuffer[MAX_GATHERED_RESPONSES] : gather;
+            Call[] calls = inHandler ? new Call[MAX_GATHERED_RESPONSES] : gathered;
+            int count = 0;
+            int length = 0;
+            for (Call c : responseQueue) {
+                if (count == srcs.length ||
+                        (count > 0 && length + c.response.remaining() > MAX_GATHERED_BYTES)) {
+                    break;
                 }
+                calls[count] = c;
+                srcs[count++] = c.response;
+                length += c.response.remaining();
             }
-            return done;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(getName() + ": responding to " + count + " calls from #" +
+                        call.id + " from " + call.connection);
+            }
+            long numBytes = channel.write(srcs, 0, count);
+            int written = 0;
+            while (written < count && !srcs[written].hasRemaining()) {
+                responseQueue.poll();
+                responded(calls[written], numBytes);
+                written++;
+            }
+            Arrays.fill(calls, 0, count, null);
+            Arrays.fill(srcs, 0, count, null);
+            return written == count;
+        }
+
+        private void responded(Call call, long numBytes) {
+            responsePool.release(call.response);
+            call.response = null;
+            call.connection.decRpcCount();
+            LOG.info(getName() + ": responding to #" + call.id + " from " +
+                    call.connection + " Wrote " + numBytes + " bytes.");
         }
 
         //
-        // Enqueue a response from the application.
+        // Enqueue a response from the application. Whoever gets the
+        // connection's write flag writes the queue, without a lock.
         //
         void doRespond(Call call) throws IOException {
-            synchronized (call.connection.responseQueue) {
-                call.connection.responseQueue.addLast(call);
-                if (call.connection.responseQueue.size() == 1) {
-                    processResponse(call.connection.responseQueue, true);
-                }
+            Connection connection = call.connection;
+            connection.responseQueue.add(call);
+            if (connection.writing.compareAndSet(false, true)) {
+                processResponse(connection, true);
             }
         }
 
@@ -754,9 +1132,13 @@ public abstract class Server {
         private SocketChannel channel;
         private ByteBuffer data;
         private ByteBuffer dataLengthBuffer;
-        private LinkedList<Call> responseQueue;
-        private volatile int rpcCount = 0; // number of outstanding rpcs
-        private long lastContact;
+        // responses to write, added by any handler and written by whoever
+        // holds the write flag
+        private final ConcurrentLinkedQueue<Call> responseQueue =
+                new ConcurrentLinkedQueue<Call>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private final AtomicInteger rpcCount = new AtomicInteger(); // number of outstanding rpcs
+        private volatile long lastContact;
         private int dataLength;
         private Socket socket;
         // Cache the remote host & port info so that even if the socket is
@@ -768,6 +1150,7 @@ public abstract class Server {
         ConnectionHeader header = new ConnectionHeader();
         Class<?> protocol;
         private ByteBuffer rpcHeaderBuffer;
+        private final DataInputByteBuffer dataInput = new DataInputByteBuffer();
 
         // Fake 'call' for failed authorization response
         private final int AUTHROIZATION_FAILED_CALLID = -1;
@@ -775,26 +1158,57 @@ public abstract class Server {
                 new Call(AUTHROIZATION_FAILED_CALLID, null, this);
         private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
 
+        // Fake 'call' for the answer to the connection header
+        private final Call headerCall =
+                new Call(Client.CONNECTION_HEADER_CALL_ID, null, this);
+
         private boolean useWrap = false;
+        private Compression compression = Compression.NONE; // codec of the bodies
+
+        private final Responder responder;               // writes what the handlers could not
+        private volatile SelectionKey writeKey;          // registration with the responder
+        private volatile TimingWheel.Timeout idleTimeout;
+        private volatile TimingWheel.Timeout purgeTimeout; // set while the responder writes
+        private volatile SelectionKey readKey;
+        private volatile Listener.Reader reader;         // reader the connection is registered with
+        private volatile Listener.Reader moveTo;         // reader it is being moved to
+        private Call pendingCall;            // call refused by a full callQueue
+        // streamed responses by call id, opened until they end
+        private final ConcurrentHashMap<Integer, StreamCall> streams =
+                new ConcurrentHashMap<Integer, StreamCall>();
+
+        // load, counted by the reader and sampled by the listener
+        private volatile long calls;
+        private volatile long bytes;
+        private long sampledCalls;
+        private long sampledBytes;
+        private double load;
 
         public Connection(SelectionKey key, SocketChannel channel,
                           long lastContact) {
+            this.readKey = key;
             this.channel = channel;
             this.lastContact = lastContact;
             this.data = null;
             this.dataLengthBuffer = ByteBuffer.allocate(4);
-            this.socket = channel.socket();
-            this.addr = socket.getInetAddress();
-            if (addr == null) {
-                this.hostAddress = "*Unknown*";
+            if (listener.address instanceof UnixSocketAddress) {
+                // a peer on this host, with neither IP address nor port
+                this.addr = InetAddress.getLoopbackAddress();
+                this.hostAddress = listener.address.toString();
             } else {
-                this.hostAddress = addr.getHostAddress();
+                this.socket = channel.socket();
+                this.addr = socket.getInetAddress();
+                if (addr == null) {
+                    this.hostAddress = "*Unknown*";
+                } else {
+                    this.hostAddress = addr.getHostAddress();
+                }
+                this.remotePort = socket.getPort();
             }
-            this.remotePort = socket.getPort();
-            this.responseQueue = new LinkedList<Call>();
+            this.responder = getResponder();
             if (socketSendBufferSize != 0) {
                 try {
-                    socket.setSendBufferSize(socketSendBufferSize);
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, socketSendBufferSize);
                 } catch (IOException e) {
                     LOG.warn("Connection: unable to set socket send buffer size to " +
                             socketSendBufferSize);
@@ -804,7 +1218,24 @@ public abstract class Server {
 
         @Override
         public String toString() {
-            return getHostAddress() + ":" + remotePort;
+            return socket == null ? getHostAddress() : getHostAddress() + ":" + remotePort;
+        }
+
+        private void sampleLoad(long elapsed) {
+            long c = calls;
+            long b = bytes;
+            load = (balanceReadersByBytes ? b - sampledBytes : c - sampledCalls) * 1000.0 / elapsed;
+            sampledCalls = c;
+            sampledBytes = b;
+        }
+
+        /* Count bytes read; reader thread only. */
+        private int countRead(int count) {
+            if (count > 0) {
+                bytes += count;
+                reader.bytes += count;
+            }
+            return count;
         }
 
         public String getHostAddress() {
@@ -825,17 +1256,17 @@ public abstract class Server {
 
         /* Return true if the connection has no outstanding rpc */
         private boolean isIdle() {
-            return rpcCount == 0;
+            return rpcCount.get() == 0;
         }
 
         /* Decrement the outstanding RPC count */
         private void decRpcCount() {
-            rpcCount--;
+            rpcCount.decrementAndGet();
         }
 
         /* Increment the outstanding RPC count */
         private void incRpcCount() {
-            rpcCount++;
+            rpcCount.incrementAndGet();
         }
 
         private boolean timedOut(long currentTime) {
@@ -844,6 +1275,77 @@ public abstract class Server {
             return false;
         }
 
+        /* Check for idleness after the given delay. The check is not moved
+         * on every read, it finds out itself when it is early. */
+        private void scheduleIdleTimeout(long delay) {
+            idleTimeout = schedule(new Runnable() {
+                public void run() {
+                    checkIdle();
+                }
+            }, delay);
+        }
+
+        /* On the timing wheel thread. */
+        private void checkIdle() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            long currentTime = System.currentTimeMillis();
+            if (timedOut(currentTime) && numConnections.get() > thresholdIdleConnections) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Disconnecting idle client " + getHostAddress());
+                closeConnection(this);
+            } else if (isIdle()) {
+                long left = lastContact + maxIdleTime - currentTime;
+                // past maxIdleTime but kept under the threshold: look again
+                // a whole period later, not on every tick
+                scheduleIdleTimeout(left > 0 ? left + 1 : maxIdleTime);
+            } else {
+                scheduleIdleTimeout(maxIdleTime);
+            }
+        }
+
+        /* Close the connection if a response waits to be written for longer
+         * than the given delay. Called by the holder of the write flag when
+         * the responder takes over. */
+        private void schedulePurgeTimeout(long delay) {
+            cancelPurgeTimeout();
+            purgeTimeout = schedule(new Runnable() {
+                public void run() {
+                    checkPurge();
+                }
+            }, delay);
+        }
+
+        private void cancelPurgeTimeout() {
+            TimingWheel.Timeout timeout = purgeTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+                purgeTimeout = null;
+            }
+        }
+
+        /* On the timing wheel thread. The oldest response is at the head. */
+        private void checkPurge() {
+            Call call = responseQueue.peek();
+            if (call == null || !writing.get() || !channel.isOpen()) {
+                return;                                // written meanwhile
+            }
+            long due = call.timestamp + Responder.PURGE_INTERVAL;
+            long currentTime = System.currentTimeMillis();
+            if (currentTime > due) {
+                LOG.warn("Closing " + this + ", response to #" + call.id +
+                        " not sent for " + (currentTime - call.timestamp) + " ms");
+                closeConnection(this);
+            } else {
+                purgeTimeout = schedule(new Runnable() {
+                    public void run() {
+                        checkPurge();
+                    }
+                }, due - currentTime + 1);
+            }
+        }
+
         public int readAndProcess() throws IOException, InterruptedException {
             while (true) {
         /* Read at most one RPC. If the header is not read completely yet
@@ -851,7 +1353,7 @@ public abstract class Server {
          */
                 int count = -1;
                 if (dataLengthBuffer.remaining() > 0) {
-                    count = channelRead(channel, dataLengthBuffer);
+                    count = countRead(channelRead(channel, dataLengthBuffer));
                     if (count < 0 || dataLengthBuffer.remaining() > 0)
                         return count;
                 }
@@ -861,7 +1363,7 @@ public abstract class Server {
                     if (rpcHeaderBuffer == null) {
                         rpcHeaderBuffer = ByteBuffer.allocate(1);
                     }
-                    count = channelRead(channel, rpcHeaderBuffer);
+                    count = countRead(channelRead(channel, rpcHeaderBuffer));
                     if (count < 0 || rpcHeaderBuffer.remaining() > 0) {
                         return count;
                     }
@@ -896,10 +1398,10 @@ public abstract class Server {
                         LOG.warn("Unexpected data length " + dataLength + "!! from " +
                                 getHostAddress());
                     }
-                    data = ByteBuffer.allocate(dataLength);
+                    data = bufferPool.acquire(dataLength);
                 }
 
-                count = channelRead(channel, data);
+                count = countRead(channelRead(channel, data));
 
                 if (data.remaining() == 0) {
                     dataLengthBuffer.clear();
@@ -908,9 +1410,13 @@ public abstract class Server {
                     /**
                      * rpc߼
                      */
-                    processOneRpc(data.array());
-
-                    data = null;
+                    try {
+                        processOneRpc(data);
+                    } finally {
+                        // the request has been deserialized, the frame can be reused
+                        bufferPool.release(data);
+                        data = null;
+                    }
                     if (!isHeaderRead) {
                         continue;
                     }
@@ -920,10 +1426,9 @@ public abstract class Server {
         }
 
         /// Reads the connection header following version
-        private void processHeader(byte[] buf) throws IOException {
-            DataInputStream in =
-                    new DataInputStream(new ByteArrayInputStream(buf));
-            header.readFields(in);
+        private void processHeader(ByteBuffer buf) throws IOException {
+            dataInput.reset(buf);
+            header.readFields(dataInput);
             try {
                 String protocolClassName = header.getProtocol();
                 if (protocolClassName != null) {
@@ -932,9 +1437,33 @@ public abstract class Server {
             } catch (ClassNotFoundException cnfe) {
                 throw new IOException("Unknown protocol: " + header.getProtocol());
             }
+            if (header.getOptions() != 0) {
+                respondToHeader();
+            }
+        }
+
+        /** Tell the client which of the options it asked for are accepted. */
+        private void respondToHeader() throws IOException {
+            int accepted = 0;
+            if (header.hasOption(ConnectionHeader.COMPACT_INVOCATION) && protocol != null
+                    && MethodTable.get(protocol).getHash() == header.getMethodTableHash()) {
+                accepted |= ConnectionHeader.COMPACT_INVOCATION;
+            }
+            Compression codec = Compression.fromOptions(header.getOptions());
+            accepted |= codec.option;
+            if (LOG.isDebugEnabled())
+                LOG.debug("Accepted options " + accepted + " of " + header.getOptions() +
+                        " from " + this);
+            ConnectionHeader answer = new ConnectionHeader(header.getProtocol(),
+                    accepted, header.getMethodTableHash());
+            setupResponse(new DataOutputByteBuffer(responsePool), headerCall,
+                    Status.SUCCESS, answer, null, null);
+            compression = codec;               // the answer itself is not compressed
+            incRpcCount();
+            responder.doRespond(headerCall);
         }
 
-        private void processOneRpc(byte[] buf) throws IOException,
+        private void processOneRpc(ByteBuffer buf) throws IOException,
                 InterruptedException {
             if (headerRead) {
                 processData(buf);
@@ -944,59 +1473,130 @@ public abstract class Server {
             }
         }
 
-        private void processData(byte[] buf) throws  IOException, InterruptedException {
-            DataInputStream dis =
-                    new DataInputStream(new ByteArrayInputStream(buf));
+        private void processData(ByteBuffer buf) throws  IOException, InterruptedException {
+            DataInputByteBuffer dis = dataInput;
+            dis.reset(buf);
             int id = dis.readInt();                    // try to read an id
+            if (id == Client.STREAM_WINDOW_CALL_ID || id == Client.STREAM_CREDIT_CALL_ID) {
+                grantCredits(id == Client.STREAM_WINDOW_CALL_ID, dis.readInt(), dis.readInt());
+                return;
+            }
+            int timeout = dis.readInt();               // caller's remaining timeout
 
             if (LOG.isDebugEnabled())
                 LOG.debug(" got #" + id);
 
-            //Writable param = ReflectionUtils.newInstance(paramClass);//read param
-            Writable param = null;
-            /**
-             * add the reflect directly
-             */
-            try {
-                Constructor meth = paramClass.getDeclaredConstructor(new Class[]{});
-                meth.setAccessible(true);
-                param = (Writable)meth.newInstance();
-            } catch (NoSuchMethodException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
-
-            if (param != null) {
-                param.readFields(dis);
-            }
+            Writable param = newParam(protocol);
+            param.readFields(compression.readBody(dis, dis.remaining(), maxUncompressedLength));
 
             Call call = new Call(id, param, this);
-            callQueue.put(call);              // queue the call; maybe blocked here
+            if (timeout > 0) {
+                call.deadline = call.timestamp + timeout;
+            }
             incRpcCount();  // Increment the rpc count
-        }
-
-        private synchronized void close() throws IOException {
-            data = null;
-            dataLengthBuffer = null;
-            if (!channel.isOpen())
-                return;
-            try {socket.shutdownOutput();} catch(Exception e) {}
-            if (channel.isOpen()) {
-                try {channel.close();} catch(Exception e) {}
+            calls++;
+            reader.calls++;
+            if (!callQueue.offer(call)) {
+                suspendReading(call);
             }
-            try {socket.close();} catch(Exception e) {}
         }
-    }
 
-    /** Handles queued calls . */
-    private class Handler extends Thread {
-        public Handler(int instanceNumber) {
-            this.setDaemon(true);
+        /* Credits from the client for a streamed response, a negative grant
+         * cancels it. The first grant opens the stream before its call is
+         * read; later ones for a stream that has ended are dropped. Called on
+         * the reader thread.
+         */
+        private void grantCredits(boolean first, int id, int credits) {
+            StreamCall stream = streams.get(id);
+            if (stream == null) {
+                if (!first) {
+                    return;
+                }
+                stream = new StreamCall(id, this);
+                streams.put(id, stream);
+            }
+            if (credits < 0) {
+                stream.cancelled = true;
+            } else {
+                stream.credits.addAndGet(credits);
+            }
+            if (stream.source != null && stream.scheduled.compareAndSet(false, true)) {
+                // parked: a handler sends the next chunks, or ends it
+                if (!callQueue.offer(stream)) {
+                    suspendReading(stream);
+                }
+            }
+        }
+
+        /* The queue is full: rather than block the reader, and with it every
+         * other connection on its selector, stop reading from this connection
+         * until its call fits. Called on the reader thread.
+         */
+        private void suspendReading(Call call) {
+            pendingCall = call;
+            readKey.interestOps(0);
+            if (LOG.isDebugEnabled())
+                LOG.debug("Call queue full, suspending reads from " + this);
+            blockedConnections.add(this);
+            // a handler may have made room before we were on the list
+            resumeBlockedConnections();
+        }
+
+        /* Try to queue the pending call again, and read from the connection
+         * again if it fits. Called by whichever thread removed the connection
+         * from blockedConnections.
+         *
+         * @return false if the queue is still full
+         */
+        private boolean resumeReading() {
+            if (!channel.isOpen()) {
+                pendingCall = null;                // closed meanwhile, drop it
+                return true;
+            }
+            if (!callQueue.offer(pendingCall)) {
+                return false;
+            }
+            pendingCall = null;
+            try {
+                readKey.interestOps(SelectionKey.OP_READ);
+                readKey.selector().wakeup();
+            } catch (CancelledKeyException e) {
+                // closed meanwhile
+            }
+            if (LOG.isDebugEnabled())
+                LOG.debug("Resuming reads from " + this);
+            return true;
+        }
+
+        private synchronized void close() throws IOException {
+            data = null;
+            dataLengthBuffer = null;
+            if (idleTimeout != null) {
+                idleTimeout.cancel();
+            }
+            cancelPurgeTimeout();
+            if (!channel.isOpen())
+                return;
+            try {channel.shutdownOutput();} catch(Exception e) {}
+            if (channel.isOpen()) {
+                try {channel.close();} catch(Exception e) {}
+            }
+            if (socket != null) {
+                try {socket.close();} catch(Exception e) {}
+            }
+            for (StreamCall stream : streams.values()) {
+                stream.cancelled = true;
+                if (stream.source != null && stream.scheduled.compareAndSet(false, true)) {
+                    finishStream(stream);          // parked, no handler will see it
+                }
+            }
+        }
+    }
+
+    /** Handles queued calls . */
+    private class Handler extends Thread {
+        public Handler(int instanceNumber) {
+            this.setDaemon(true);
             this.setName("IPC Server handler "+ instanceNumber + " on " + port);
         }
 
@@ -1004,64 +1604,323 @@ public abstract class Server {
         public void run() {
             LOG.info(getName() + ": starting");
             SERVER.set(Server.this);
-            ByteArrayOutputStream buf =
-                    new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
+            DataOutputByteBuffer buf = new DataOutputByteBuffer(responsePool);
             while (running) {
                 try {
-                    final Call call = callQueue.take(); // pop the queue; maybe blocked here
-                    LOG.info(getName() + ": has #" + call.id + " from " + call.connection);
+                    final Call call = takeCall(); // pop the queue; maybe blocked here
+                    processCall(call, buf);
+                } catch (InterruptedException e) {
+                    if (running) {                          // unexpected -- log it
+                        LOG.info(getName() + " caught: " +
+                                StringUtils.stringifyException(e));
+                    }
+                } catch (Exception e) {
+                    LOG.info(getName() + " caught: " +
+                            StringUtils.stringifyException(e));
+                }
+            }
+            LOG.info(getName() + ": exiting");
+        }
 
-                    String errorClass = null;
-                    String error = null;
-                    Writable value = null;
+    }
 
-                    CurCall.set(call);
+    /** Hands queued calls to {@link #callExecutor}, one task per call. At most
+     * maxQueueSize calls are outstanding in the executor, so a slow executor
+     * still backs up into callQueue. */
+    private class Dispatcher extends Thread {
+        private final Semaphore permits = new Semaphore(maxQueueSize);
+
+        public Dispatcher() {
+            this.setDaemon(true);
+            this.setName("IPC Server dispatcher on " + port);
+        }
+
+        @Override
+        public void run() {
+            LOG.info(getName() + ": starting");
+            SERVER.set(Server.this);
+            while (running) {
+                try {
+                    permits.acquire();
+                    final Call call = takeCall(); // pop the queue; maybe blocked here
                     try {
-                        // ó󷽷callֱȥȥû֤Ĳ
-                        value = call(call.connection.protocol, call.param, call.timestamp);
-                    } catch (Throwable e) {
-                        String logMsg = getName() + ", call " + call + ": error: " + e;
-                        if (e instanceof RuntimeException || e instanceof Error) {
-                            LOG.warn(logMsg, e);
-                        } else if (exceptionsHandler.isTerse(e.getClass())) {
-                            LOG.info(logMsg);
+                        callExecutor.execute(new Runnable() {
+                            public void run() {
+                                SERVER.set(Server.this);
+                                try {
+                                    processCall(call, new DataOutputByteBuffer(responsePool));
+                                } catch (Exception e) {
+                                    LOG.info(Thread.currentThread().getName() + " caught: " +
+                                            StringUtils.stringifyException(e));
+                                } finally {
+                                    SERVER.remove();
+                                    permits.release();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        permits.release();
+                        LOG.warn(getName() + ": call " + call + " rejected by executor");
+                        if (call instanceof LocalCall) {
+                            failLocalCall((LocalCall) call,
+                                    new IOException("Call rejected by the executor"));
                         } else {
-                            LOG.info(logMsg, e);
-                        }
-                        errorClass = e.getClass().getName();
-                        error = StringUtils.stringifyException(e);
-                    }
-                    CurCall.set(null);
-                    synchronized (call.connection.responseQueue) {
-                        // setupResponse() needs to be sync'ed together with
-                        // responder.doResponse() since setupResponse may use
-                        // SASL to encrypt response data and SASL enforces
-                        // its own message ordering.
-                        setupResponse(buf, call,
-                                (error == null) ? Status.SUCCESS : Status.ERROR,
-                                value, errorClass, error);
-                        // Discard the large buf and reset it back to
-                        // smaller size to freeup heap
-                        if (buf.size() > maxRespSize) {
-                            LOG.warn("Large response size " + buf.size() + " for call " +
-                                    call.toString());
-                            buf = new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
+                            closeConnection(call.connection);
                         }
-                        responder.doRespond(call);
                     }
                 } catch (InterruptedException e) {
                     if (running) {                          // unexpected -- log it
                         LOG.info(getName() + " caught: " +
                                 StringUtils.stringifyException(e));
                     }
-                } catch (Exception e) {
-                    LOG.info(getName() + " caught: " +
-                            StringUtils.stringifyException(e));
                 }
             }
             LOG.info(getName() + ": exiting");
         }
+    }
+
+    /** Take the next call, and let a suspended connection queue its call
+     * in the room that leaves. */
+    private Call takeCall() throws InterruptedException {
+        Call call = (Call) callQueue.take();
+        callsTaken.incrementAndGet();
+        if (!blockedConnections.isEmpty()) {
+            resumeBlockedConnections();
+        }
+        if (blockedLocalCalls.get() > 0) {
+            synchronized (localCallRoom) {
+                localCallRoom.notifyAll();
+            }
+        }
+        return call;
+    }
+
+    /** Resume reading from suspended connections, oldest first, for as
+     * long as their pending calls fit in the queue. */
+    private void resumeBlockedConnections() {
+        for (;;) {
+            long taken = callsTaken.get();
+            Connection c = blockedConnections.pollFirst();
+            if (c == null) {
+                return;
+            }
+            if (!c.resumeReading()) {
+                blockedConnections.addFirst(c);    // still full, keep its turn
+                // a take between our offer and addFirst may have found the
+                // list empty and left the room it made to us
+                if (callsTaken.get() == taken) {
+                    return;                        // retried on the next take
+                }
+            }
+        }
+    }
+
+    /**
+     * Invoke a call and hand its response to the responder.
+     *
+     * @param call the call to process
+     * @param buf buffer to serialize the response into
+     */
+    private void processCall(Call call, DataOutputByteBuffer buf)
+            throws IOException {
+        if (call instanceof StreamCall) {
+            // a stream granted more credits, or cancelled
+            pumpStream((StreamCall) call, buf);
+            return;
+        }
+        String name = Thread.currentThread().getName();
+        if (call.deadline != 0 && System.currentTimeMillis() >= call.deadline) {
+            // the caller has given up already, don't spend time on the call
+            expiredCalls.incrementAndGet();
+            if (LOG.isDebugEnabled())
+                LOG.debug(name + ": dropping expired #" + call.id + " from " + call.connection);
+            if (call instanceof LocalCall) {
+                failLocalCall((LocalCall) call, new SocketTimeoutException(
+                        "Call expired before " + getListenerAddress() + " handled it"));
+                return;
+            }
+            if (!call.connection.streams.isEmpty()) {
+                call.connection.streams.remove(call.id);
+            }
+            setupResponse(buf, call, Status.TIMEOUT, null, null, null);
+            call.connection.responder.doRespond(call);
+            return;
+        }
+        LOG.info(name + ": has #" + call.id + " from " +
+                (call.connection == null ? "this JVM" : call.connection));
+
+        String errorClass = null;
+        String error = null;
+        Writable value = null;
+        CompletableFuture<? extends Writable> response = null;
+        ResponseStream source = null;
+        StreamCall stream = (call.connection == null || call.connection.streams.isEmpty()) ?
+                null : call.connection.streams.get(call.id);
+        boolean streamed = stream != null ||
+                (call instanceof LocalCall && ((LocalCall) call).stream != null);
+
+        CurCall.set(call);
+        try {
+            // ó󷽷callֱȥȥû֤Ĳ
+            if (streamed) {
+                source = callStream(call.getProtocol(), call.param, call.timestamp);
+            } else {
+                response = callAsync(call.getProtocol(), call.param, call.timestamp);
+            }
+        } catch (Throwable e) {
+            String logMsg = name + ", call " + call + ": error: " + e;
+            if (e instanceof RuntimeException || e instanceof Error) {
+                LOG.warn(logMsg, e);
+            } else if (exceptionsHandler.isTerse(e.getClass())) {
+                LOG.info(logMsg);
+            } else {
+                LOG.info(logMsg, e);
+            }
+            errorClass = e.getClass().getName();
+            error = StringUtils.stringifyException(e);
+        }
+        CurCall.set(null);
+        if (source != null) {
+            startStream(call, stream, source, buf);
+            return;
+        }
+        if (response != null && !response.isDone()) {
+            // answered by whoever completes the future, this handler moves on
+            final Call pending = call;
+            response.whenComplete(new BiConsumer<Writable, Throwable>() {
+                public void accept(Writable result, Throwable e) {
+                    String errorClass = null;
+                    String error = null;
+                    if (e != null) {
+                        e = unwrapCompletion(e);
+                        LOG.info("Call " + pending + ": error: " + e);
+                        errorClass = e.getClass().getName();
+                        error = StringUtils.stringifyException(e);
+                    }
+                    try {
+                        finishCall(pending, result, errorClass, error,
+                                new DataOutputByteBuffer(responsePool));
+                    } catch (IOException ioe) {
+                        LOG.info(Thread.currentThread().getName() + " caught: " +
+                                StringUtils.stringifyException(ioe));
+                    }
+                }
+            });
+            return;
+        }
+        if (response != null) {
+            try {
+                value = response.join();
+            } catch (RuntimeException e) {              // completed exceptionally
+                Throwable cause = unwrapCompletion(e);
+                LOG.info(name + ", call " + call + ": error: " + cause);
+                errorClass = cause.getClass().getName();
+                error = StringUtils.stringifyException(cause);
+            }
+        }
+        finishCall(call, value, errorClass, error, buf);
+    }
+
+    /* The exception a future failed with, not the CompletionException
+     * wrapping it. */
+    private static Throwable unwrapCompletion(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            return e.getCause();
+        }
+        return e;
+    }
+
+    /* Hand the outcome of a call to its caller: the local future, the
+     * stream, or the responder. */
+    private void finishCall(Call call, Writable value, String errorClass,
+                            String error, DataOutputByteBuffer buf) throws IOException {
+        if (call instanceof LocalCall) {
+            localCalls.remove(call);
+            ((LocalCall) call).complete(value, errorClass, error);
+            return;
+        }
+        if (!call.connection.streams.isEmpty()) {
+            call.connection.streams.remove(call.id);   // opened, but failed at once
+        }
+        setupResponse(buf, call,
+                (error == null) ? Status.SUCCESS : Status.ERROR,
+                value, errorClass, error);
+        if (call.response.remaining() > maxRespSize) {
+            LOG.warn("Large response size " + call.response.remaining() +
+                    " for call " + call.toString());
+        }
+        call.connection.responder.doRespond(call);
+    }
+
+    /* Start sending the chunks of a streamed response, on the handler that
+     * made the call; a caller in this JVM pulls them itself. */
+    private void startStream(Call call, StreamCall stream, ResponseStream source,
+                             DataOutputByteBuffer buf) throws IOException {
+        if (call instanceof LocalCall) {
+            localCalls.remove(call);
+            ((LocalCall) call).completeStream(source);
+            return;
+        }
+        stream.scheduled.set(true);
+        stream.source = source;
+        pumpStream(stream, buf);
+    }
+
+    /**
+     * Send the chunks of a streamed response that the client has credits
+     * for, each in its own frame. The handler holds the stream's scheduled
+     * flag: it parks the stream once the credits run out, and ends it with a
+     * SUCCESS or ERROR frame that answers the call.
+     */
+    private void pumpStream(StreamCall stream, DataOutputByteBuffer buf) throws IOException {
+        Call call = stream;
+        Connection connection = call.connection;
+        while (true) {
+            if (stream.cancelled || !connection.channel.isOpen()) {
+                finishStream(stream);
+                connection.decRpcCount();      // the call is not answered
+                return;
+            }
+            if (stream.credits.get() <= 0) {
+                stream.scheduled.set(false);
+                // a grant that came meanwhile did not find the stream parked
+                if ((stream.credits.get() <= 0 && !stream.cancelled) ||
+                        !stream.scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            Writable chunk = null;
+            String errorClass = null;
+            String error = null;
+            try {
+                chunk = stream.source.next();
+            } catch (Throwable e) {
+                LOG.info(Thread.currentThread().getName() + ", stream " + stream +
+                        ": error: " + e, e);
+                errorClass = e.getClass().getName();
+                error = StringUtils.stringifyException(e);
+            }
+            if (chunk == null) {
+                finishStream(stream);
+                setupResponse(buf, stream, (error == null) ? Status.SUCCESS : Status.ERROR,
+                        (error == null) ? stream.source.end() : null, errorClass, error);
+                connection.responder.doRespond(stream);
+                return;
+            }
+            stream.credits.decrementAndGet();
+            Call frame = new Call(call.id, null, connection);
+            setupResponse(buf, frame, Status.CHUNK, chunk, null, null);
+            connection.incRpcCount();          // every frame written counts down once
+            connection.responder.doRespond(frame);
+        }
+    }
 
+    /* Forget a stream that has ended and release its source. */
+    private void finishStream(StreamCall stream) {
+        Call call = stream;
+        call.connection.streams.remove(call.id);
+        stream.source.close();
     }
 
     /** Constructs a server listening on the named port and address.  Parameters passed must
@@ -1079,11 +1938,10 @@ public abstract class Server {
         this.handlerCount = handlerCount;
         this.socketSendBufferSize = 0;
         this.maxQueueSize = handlerCount * 10;  //IPC_SERVER_HANDLER_QUEUE_SIZE_KEY, IPC_SERVER_HANDLER_QUEUE_SIZE_DEFAULT
-        this.maxRespSize = 1000;      //IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY,IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT
+        this.maxRespSize = IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT;      //IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY
         this.readThreads = 10;   //IPC_SERVER_RPC_READ_THREADS_KEY, IPC_SERVER_RPC_READ_THREADS_DEFAULT
-        this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize);
+        this.callQueue  = new FifoCallQueue(maxQueueSize);
         this.maxIdleTime = 2*1000;  //ipc.client.connection.maxidletime
-        this.maxConnectionsToNuke = 10;
         this.thresholdIdleConnections = 4000;
 
         // Start the listener here and let it bind to the port
@@ -1091,14 +1949,33 @@ public abstract class Server {
         this.port = listener.getAddress().getPort();
         this.tcpNoDelay = false;
 
-        // Create the responder here
-        responder = new Responder();
+        // Create the responders here
+        int responderCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        responders = new Responder[responderCount];
+        for (int i = 0; i < responderCount; i++) {
+            responders[i] = new Responder(i);
+        }
+    }
+
+    /* Run a task on the timing wheel, null once the server is stopped. */
+    private TimingWheel.Timeout schedule(Runnable task, long delay) {
+        TimingWheel wheel = timingWheel;
+        if (wheel == null || !running) {
+            return null;
+        }
+        try {
+            return wheel.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            return null;                               // stopped meanwhile
+        }
     }
 
     private void closeConnection(Connection connection) {
-        synchronized (connectionList) {
-            if (connectionList.remove(connection))
-                numConnections--;
+        if (connections.remove(connection)) {
+            numConnections.decrementAndGet();
+            if (connection.reader != null) {
+                connection.reader.connections.decrementAndGet();
+            }
         }
         try {
             connection.close();
@@ -1107,7 +1984,9 @@ public abstract class Server {
     }
 
     /**
-     * Setup response for the IPC Call.
+     * Setup response for the IPC Call. The response is serialized straight
+     * into a pooled buffer behind its length and handed to the call, the
+     * buffer goes back to the pool once the response has been written.
      *
      * @param response buffer to serialize the response into
      * @param call {@link Call} to which we are setting up the response
@@ -1117,31 +1996,273 @@ public abstract class Server {
      * @param error error message, if the call failed
      * @throws IOException
      */
-    private void setupResponse(ByteArrayOutputStream response,
+    private void setupResponse(DataOutputByteBuffer response,
                                Call call, Status status,
                                Writable rv, String errorClass, String error)
             throws IOException {
-        response.reset();
-        DataOutputStream out = new DataOutputStream(response);
+        response.startFrame(INITIAL_RESP_BUF_SIZE);
+        DataOutputByteBuffer out = response;
         out.writeInt(call.id);                // write call id
         out.writeInt(status.state);           // write status
 
-        if (status == Status.SUCCESS) {
-            rv.write(out);
+        if (status == Status.TIMEOUT) {
+            call.setResponse(response.finishFrame());    // a timeout has no body
+            return;
+        }
+        Compression compression = call.connection.compression;
+        DataOutput body = compression.startBody(out);
+        if (status == Status.SUCCESS || status == Status.CHUNK) {
+            rv.write(body);
         } else {
-            WritableUtils.writeString(out, errorClass);
-            WritableUtils.writeString(out, error);
+            WritableUtils.writeString(body, errorClass);
+            WritableUtils.writeString(body, error);
+        }
+        compression.finishBody(out, body, compressionThreshold);
+        call.setResponse(response.finishFrame());
+    }
+
+    /**
+     * Use direct instead of heap buffers for incoming request frames. Direct
+     * buffers are filled by the channel without an intermediate copy.
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void setUseDirectBuffers(boolean direct) {
+        if (bufferPool.isDirect() != direct) {
+            bufferPool = new BufferPool(direct);
         }
-        call.setResponse(ByteBuffer.wrap(response.toByteArray()));
     }
 
     /** Sets the socket buffer size used for responding to RPCs */
     public void setSocketSendBufSize(int size) { this.socketSendBufferSize = size; }
 
+    /**
+     * Replace the FIFO queue between the readers and the handlers, e.g. with
+     * a {@link FairCallQueue}. The server's queue size, ten calls per handler,
+     * is a reasonable capacity for it. Must be called before {@link #start()}.
+     */
+    public synchronized void setCallQueue(CallQueue queue) {
+        if (handlers != null || dispatcher != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        this.callQueue = queue;
+    }
+
+    /**
+     * Set the size in bytes from which response bodies are compressed, on
+     * connections whose client asked for {@link Compression}.
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Set the most bytes a compressed request body may inflate to. A
+     * request claiming more closes its connection with an IOException.
+     */
+    public void setMaxUncompressedLength(int length) {
+        this.maxUncompressedLength = length;
+    }
+
+    /** The queue between the readers and the handlers. */
+    public CallQueue getCallQueue() {
+        return callQueue;
+    }
+
+    /**
+     * Set the number of responder threads, which write the responses a
+     * handler could not write at once because the client was slow to read.
+     * Defaults to half the processors, between one and four.
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void setResponderCount(int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Illegal number of responders: " + count);
+        }
+        if (handlers != null || dispatcher != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        Responder[] created = new Responder[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new Responder(i);
+        }
+        for (Responder responder : responders) {
+            responder.writeSelector.close();
+        }
+        responders = created;
+    }
+
+    /* Pick the responder of a new connection. */
+    private Responder getResponder() {
+        Responder[] all = responders;
+        currentResponder = (currentResponder + 1) % all.length;
+        return all[currentResponder];
+    }
+
+    /**
+     * Run calls on the given executor, one task per call, instead of on the
+     * fixed set of handler threads. Passing null restores the handler threads.
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void setCallExecutor(Executor executor) {
+        if (handlers != null || dispatcher != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        this.callExecutor = executor;
+        this.ownCallExecutor = false;
+    }
+
+    /**
+     * Let protocol proxies in this JVM that point at this server call it
+     * without a socket: the invocation is copied, not serialized onto a
+     * connection, and queued in callQueue for the handlers or the call
+     * executor like any other call. The queue's bound, its scheduling,
+     * deadlines and the call metrics all apply. A caller blocks while the
+     * queue is full. Must be called before {@link #start()}.
+     * @see #setInProcessCopyFree(boolean)
+     */
+    public synchronized void setInProcessCalls(boolean inProcessCalls) {
+        if (handlers != null || dispatcher != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        this.inProcessCalls = inProcessCalls;
+    }
+
+    /**
+     * Hand the parameters and values of in-process calls over as they are
+     * instead of copying them. Only safe if neither the caller nor the
+     * called method changes them once passed, as with immutable Writables.
+     */
+    public void setInProcessCopyFree(boolean copyFree) {
+        this.inProcessCopyFree = copyFree;
+    }
+
+    /**
+     * Queue a call made from this JVM, see {@link #setInProcessCalls}.
+     * @param timeout ms after which the caller gives up, 0 for never: a
+     *                handler drops the call once it has passed, as it does
+     *                for a client's call
+     * @return completed with the value, or exceptionally with the
+     *         RemoteException a client would get
+     */
+    CompletableFuture<Writable> callInProcess(Class<?> protocol, Writable param, long timeout)
+            throws IOException, InterruptedException {
+        return queueInProcess(protocol, param, false, timeout).future;
+    }
+
+    /**
+     * Queue a call made from this JVM that streams its response, see
+     * {@link #callStream}. The caller pulls the chunks from the stream on
+     * its own thread, without credits.
+     */
+    CompletableFuture<ResponseStream> streamInProcess(Class<?> protocol, Writable param,
+                                                      long timeout)
+            throws IOException, InterruptedException {
+        return queueInProcess(protocol, param, true, timeout).stream;
+    }
+
+    private LocalCall queueInProcess(Class<?> protocol, Writable param, boolean stream,
+                                     long timeout) throws IOException, InterruptedException {
+        if (!running) {
+            throw new IOException("Server on " + getListenerAddress() + " is stopped");
+        }
+        boolean copy = !inProcessCopyFree;
+        if (copy) {
+            if (param instanceof CompactWritable) {
+                DataOutputBuffer out = new DataOutputBuffer();
+                ((CompactWritable) param).writeCompact(out);
+                DataInputBuffer in = new DataInputBuffer();
+                in.reset(out.getData(), out.getLength());
+                Writable copied = newParam(protocol);
+                copied.readFields(in);
+                param = copied;
+            } else {
+                param = copy(param, newParam(protocol));
+            }
+        }
+        LocalCall call = new LocalCall(protocol, param, copy, stream, timeout);
+        localCalls.add(call);
+        if (!callQueue.offer(call)) {
+            waitForQueue(call);
+        }
+        inProcessCallCount.incrementAndGet();
+        if (!running) {
+            failLocalCall(call, new IOException("Server on " + getListenerAddress() +
+                    " is stopped"));
+        }
+        return call;
+    }
+
+    /* Block an in-process caller until callQueue takes its call; a take
+     * notifies the waiting callers. */
+    private void waitForQueue(LocalCall call) throws IOException, InterruptedException {
+        blockedLocalCalls.incrementAndGet();
+        try {
+            synchronized (localCallRoom) {
+                while (!callQueue.offer(call)) {
+                    if (!running) {
+                        IOException e = new IOException("Server on " + getListenerAddress() +
+                                " is stopped");
+                        failLocalCall(call, e);
+                        throw e;
+                    }
+                    localCallRoom.wait(1000);
+                }
+            }
+        } catch (InterruptedException e) {
+            failLocalCall(call, new IOException("Interrupted while queuing", e));
+            throw e;
+        } finally {
+            blockedLocalCalls.decrementAndGet();
+        }
+    }
+
+    private void failLocalCall(LocalCall call, IOException e) {
+        localCalls.remove(call);
+        call.fail(e);
+    }
+
+    /**
+     * Run every call on its own virtual thread, so a call blocked on I/O does
+     * not hold up the others. Requires Java 21 or later.
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void useVirtualThreads() {
+        setCallExecutor(newVirtualThreadPerTaskExecutor());
+        this.ownCallExecutor = true;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by this JVM", e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by this JVM", e.getTargetException());
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by this JVM", e);
+        }
+    }
+
     /** Server Listener߳, Responderظ߳, Handler߳ */
     public synchronized void start() {
-        responder.start();
+        timingWheel = new TimingWheel("IPC Server timer on " + port,
+                TIMER_TICK, TimeUnit.MILLISECONDS, 512);
+        for (Responder responder : responders) {
+            responder.start();
+        }
         listener.start();
+        if (inProcessCalls) {
+            IN_PROCESS_SERVERS.putIfAbsent(inProcessKey(listener.getAddress()), this);
+        }
+        if (callExecutor != null) {
+            dispatcher = new Dispatcher();
+            dispatcher.start();
+            return;
+        }
         handlers = new Handler[handlerCount];
 
         for (int i = 0; i < handlerCount; i++) {
@@ -1154,6 +2275,13 @@ public abstract class Server {
     public synchronized void stop() {
         LOG.info("Stopping server on " + port);
         running = false;
+        if (inProcessCalls) {
+            IN_PROCESS_SERVERS.remove(inProcessKey(listener.getAddress()), this);
+            for (LocalCall call : localCalls) {
+                failLocalCall(call, new IOException("Server on " + getListenerAddress() +
+                        " stopped"));
+            }
+        }
         if (handlers != null) {
             for (int i = 0; i < handlerCount; i++) {
                 if (handlers[i] != null) {
@@ -1161,9 +2289,20 @@ public abstract class Server {
                 }
             }
         }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        if (ownCallExecutor) {
+            ((ExecutorService) callExecutor).shutdown();
+        }
         listener.interrupt();
         listener.doStop();
-        responder.interrupt();
+        for (Responder responder : responders) {
+            responder.interrupt();
+        }
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
         notifyAll();
     }
 
@@ -1185,18 +2324,57 @@ public abstract class Server {
         return listener.getAddress();
     }
 
+    /**
+     * Create the object the parameter of a call on the given protocol is
+     * read into. The default creates an instance of the server's parameter
+     * class; an IOException closes the connection the call came on.
+     */
+    protected Writable newParam(Class<?> protocol) throws IOException {
+        try {
+            return ReflectionUtils.newInstance(paramClass);
+        } catch (RuntimeException e) {
+            throw new IOException("Cannot create a parameter of " + paramClass, e);
+        }
+    }
+
     /** Called for each call. */
     public abstract Writable call(Class<?> protocol,
                                   Writable param, long receiveTime)
             throws IOException;
 
+    /**
+     * Called for each call instead of {@link #call}, for servers whose
+     * responses may not be ready when it returns. The response is set up and
+     * sent by the thread that completes the future, and the handler moves on
+     * to the next call meanwhile; an exceptional completion is answered as an
+     * error, like an exception thrown from {@link #call}. The default
+     * answers with {@link #call} at once.
+     */
+    protected CompletableFuture<? extends Writable> callAsync(Class<?> protocol,
+                                                              Writable param, long receiveTime)
+            throws IOException {
+        return CompletableFuture.completedFuture(call(protocol, param, receiveTime));
+    }
+
+    /**
+     * Called instead of {@link #call} for each call the client opened as a
+     * stream, see {@link ResponseStream}: its chunks are sent as the client
+     * grants credits for them, and the value of {@link ResponseStream#end}
+     * answers the call. Never returns null. The default refuses the call,
+     * for servers that do not stream.
+     */
+    protected ResponseStream callStream(Class<?> protocol, Writable param, long receiveTime)
+            throws IOException {
+        throw new IOException(getClass().getName() + " does not stream responses");
+    }
+
 
     /**
      * The number of open RPC conections
      * @return the number of open rpc connections
      */
     public int getNumOpenConnections() {
-        return numConnections;
+        return numConnections.get();
     }
 
     /**
@@ -1207,6 +2385,93 @@ public abstract class Server {
         return callQueue.size();
     }
 
+    /**
+     * The number of calls dropped without being invoked because the caller's
+     * deadline had passed by the time a handler got to them.
+     * @return the number of expired calls
+     */
+    public long getExpiredCallCount() {
+        return expiredCalls.get();
+    }
+
+    /**
+     * The number of calls made from this JVM without a socket, see
+     * {@link #setInProcessCalls}.
+     * @return the number of in-process calls queued
+     */
+    public long getInProcessCallCount() {
+        return inProcessCallCount.get();
+    }
+
+    /**
+     * The load of every reader thread over the last sample, in reader order.
+     * @return one snapshot per reader
+     */
+    public List<ReaderMetrics> getReaderMetrics() {
+        return listener.getReaderMetrics();
+    }
+
+    /**
+     * Measure the readers' load, used to pick the reader of a new connection
+     * and for rebalancing, in bytes read per second instead of calls read
+     * per second.
+     */
+    public void setBalanceReadersByBytes(boolean byBytes) {
+        this.balanceReadersByBytes = byBytes;
+    }
+
+    /**
+     * Every <code>interval</code> ms, move one connection from the busiest
+     * reader to the least busy one if the busiest has more than twice its
+     * load. Zero, the default, never moves connections once assigned.
+     */
+    public void setReaderRebalanceInterval(long interval) {
+        this.readerRebalanceInterval = interval;
+    }
+
+    /** A snapshot of the load of one reader thread. */
+    public static class ReaderMetrics {
+        private final int reader;
+        private final int connections;
+        private final long calls;
+        private final long bytes;
+        private final double callRate;
+        private final double byteRate;
+
+        ReaderMetrics(int reader, int connections, long calls, long bytes,
+                      double callRate, double byteRate) {
+            this.reader = reader;
+            this.connections = connections;
+            this.calls = calls;
+            this.bytes = bytes;
+            this.callRate = callRate;
+            this.byteRate = byteRate;
+        }
+
+        /** The index of the reader. */
+        public int getReader() { return reader; }
+
+        /** The number of connections the reader serves. */
+        public int getConnections() { return connections; }
+
+        /** The number of calls the reader has read. */
+        public long getCalls() { return calls; }
+
+        /** The number of bytes the reader has read. */
+        public long getBytes() { return bytes; }
+
+        /** Calls read per second over the last sample. */
+        public double getCallRate() { return callRate; }
+
+        /** Bytes read per second over the last sample. */
+        public double getByteRate() { return byteRate; }
+
+        public String toString() {
+            return "reader=" + reader + " connections=" + connections +
+                    " calls/s=" + callRate + " bytes/s=" + byteRate;
+        }
+    }
+
 
     /**
      * When the read or write buffer size is larger than this limit, i/o will be
@@ -1215,6 +2480,15 @@ public abstract class Server {
      */
     private static int NIO_BUFFER_LIMIT = 8*1024; //should not be more than 64KB.
 
+    /** Precision in ms of idle connection and response timeouts. */
+    private static final int TIMER_TICK = 100;
+
+    /** Most responses of one connection written by one gathering write. */
+    private static final int MAX_GATHERED_RESPONSES = 16;
+
+    /** Most bytes of one gathering write, unless a single response is larger. */
+    private static final int MAX_GATHERED_BYTES = 64*1024;
+
     /**
      * This is a wrapper around {@link WritableByteChannel#write(ByteBuffer)}.
      * If the amount of data is large, it writes to channel in smaller chunks.
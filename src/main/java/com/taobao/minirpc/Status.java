@@ -6,6 +6,8 @@ package com.taobao.minirpc;
 enum Status {
     SUCCESS (0),
     ERROR (1),
+    TIMEOUT (2),    // the call's deadline passed before it was handled
+    CHUNK (3),      // one chunk of a streamed response, the call goes on
     FATAL (-1);
 
     int state;
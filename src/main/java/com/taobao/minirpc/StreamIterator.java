@@ -0,0 +1,22 @@
+package com.taobao.minirpc;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * The chunks of a streamed response, read lazily as they arrive. A
+ * protocol method declared to return an <code>Iterator&lt;T&gt;</code> or a
+ * <code>StreamIterator&lt;T&gt;</code> is a streaming method: the proxy
+ * returns one of these as soon as the call is sent.
+ *
+ * {@link #hasNext} waits for the next chunk. It throws an
+ * {@link java.io.UncheckedIOException} wrapping the remote or local exception
+ * if the call fails, after the chunks received before the failure. Closing
+ * the iterator before the end cancels the stream on the server; an iterator
+ * that is neither drained nor closed keeps its connection busy.
+ */
+public interface StreamIterator<T> extends Iterator<T>, Closeable {
+
+    /** Cancel the stream, if it has not ended. */
+    void close();
+}
@@ -0,0 +1,153 @@
+package com.taobao.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free map from int keys to values, meant for tables of outstanding
+ * requests keyed by sequentially assigned IDs.
+ *
+ * A key lives in the slot <code>key & (capacity - 1)</code>, claimed with a
+ * compare-and-set, so a sequence of IDs with fewer than <code>capacity</code>
+ * entries outstanding never collides and never boxes its keys. A key whose
+ * slot is still held by an older entry goes to an overflow
+ * {@link ConcurrentHashMap}, which is only consulted while it is not empty.
+ *
+ * Keys must be unique: putting a key that is already in the map is not
+ * supported.
+ */
+public class ConcurrentIntMap<V> {
+
+    private static final class Entry<V> {
+        final int key;
+        final V value;
+
+        Entry(int key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    private final int mask;
+    private final ConcurrentHashMap<Integer, V> overflow =
+            new ConcurrentHashMap<Integer, V>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Create a map with 1024 slots. */
+    public ConcurrentIntMap() {
+        this(1024);
+    }
+
+    /**
+     * Create a map with at least the given number of slots, rounded up to a
+     * power of two.
+     */
+    public ConcurrentIntMap(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        int n = Integer.highestOneBit(capacity);
+        if (n < capacity) {
+            n <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<Entry<V>>(n);
+        this.mask = n - 1;
+    }
+
+    /** Map a key that is not in the map to a non-null value. */
+    public void put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        if (!slots.compareAndSet(key & mask, null, new Entry<V>(key, value))) {
+            overflow.put(key, value);
+        }
+        size.incrementAndGet();
+    }
+
+    /** Return the value of a key, or null if the key is not in the map. */
+    public V get(int key) {
+        Entry<V> entry = slots.get(key & mask);
+        if (entry != null && entry.key == key) {
+            return entry.value;
+        }
+        return overflow.isEmpty() ? null : overflow.get(key);
+    }
+
+    /**
+     * Remove a key. When several threads remove the same key only one of
+     * them gets its value.
+     *
+     * @return the value of the key, or null if the key is not in the map.
+     */
+    public V remove(int key) {
+        int i = key & mask;
+        Entry<V> entry = slots.get(i);
+        if (entry != null && entry.key == key) {
+            if (slots.compareAndSet(i, entry, null)) {
+                size.decrementAndGet();
+                return entry.value;
+            }
+            return null;
+        }
+        V value = overflow.isEmpty() ? null : overflow.remove(key);
+        if (value != null) {
+            size.decrementAndGet();
+        }
+        return value;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Return the values of the entries present when the scan reaches them,
+     * without removing them.
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<V>(size.get());
+        for (int i = 0; i < slots.length(); i++) {
+            Entry<V> entry = slots.get(i);
+            if (entry != null) {
+                values.add(entry.value);
+            }
+        }
+        if (!overflow.isEmpty()) {
+            values.addAll(overflow.values());
+        }
+        return values;
+    }
+
+    /**
+     * Remove every entry present when the scan reaches it.
+     *
+     * @return the removed values
+     */
+    public List<V> removeAll() {
+        List<V> removed = new ArrayList<V>();
+        for (int i = 0; i < slots.length(); i++) {
+            Entry<V> entry = slots.get(i);
+            if (entry != null && slots.compareAndSet(i, entry, null)) {
+                size.decrementAndGet();
+                removed.add(entry.value);
+            }
+        }
+        for (Map.Entry<Integer, V> entry : overflow.entrySet()) {
+            if (overflow.remove(entry.getKey(), entry.getValue())) {
+                size.decrementAndGet();
+                removed.add(entry.getValue());
+            }
+        }
+        return removed;
+    }
+}
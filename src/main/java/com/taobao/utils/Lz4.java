@@ -0,0 +1,191 @@
+package com.taobao.utils;
+
+import java.io.IOException;
+
+/**
+ * A pure Java LZ4 block compressor: fast, with a modest compression ratio,
+ * meant for data that goes over the network once.
+ *
+ * The output is the LZ4 block format: a series of sequences, each a token
+ * byte holding the literal and match lengths, the literals, and the
+ * two-byte offset of the match, lengths over 15 continued in extra bytes.
+ * The last sequence has literals only. The block does not record its
+ * uncompressed length, the caller has to pass it on.
+ *
+ * The compressor uses a single hash table of recent positions and no match
+ * search, the "fast" level of the reference implementation.
+ */
+public final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;   // a block ends with at least 5 literals
+    private static final int MF_LIMIT = 12;       // no match starts in the last 12 bytes
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;    // speeds up on incompressible data
+
+    private Lz4() {}
+
+    /** The largest compressed size of <code>length</code> bytes. */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress <code>src[srcOff, srcOff + srcLen)</code> into
+     * <code>dst</code> starting at <code>dstOff</code>, which must have room
+     * for {@link #maxCompressedLength} bytes.
+     * @return the compressed length
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + srcLen;
+        int anchor = srcOff;                      // start of the pending literals
+        int op = dstOff;
+        if (srcLen >= MF_LIMIT + 1) {
+            int[] table = new int[1 << HASH_LOG];  // position + 1, 0 if none
+            int mfLimit = srcEnd - MF_LIMIT;
+            int matchLimit = srcEnd - LAST_LITERALS;
+            int ip = srcOff;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h] - 1;
+                table[h] = ip + 1;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        // the last literals
+        int literals = srcEnd - anchor;
+        int token = op++;
+        if (literals >= 15) {
+            dst[token] = (byte) 0xF0;
+            op = writeLength(literals - 15, dst, op);
+        } else {
+            dst[token] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    /**
+     * Decompress <code>src[srcOff, srcOff + srcLen)</code>, a whole block,
+     * into <code>dst</code> starting at <code>dstOff</code>.
+     * @param length the uncompressed length
+     * @throws IOException if the block is corrupt or does not decompress to
+     *                     exactly <code>length</code> bytes
+     */
+    public static void decompress(byte[] src, int srcOff, int srcLen,
+                                  byte[] dst, int dstOff, int length) throws IOException {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + length;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > srcEnd - ip || literals > dstEnd - op) {
+                    throw new IOException("Corrupt LZ4 block: literals past the end");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == srcEnd) {
+                    break;                        // the last sequence
+                }
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff || matchLength > dstEnd - op) {
+                    throw new IOException("Corrupt LZ4 block: bad match at " + (op - dstOff));
+                }
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                    op += matchLength;
+                } else {
+                    for (int end = op + matchLength; op < end; ) {   // overlapping copy
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ4 block: truncated");
+        }
+        if (op != dstEnd) {
+            throw new IOException("Corrupt LZ4 block: " + (op - dstOff) +
+                    " bytes instead of " + length);
+        }
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals,
+                                     int offset, int matchLength, byte[] dst, int op) {
+        int token = op++;
+        int tokenValue;
+        if (literals >= 15) {
+            tokenValue = 0xF0;
+            op = writeLength(literals - 15, dst, op);
+        } else {
+            tokenValue = literals << 4;
+        }
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int length = matchLength - MIN_MATCH;
+        if (length >= 15) {
+            tokenValue |= 0x0F;
+            op = writeLength(length - 15, dst, op);
+        } else {
+            tokenValue |= length;
+        }
+        dst[token] = (byte) tokenValue;
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) |
+                ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -45,12 +45,16 @@ public class NetUtils {
      *   <host>
      *   <host>:<post>
      *   <fs>://<host>:<port>/<path>
+     *   unix:<path>, see {@link UnixSocketAddress}
      */
     public static InetSocketAddress createSocketAddr(String target,
                                                      int defaultPort) {
         if (target == null) {
             throw new IllegalArgumentException("Socket address is null");
         }
+        if (UnixSocketAddress.hasScheme(target)) {
+            return UnixSocketAddress.parse(target);
+        }
         boolean hasScheme = target.contains("://");
         URI uri = null;
         try {
@@ -82,7 +82,9 @@ public class ObjectWritable implements Writable{
             declaredClass = PRIMITIVE_NAMES.get(className);
             if (declaredClass == null) {
                 try {
-                    declaredClass = getConf().getClassByName(className);
+                    Configuration conf = getConf();   // none if read without one
+                    declaredClass = (conf != null) ? conf.getClassByName(className)
+                            : WritableClassCache.getClass(className);
                 } catch (ClassNotFoundException e) {
                     throw new RuntimeException(e.toString());
                 }
@@ -107,38 +109,13 @@ public class ObjectWritable implements Writable{
         UTF8.writeString(out, declaredClass.getName()); // always write declared
 
         if (declaredClass.isArray()) {                // array
-            int length = Array.getLength(instance);
-            out.writeInt(length);
-            for (int i = 0; i < length; i++) {
-                writeObject(out, Array.get(instance, i),
-                        declaredClass.getComponentType(), conf);
-            }
+            writeArray(out, instance, declaredClass.getComponentType(), conf);
 
         } else if (declaredClass == String.class) {   // String
             UTF8.writeString(out, (String)instance);
 
         } else if (declaredClass.isPrimitive()) {     // primitive type
-
-            if (declaredClass == Boolean.TYPE) {        // boolean
-                out.writeBoolean(((Boolean)instance).booleanValue());
-            } else if (declaredClass == Character.TYPE) { // char
-                out.writeChar(((Character)instance).charValue());
-            } else if (declaredClass == Byte.TYPE) {    // byte
-                out.writeByte(((Byte)instance).byteValue());
-            } else if (declaredClass == Short.TYPE) {   // short
-                out.writeShort(((Short)instance).shortValue());
-            } else if (declaredClass == Integer.TYPE) { // int
-                out.writeInt(((Integer)instance).intValue());
-            } else if (declaredClass == Long.TYPE) {    // long
-                out.writeLong(((Long)instance).longValue());
-            } else if (declaredClass == Float.TYPE) {   // float
-                out.writeFloat(((Float)instance).floatValue());
-            } else if (declaredClass == Double.TYPE) {  // double
-                out.writeDouble(((Double)instance).doubleValue());
-            } else if (declaredClass == Void.TYPE) {    // void
-            } else {
-                throw new IllegalArgumentException("Not a primitive: "+declaredClass);
-            }
+            writePrimitive(out, instance, declaredClass);
         } else if (declaredClass.isEnum()) {         // enum
             UTF8.writeString(out, ((Enum)instance).name());
         } else if (Writable.class.isAssignableFrom(declaredClass)) { // Writable
@@ -167,7 +144,7 @@ public class ObjectWritable implements Writable{
         Class<?> declaredClass = PRIMITIVE_NAMES.get(className);
         if (declaredClass == null) {
             try {
-                declaredClass = Class.forName(className);
+                declaredClass = WritableClassCache.getClass(className);
             } catch (ClassNotFoundException e) {
                 throw new RuntimeException("readObject can't find class " + className, e);
             }
@@ -176,35 +153,9 @@ public class ObjectWritable implements Writable{
         Object instance;
 
         if (declaredClass.isPrimitive()) {            // primitive types
-
-            if (declaredClass == Boolean.TYPE) {             // boolean
-                instance = Boolean.valueOf(in.readBoolean());
-            } else if (declaredClass == Character.TYPE) {    // char
-                instance = Character.valueOf(in.readChar());
-            } else if (declaredClass == Byte.TYPE) {         // byte
-                instance = Byte.valueOf(in.readByte());
-            } else if (declaredClass == Short.TYPE) {        // short
-                instance = Short.valueOf(in.readShort());
-            } else if (declaredClass == Integer.TYPE) {      // int
-                instance = Integer.valueOf(in.readInt());
-            } else if (declaredClass == Long.TYPE) {         // long
-                instance = Long.valueOf(in.readLong());
-            } else if (declaredClass == Float.TYPE) {        // float
-                instance = Float.valueOf(in.readFloat());
-            } else if (declaredClass == Double.TYPE) {       // double
-                instance = Double.valueOf(in.readDouble());
-            } else if (declaredClass == Void.TYPE) {         // void
-                instance = null;
-            } else {
-                throw new IllegalArgumentException("Not a primitive: "+declaredClass);
-            }
-
+            instance = readPrimitive(in, declaredClass);
         } else if (declaredClass.isArray()) {              // array
-            int length = in.readInt();
-            instance = Array.newInstance(declaredClass.getComponentType(), length);
-            for (int i = 0; i < length; i++) {
-                Array.set(instance, i, readObject(in, conf));
-            }
+            instance = readArray(in, declaredClass.getComponentType(), conf);
 
         } else if (declaredClass == String.class) {        // String
             instance = UTF8.readString(in);
@@ -215,12 +166,12 @@ public class ObjectWritable implements Writable{
             String str = "";
             try {
                 str = UTF8.readString(in);
-                instanceClass = Class.forName(str);
+                instanceClass = WritableClassCache.getClass(str);
             } catch (ClassNotFoundException e) {
                 throw new RuntimeException("readObject can't find class " + str, e);
             }
 
-            Writable writable = WritableFactories.newInstance(instanceClass);
+            Writable writable = WritableClassCache.newInstance(instanceClass, conf);
             writable.readFields(in);
             instance = writable;
 
@@ -238,5 +189,337 @@ public class ObjectWritable implements Writable{
         return instance;
 
     }
-}
 
+    // Encodings of the elements of an array of objects, written after its length
+    private static final byte ARRAY_ELEMENTS = 0;     // each element with its class names
+    private static final byte ARRAY_WRITABLES = 1;    // one Writable class name, then the elements
+
+    /** Write the length and the elements of an array. Primitive elements are
+     * written back to back; a non-empty array of Writables that all have the
+     * same class is written with that class name once. */
+    @SuppressWarnings("deprecation") // names are UTF8, as writeObject writes them
+    private static void writeArray(DataOutput out, Object instance,
+                                   Class<?> componentType,
+                                   Configuration conf) throws IOException {
+        int length = Array.getLength(instance);
+        out.writeInt(length);
+        if (componentType.isPrimitive()) {
+            writePrimitiveArray(out, instance, componentType);
+            return;
+        }
+
+        Object[] array = (Object[])instance;
+        Class<?> elementClass = getWritableElementClass(array, componentType);
+        if (elementClass != null) {
+            out.writeByte(ARRAY_WRITABLES);
+            UTF8.writeString(out, elementClass.getName());
+            for (int i = 0; i < length; i++) {
+                ((Writable)array[i]).write(out);
+            }
+        } else {
+            out.writeByte(ARRAY_ELEMENTS);
+            for (int i = 0; i < length; i++) {
+                writeObject(out, array[i], componentType, conf);
+            }
+        }
+    }
+
+    /** Read an array written by {@link #writeArray}. */
+    @SuppressWarnings("deprecation") // names are UTF8, as writeObject writes them
+    private static Object readArray(DataInput in, Class<?> componentType,
+                                    Configuration conf) throws IOException {
+        int length = in.readInt();
+        if (componentType.isPrimitive()) {
+            return readPrimitiveArray(in, componentType, length);
+        }
+
+        Object[] array = (Object[])Array.newInstance(componentType, length);
+        byte encoding = in.readByte();
+        if (encoding == ARRAY_WRITABLES) {
+            String str = UTF8.readString(in);
+            Class<?> elementClass;
+            try {
+                elementClass = WritableClassCache.getClass(str);
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException("readObject can't find class " + str, e);
+            }
+            for (int i = 0; i < length; i++) {
+                Writable writable = WritableClassCache.newInstance(elementClass, conf);
+                writable.readFields(in);
+                array[i] = writable;
+            }
+        } else if (encoding == ARRAY_ELEMENTS) {
+            for (int i = 0; i < length; i++) {
+                array[i] = readObject(in, conf);
+            }
+        } else {
+            throw new IOException("Unknown array encoding " + encoding);
+        }
+        return array;
+    }
+
+    /** Return the class shared by all elements of a non-empty array of
+     * Writables, or null if there is no such class or an element is null. */
+    private static Class<?> getWritableElementClass(Object[] array,
+                                                    Class<?> componentType) {
+        if (array.length == 0 || !Writable.class.isAssignableFrom(componentType)) {
+            return null;
+        }
+        Class<?> elementClass = null;
+        for (Object element : array) {
+            if (element == null) {
+                return null;
+            }
+            if (elementClass == null) {
+                elementClass = element.getClass();
+            } else if (element.getClass() != elementClass) {
+                return null;
+            }
+        }
+        return elementClass;
+    }
+
+    private static void writePrimitiveArray(DataOutput out, Object instance,
+                                            Class<?> componentType) throws IOException {
+        if (componentType == Byte.TYPE) {                // byte[]
+            out.write((byte[])instance);
+        } else if (componentType == Integer.TYPE) {      // int[]
+            for (int v : (int[])instance) {
+                out.writeInt(v);
+            }
+        } else if (componentType == Long.TYPE) {         // long[]
+            for (long v : (long[])instance) {
+                out.writeLong(v);
+            }
+        } else if (componentType == Double.TYPE) {       // double[]
+            for (double v : (double[])instance) {
+                out.writeDouble(v);
+            }
+        } else if (componentType == Boolean.TYPE) {      // boolean[]
+            for (boolean v : (boolean[])instance) {
+                out.writeBoolean(v);
+            }
+        } else if (componentType == Character.TYPE) {    // char[]
+            for (char v : (char[])instance) {
+                out.writeChar(v);
+            }
+        } else if (componentType == Short.TYPE) {        // short[]
+            for (short v : (short[])instance) {
+                out.writeShort(v);
+            }
+        } else if (componentType == Float.TYPE) {        // float[]
+            for (float v : (float[])instance) {
+                out.writeFloat(v);
+            }
+        } else {
+            throw new IllegalArgumentException("Not a primitive array: "+componentType);
+        }
+    }
+
+    private static Object readPrimitiveArray(DataInput in, Class<?> componentType,
+                                             int length) throws IOException {
+        if (componentType == Byte.TYPE) {                // byte[]
+            byte[] array = new byte[length];
+            in.readFully(array);
+            return array;
+        } else if (componentType == Integer.TYPE) {      // int[]
+            int[] array = new int[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = in.readInt();
+            }
+            return array;
+        } else if (componentType == Long.TYPE) {         // long[]
+            long[] array = new long[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = in.readLong();
+            }
+            return array;
+        } else if (componentType == Double.TYPE) {       // double[]
+            double[] array = new double[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = in.readDouble();
+            }
+            return array;
+        } else if (componentType == Boolean.TYPE) {      // boolean[]
+            boolean[] array = new boolean[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = in.readBoolean();
+            }
+            return array;
+        } else if (componentType == Character.TYPE) {    // char[]
+            char[] array = new char[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = in.readChar();
+            }
+            return array;
+        } else if (componentType == Short.TYPE) {        // short[]
+            short[] array = new short[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = in.readShort();
+            }
+            return array;
+        } else if (componentType == Float.TYPE) {        // float[]
+            float[] array = new float[length];
+            for (int i = 0; i < length; i++) {
+                array[i] = in.readFloat();
+            }
+            return array;
+        } else {
+            throw new IllegalArgumentException("Not a primitive array: "+componentType);
+        }
+    }
+
+    private static void writePrimitive(DataOutput out, Object instance,
+                                       Class<?> declaredClass) throws IOException {
+        if (declaredClass == Boolean.TYPE) {        // boolean
+            out.writeBoolean(((Boolean)instance).booleanValue());
+        } else if (declaredClass == Character.TYPE) { // char
+            out.writeChar(((Character)instance).charValue());
+        } else if (declaredClass == Byte.TYPE) {    // byte
+            out.writeByte(((Byte)instance).byteValue());
+        } else if (declaredClass == Short.TYPE) {   // short
+            out.writeShort(((Short)instance).shortValue());
+        } else if (declaredClass == Integer.TYPE) { // int
+            out.writeInt(((Integer)instance).intValue());
+        } else if (declaredClass == Long.TYPE) {    // long
+            out.writeLong(((Long)instance).longValue());
+        } else if (declaredClass == Float.TYPE) {   // float
+            out.writeFloat(((Float)instance).floatValue());
+        } else if (declaredClass == Double.TYPE) {  // double
+            out.writeDouble(((Double)instance).doubleValue());
+        } else if (declaredClass == Void.TYPE) {    // void
+        } else {
+            throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+        }
+    }
+
+    private static Object readPrimitive(DataInput in, Class<?> declaredClass)
+            throws IOException {
+        if (declaredClass == Boolean.TYPE) {             // boolean
+            return Boolean.valueOf(in.readBoolean());
+        } else if (declaredClass == Character.TYPE) {    // char
+            return Character.valueOf(in.readChar());
+        } else if (declaredClass == Byte.TYPE) {         // byte
+            return Byte.valueOf(in.readByte());
+        } else if (declaredClass == Short.TYPE) {        // short
+            return Short.valueOf(in.readShort());
+        } else if (declaredClass == Integer.TYPE) {      // int
+            return Integer.valueOf(in.readInt());
+        } else if (declaredClass == Long.TYPE) {         // long
+            return Long.valueOf(in.readLong());
+        } else if (declaredClass == Float.TYPE) {        // float
+            return Float.valueOf(in.readFloat());
+        } else if (declaredClass == Double.TYPE) {       // double
+            return Double.valueOf(in.readDouble());
+        } else if (declaredClass == Void.TYPE) {         // void
+            return null;
+        } else {
+            throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+        }
+    }
+
+    // Tags of the compact encoding, written before every non-primitive value
+    private static final byte COMPACT_NULL = 0;        // null
+    private static final byte COMPACT_DECLARED = 1;    // instance of the declared class
+    private static final byte COMPACT_SUBCLASS = 2;    // Writable subclass, name follows
+
+    /** Write a {@link Writable}, {@link String}, primitive type, or an array of
+     * the preceding, without class names where the reader can derive them
+     * from <code>declaredClass</code>. Read it back with
+     * {@link #readObjectCompact(DataInput, Class, Configuration)} and the
+     * same declared class. */
+    @SuppressWarnings("deprecation") // names are UTF8, as writeObject writes them
+    public static void writeObjectCompact(DataOutput out, Object instance,
+                                          Class<?> declaredClass,
+                                          Configuration conf) throws IOException {
+        if (declaredClass.isPrimitive()) {            // primitive type
+            writePrimitive(out, instance, declaredClass);
+            return;
+        }
+        if (instance == null) {                       // null
+            out.writeByte(COMPACT_NULL);
+            return;
+        }
+
+        if (declaredClass.isArray()) {                // array
+            out.writeByte(COMPACT_DECLARED);
+            int length = Array.getLength(instance);
+            out.writeInt(length);
+            Class<?> componentType = declaredClass.getComponentType();
+            if (componentType.isPrimitive()) {
+                writePrimitiveArray(out, instance, componentType);
+            } else {
+                Object[] array = (Object[])instance;
+                for (int i = 0; i < length; i++) {
+                    writeObjectCompact(out, array[i], componentType, conf);
+                }
+            }
+        } else if (declaredClass == String.class) {   // String
+            out.writeByte(COMPACT_DECLARED);
+            UTF8.writeString(out, (String)instance);
+        } else if (declaredClass.isEnum()) {         // enum
+            out.writeByte(COMPACT_DECLARED);
+            UTF8.writeString(out, ((Enum<?>)instance).name());
+        } else if (Writable.class.isAssignableFrom(declaredClass)) { // Writable
+            if (instance.getClass() == declaredClass) {
+                out.writeByte(COMPACT_DECLARED);
+            } else {
+                out.writeByte(COMPACT_SUBCLASS);
+                UTF8.writeString(out, instance.getClass().getName());
+            }
+            ((Writable)instance).write(out);
+        } else {
+            throw new IOException("Can't write: "+instance+" as "+declaredClass);
+        }
+    }
+
+    /** Read a value written by
+     * {@link #writeObjectCompact(DataOutput, Object, Class, Configuration)}. */
+    @SuppressWarnings("deprecation") // names are UTF8, as writeObject writes them
+    public static Object readObjectCompact(DataInput in, Class<?> declaredClass,
+                                           Configuration conf) throws IOException {
+        if (declaredClass.isPrimitive()) {            // primitive type
+            return readPrimitive(in, declaredClass);
+        }
+        byte tag = in.readByte();
+        if (tag == COMPACT_NULL) {                    // null
+            return null;
+        }
+
+        if (declaredClass.isArray()) {                // array
+            int length = in.readInt();
+            Class<?> componentType = declaredClass.getComponentType();
+            if (componentType.isPrimitive()) {
+                return readPrimitiveArray(in, componentType, length);
+            }
+            Object[] array = (Object[])Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) {
+                array[i] = readObjectCompact(in, componentType, conf);
+            }
+            return array;
+        } else if (declaredClass == String.class) {   // String
+            return UTF8.readString(in);
+        } else if (declaredClass.isEnum()) {         // enum
+            return enumValueOf(declaredClass, UTF8.readString(in));
+        } else {                                      // Writable
+            Class<?> instanceClass = declaredClass;
+            if (tag == COMPACT_SUBCLASS) {
+                String str = UTF8.readString(in);
+                try {
+                    instanceClass = WritableClassCache.getClass(str);
+                } catch (ClassNotFoundException e) {
+                    throw new RuntimeException("readObjectCompact can't find class " + str, e);
+                }
+            }
+            Writable writable = WritableClassCache.newInstance(instanceClass, conf);
+            writable.readFields(in);
+            return writable;
+        }
+    }
+
+    /** The constant of the given name of a class known to be an enum. */
+    @SuppressWarnings("unchecked")
+    private static <E extends Enum<E>> E enumValueOf(Class<?> enumClass, String name) {
+        return Enum.valueOf((Class<E>) enumClass, name);
+    }
+}
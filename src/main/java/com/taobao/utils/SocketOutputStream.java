@@ -10,6 +10,7 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
@@ -122,6 +123,43 @@ public class SocketOutputStream extends OutputStream
         return writer.doIO(src, SelectionKey.OP_WRITE);
     }
 
+    /**
+     * Writes all of the given buffers, handing as many of them as possible
+     * to the channel in each gathering write. Like
+     * {@link #write(byte[], int, int)} this blocks until everything is
+     * written, and closes the stream after a partial write fails.
+     *
+     * @param srcs buffers to write, in order
+     * @param length number of buffers to write from the start of srcs
+     * @throws IOException
+     */
+    public void writeFully(ByteBuffer[] srcs, int length) throws IOException {
+        GatheringByteChannel channel = (GatheringByteChannel) writer.channel;
+        int first = 0;
+        long written = 0;
+        try {
+            while (first < length) {
+                if (!srcs[first].hasRemaining()) {
+                    first++;
+                    continue;
+                }
+                if (!writer.isOpen()) {
+                    throw new IOException("The stream is closed");
+                }
+                long n = channel.write(srcs, first, length - first);
+                if (n == 0) {
+                    waitForWritable();
+                }
+                written += n;
+            }
+        } catch (IOException e) {
+            if (written > 0) {
+                writer.close();
+            }
+            throw e;
+        }
+    }
+
     /**
      * waits for the underlying channel to be ready for writing.
      * The timeout specified for this stream applies to this wait.
@@ -0,0 +1,167 @@
+package com.taobao.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel: one thread that runs tasks after a delay, with
+ * constant time scheduling and cancellation for any number of tasks.
+ *
+ * The wheel is an array of buckets, each covering one tick. A task is put in
+ * the bucket its deadline falls into, together with the number of full
+ * turns of the wheel left before it is due. Every tick the thread expires
+ * the tasks of the current bucket. Tasks run on the wheel thread, so they
+ * must be short. Deadlines are only precise to one tick.
+ *
+ * New tasks are handed to the thread through a lock-free queue, and a
+ * cancelled task stays in its bucket until the thread reaches it, so
+ * callers never take a lock.
+ */
+public class TimingWheel {
+    public static final Log LOG = LogFactory.getLog(TimingWheel.class);
+
+    private static final int ST_WAITING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    /** A scheduled task. */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;                   // in ticks
+        private final AtomicInteger state = new AtomicInteger(ST_WAITING);
+        private long remainingRounds;                  // wheel thread only
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task.
+         * @return true if the task will not run, false if it already ran
+         */
+        public boolean cancel() {
+            return state.compareAndSet(ST_WAITING, ST_CANCELLED) ||
+                    state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts =
+            new ConcurrentLinkedQueue<Timeout>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;                                 // wheel thread only
+
+    /**
+     * Create a wheel and start its thread.
+     *
+     * @param name name of the wheel thread
+     * @param tickDuration duration of one tick
+     * @param unit unit of tickDuration
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = Math.max(unit.toNanos(tickDuration), 1);
+        int n = Integer.highestOneBit(Math.max(ticksPerWheel, 1));
+        if (n < ticksPerWheel) {
+            n <<= 1;
+        }
+        this.wheel = (List<Timeout>[]) new List<?>[n];
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new ArrayList<Timeout>();
+        }
+        this.mask = n - 1;
+        this.worker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /** Run a task once the given delay has passed. */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("Timing wheel is stopped");
+        }
+        // round up: the task runs at the end of the tick its deadline falls in, never before
+        long deadline = (System.nanoTime() - startTime + unit.toNanos(delay) + tickNanos - 1) /
+                tickNanos;
+        Timeout timeout = new Timeout(task, deadline);
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /** Stop the wheel thread. Pending tasks do not run. */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            long nextTick = startTime + (tick + 1) * tickNanos;
+            long sleepNanos = nextTick - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    continue;                          // stopped
+                }
+            }
+            tick++;
+            transferNewTimeouts();
+            expire(wheel[(int) (tick & mask)]);
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.state.get() == ST_CANCELLED) {
+                continue;
+            }
+            long deadline = Math.max(timeout.deadline, tick);  // never in the past
+            timeout.remainingRounds = (deadline - tick) / wheel.length;
+            wheel[(int) (deadline & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.state.get() == ST_CANCELLED) {
+                it.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                it.remove();
+                if (timeout.state.compareAndSet(ST_WAITING, ST_EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        LOG.warn("Timed task threw an exception", t);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.taobao.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The address of a Unix domain socket, a path in the file system, for a
+ * client and a server on the same host: their calls skip the TCP/IP stack.
+ * It is selected by the <code>unix</code> scheme, as in
+ * <code>unix:///var/run/rpc.sock</code>, in a server's bind address and in
+ * {@link NetUtils#createSocketAddr(String)}.
+ *
+ * The address extends InetSocketAddress, as the loopback address and port 0,
+ * so that it goes wherever the address of an RPC server does. Since
+ * InetSocketAddress does not let it override equals, compare two addresses
+ * with {@link #getPath(InetSocketAddress)} as well.
+ *
+ * Unix domain socket channels need Java 16 or later; they are looked up at
+ * run time, and opening one on an older JVM throws
+ * UnsupportedOperationException.
+ */
+public class UnixSocketAddress extends InetSocketAddress {
+    /** For java.io.Serializable */
+    private static final long serialVersionUID = 1L;
+
+    public static final String SCHEME = "unix";
+
+    private static final ProtocolFamily UNIX;
+    private static final Method NEW_ADDRESS;          // UnixDomainSocketAddress.of(String)
+    private static final Method OPEN_CHANNEL;         // SocketChannel.open(ProtocolFamily)
+    private static final Method OPEN_SERVER_CHANNEL;  // ServerSocketChannel.open(ProtocolFamily)
+
+    static {
+        ProtocolFamily unix = null;
+        Method newAddress = null;
+        Method openChannel = null;
+        Method openServerChannel = null;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            newAddress = Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class);
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (IllegalArgumentException e) {
+            unix = null;
+        } catch (ClassNotFoundException e) {
+            unix = null;
+        } catch (NoSuchMethodException e) {
+            unix = null;
+        }
+        UNIX = unix;
+        NEW_ADDRESS = newAddress;
+        OPEN_CHANNEL = openChannel;
+        OPEN_SERVER_CHANNEL = openServerChannel;
+    }
+
+    private final String path;
+
+    public UnixSocketAddress(String path) {
+        super(InetAddress.getLoopbackAddress(), 0);
+        if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("Unix socket path is empty");
+        }
+        this.path = path;
+    }
+
+    /** Whether a target address has the <code>unix</code> scheme. */
+    public static boolean hasScheme(String target) {
+        return target != null && target.startsWith(SCHEME + ":");
+    }
+
+    /**
+     * Build an address from either:
+     *   unix:&lt;path&gt;
+     *   unix://&lt;path&gt;, the path usually absolute as in unix:///tmp/rpc.sock
+     */
+    public static UnixSocketAddress parse(String target) {
+        if (!hasScheme(target)) {
+            throw new IllegalArgumentException("Not a unix socket address: " + target);
+        }
+        String path = target.substring(SCHEME.length() + 1);
+        if (path.startsWith("//")) {
+            path = path.substring(2);
+        }
+        return new UnixSocketAddress(path);
+    }
+
+    /** The path of a Unix socket address, null for any other address. */
+    public static String getPath(InetSocketAddress address) {
+        return address instanceof UnixSocketAddress ? ((UnixSocketAddress) address).path : null;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /** Whether this JVM has Unix domain socket channels. */
+    public static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /** Open a blocking channel connected to the socket at this address. */
+    public SocketChannel connect() throws IOException {
+        SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+        try {
+            channel.connect(toDomainAddress());
+        } catch (IOException e) {
+            IOUtils.closeStream(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Open a server channel bound to this address, which creates the socket
+     * file. Binding fails if the file exists, even if it was left behind by
+     * a server that did not stop; {@link #delete} removes it.
+     */
+    public ServerSocketChannel bind(int backlog) throws IOException {
+        ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, UNIX);
+        try {
+            channel.bind(toDomainAddress(), backlog);
+        } catch (IOException e) {
+            IOUtils.closeStream(channel);
+            BindException bindException = new BindException("Problem binding to " + this +
+                    " : " + e.getMessage());
+            bindException.initCause(e);
+            throw bindException;
+        }
+        return channel;
+    }
+
+    /** Delete the socket file, once the server bound to it is closed. */
+    public boolean delete() {
+        return new File(path).delete();
+    }
+
+    private SocketAddress toDomainAddress() throws IOException {
+        return (SocketAddress) invoke(NEW_ADDRESS, path);
+    }
+
+    private static Object invoke(Method method, Object arg) throws IOException {
+        if (UNIX == null) {
+            throw new UnsupportedOperationException(
+                    "Unix domain sockets are not supported by this JVM");
+        }
+        try {
+            return method.invoke(null, arg);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(
+                    "Unix domain sockets are not supported by this JVM", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return SCHEME + ":" + path;
+    }
+}
@@ -0,0 +1,93 @@
+package com.taobao.utils;
+
+import com.taobao.minirpc.Configurable;
+import com.taobao.minirpc.Writable;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the class names written by {@link ObjectWritable} to classes and
+ * no-arg constructors once, instead of calling {@link Class#forName(String)}
+ * and {@link Class#getDeclaredConstructor} for every value read off the wire.
+ * Factories registered with {@link WritableFactories} still take precedence,
+ * and are looked up on every call so that a later registration is seen.
+ *
+ * The cache is bounded: once it holds {@link #MAX_ENTRIES} names it is
+ * cleared, so a peer sending arbitrary class names can't grow it forever.
+ */
+final class WritableClassCache {
+
+    static final int MAX_ENTRIES = 1024;
+
+    private static final ConcurrentHashMap<String, Class<?>> CLASSES =
+            new ConcurrentHashMap<String, Class<?>>();
+    private static final ConcurrentHashMap<Class<?>, WritableFactory> CONSTRUCTORS =
+            new ConcurrentHashMap<Class<?>, WritableFactory>();
+
+    private WritableClassCache() {}
+
+    /** Return the class of the given name, loading it on first use. */
+    static Class<?> getClass(String name) throws ClassNotFoundException {
+        Class<?> c = CLASSES.get(name);
+        if (c == null) {
+            c = Class.forName(name);
+            if (CLASSES.size() >= MAX_ENTRIES) {
+                CLASSES.clear();
+            }
+            CLASSES.put(name, c);
+        }
+        return c;
+    }
+
+    /** Create a new instance of a Writable class, through its registered
+     * factory if there is one, otherwise through its no-arg constructor. */
+    static Writable newInstance(Class<?> c) {
+        WritableFactory factory = WritableFactories.getFactory(c);
+        if (factory != null) {
+            return factory.newInstance();
+        }
+        factory = CONSTRUCTORS.get(c);
+        if (factory == null) {
+            factory = constructorFactory(c);
+            if (CONSTRUCTORS.size() >= MAX_ENTRIES) {
+                CONSTRUCTORS.clear();
+            }
+            CONSTRUCTORS.put(c, factory);
+        }
+        return factory.newInstance();
+    }
+
+    /** Create a new instance of a Writable class as {@link #newInstance(Class)}
+     * does, and hand it the configuration if it is {@link Configurable}. */
+    static Writable newInstance(Class<?> c, Configuration conf) {
+        Writable writable = newInstance(c);
+        if (conf != null && writable instanceof Configurable) {
+            ((Configurable) writable).setConf(conf);
+        }
+        return writable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static WritableFactory constructorFactory(Class<?> c) {
+        if (!Writable.class.isAssignableFrom(c)) {
+            throw new RuntimeException(c.getName() + " is not a Writable");
+        }
+        final Constructor<? extends Writable> constructor;
+        try {
+            constructor = ((Class<? extends Writable>) c).getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+        return new WritableFactory() {
+            public Writable newInstance() {
+                try {
+                    return constructor.newInstance();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+}
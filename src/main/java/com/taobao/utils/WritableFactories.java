@@ -4,24 +4,24 @@ package com.taobao.utils;
 import com.taobao.minirpc.Configurable;
 import com.taobao.minirpc.Writable;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by shili on 14-2-27.
  */
 public class WritableFactories {
-    private static final HashMap<Class, WritableFactory> CLASS_TO_FACTORY =
-            new HashMap<Class, WritableFactory>();
+    private static final ConcurrentHashMap<Class, WritableFactory> CLASS_TO_FACTORY =
+            new ConcurrentHashMap<Class, WritableFactory>();
 
     private WritableFactories() {}                  // singleton
 
     /** Define a factory for a class. */
-    public static synchronized void setFactory(Class c, WritableFactory factory) {
+    public static void setFactory(Class c, WritableFactory factory) {
         CLASS_TO_FACTORY.put(c, factory);
     }
 
     /** Define a factory for a class. */
-    public static synchronized WritableFactory getFactory(Class c) {
+    public static WritableFactory getFactory(Class c) {
         return CLASS_TO_FACTORY.get(c);
     }
 
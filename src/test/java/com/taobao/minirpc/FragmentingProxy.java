@@ -0,0 +1,118 @@
+package com.taobao.minirpc;
+
+import com.taobao.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards connections to a server, writing what it sends back in fragments
+ * of a few bytes with a pause after each, so that frames reach the client
+ * split across reads, and the server sees a slow reader. Counts the pings
+ * the client sends.
+ */
+class FragmentingProxy extends Thread {
+    private final ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    private final InetSocketAddress target;
+    private final int fragment;
+    private final int receiveBufferSize;            // of the socket to the server, 0 for the default
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    final AtomicInteger pings = new AtomicInteger();
+
+    FragmentingProxy(InetSocketAddress target, int fragment, int receiveBufferSize)
+            throws IOException {
+        this.target = target;
+        this.fragment = fragment;
+        this.receiveBufferSize = receiveBufferSize;
+        setDaemon(true);
+        start();
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) listener.getLocalSocketAddress();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Socket client = listener.accept();
+                client.setTcpNoDelay(true);
+                Socket server = new Socket();
+                if (receiveBufferSize > 0) {
+                    server.setReceiveBufferSize(receiveBufferSize);
+                }
+                server.connect(target);
+                synchronized (sockets) {
+                    sockets.add(client);
+                    sockets.add(server);
+                }
+                pump(client, server, 0);
+                pump(server, client, fragment);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /* Copy from one socket to the other until either closes. */
+    private void pump(final Socket from, final Socket to, final int fragment) {
+        Thread pump = new Thread() {
+            public void run() {
+                byte[] buf = new byte[65536];
+                int ones = 0;                         // 0xff bytes in a row, 4 in a ping
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        if (fragment == 0) {
+                            for (int i = 0; i < n; i++) {
+                                ones = (buf[i] == (byte) 0xff) ? ones + 1 : 0;
+                                if (ones == 4) {
+                                    pings.incrementAndGet();
+                                    ones = 0;
+                                }
+                            }
+                            out.write(buf, 0, n);
+                            continue;
+                        }
+                        for (int off = 0; off < n; off += fragment) {
+                            out.write(buf, off, Math.min(fragment, n - off));
+                            out.flush();
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+                IOUtils.closeSocket(from);
+                IOUtils.closeSocket(to);
+            }
+        };
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    void close() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // ignored
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                IOUtils.closeSocket(socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.taobao.minirpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAsyncCalls {
+    public interface Async extends VersionedProtocol {
+        long VERSION = 1L;
+
+        /** Completed by the test, see {@link AsyncImpl#complete}. */
+        CompletableFuture<String> later(String key) throws IOException;
+
+        String echo(String value) throws IOException;
+    }
+
+    public static class AsyncImpl implements Async {
+        final ConcurrentHashMap<String, CompletableFuture<String>> pending =
+                new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+        public long getProtocolVersion(String protocol, long clientVersion) {
+            return VERSION;
+        }
+
+        public CompletableFuture<String> later(String key) {
+            return future(key);
+        }
+
+        public String echo(String value) {
+            return value;
+        }
+
+        CompletableFuture<String> future(String key) {
+            CompletableFuture<String> created = new CompletableFuture<String>();
+            CompletableFuture<String> future = pending.putIfAbsent(key, created);
+            return future == null ? created : future;
+        }
+
+        void complete(String key, String value) {
+            future(key).complete(value);
+        }
+    }
+
+    private final AsyncImpl instance = new AsyncImpl();
+    private RPC.Server server;
+    private ExecutorService callbacks;
+
+    @Before
+    public void setUp() {
+        callbacks = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "test callback");
+            }
+        });
+        RPC.getClient().setCallbackExecutor(callbacks);
+    }
+
+    @After
+    public void tearDown() {
+        RPC.getClient().setCallbackExecutor(ForkJoinPool.commonPool());
+        callbacks.shutdownNow();
+        server.stop();
+    }
+
+    private Async start(boolean inProcess) throws IOException {
+        server = RPC.getServer(instance, "127.0.0.1", 0, 1, false);
+        server.setInProcessCalls(inProcess);
+        server.start();
+        return (Async) RPC.getProxy(Async.class, Async.VERSION, server.getListenerAddress());
+    }
+
+    /** The name of the thread a stage runs on. */
+    private static final Function<String, String> THREAD_NAME = new Function<String, String>() {
+        public String apply(String value) {
+            return Thread.currentThread().getName();
+        }
+    };
+
+    @Test
+    public void testHandlerNotHeldByPendingResponse() throws Exception {
+        Async proxy = start(false);
+        CompletableFuture<String> a = proxy.later("a");
+        CompletableFuture<String> b = proxy.later("b");
+
+        // the only handler is free while both responses are pending
+        assertEquals("sync", proxy.echo("sync"));
+        assertFalse(a.isDone());
+
+        instance.complete("b", "second");
+        instance.complete("a", "first");
+        assertEquals("first", a.get(5, TimeUnit.SECONDS));
+        assertEquals("second", b.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailedResponse() throws Exception {
+        Async proxy = start(false);
+        CompletableFuture<String> failed = proxy.later("failed");
+        instance.future("failed").completeExceptionally(new IOException("boom"));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("future did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof RemoteException);
+            assertEquals(IOException.class.getName(),
+                    ((RemoteException) e.getCause()).getClassName());
+        }
+        assertEquals("still served", proxy.echo("still served"));
+    }
+
+    @Test
+    public void testStagesRunOnCallbackExecutor() throws Exception {
+        Async proxy = start(false);
+        final CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> blocked = proxy.later("blocking").thenApply(
+                new Function<String, String>() {
+            public String apply(String value) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Thread.currentThread().getName();
+            }
+        });
+        instance.complete("blocking", "value");
+
+        // the stage blocks the callback thread, not the connection
+        assertEquals("echo", proxy.echo("echo"));
+        assertFalse(blocked.isDone());
+        release.countDown();
+        assertEquals("test callback", blocked.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimeoutCompletesOnCallbackExecutor() throws Exception {
+        Async proxy = start(false);
+        RPC.setCallTimeout(proxy, 100, TimeUnit.MILLISECONDS);
+        CompletableFuture<String> expired = proxy.later("never");
+        final CompletableFuture<String> thread = new CompletableFuture<String>();
+        expired.whenComplete(new java.util.function.BiConsumer<String, Throwable>() {
+            public void accept(String value, Throwable e) {
+                thread.complete(Thread.currentThread().getName());
+            }
+        });
+        try {
+            expired.get(5, TimeUnit.SECONDS);
+            fail("call did not time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+        }
+        assertEquals("test callback", thread.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInProcess() throws Exception {
+        Async proxy = start(true);
+        CompletableFuture<String> name = proxy.later("local").thenApply(THREAD_NAME);
+        assertEquals("local", proxy.echo("local"));
+        instance.complete("local", "value");
+        assertEquals("test callback", name.get(5, TimeUnit.SECONDS));
+        assertEquals(2, server.getInProcessCallCount());
+    }
+}
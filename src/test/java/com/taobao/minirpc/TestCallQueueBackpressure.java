@@ -0,0 +1,115 @@
+package com.taobao.minirpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCallQueueBackpressure {
+    public interface Echo extends VersionedProtocol {
+        long VERSION = 1L;
+
+        String echo(String value) throws IOException;
+    }
+
+    /** Holds its single handler in the first call until released. */
+    public static class BlockingEcho implements Echo {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public long getProtocolVersion(String protocol, long clientVersion) {
+            return VERSION;
+        }
+
+        public String echo(String value) throws IOException {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return value;
+        }
+    }
+
+    private final BlockingEcho instance = new BlockingEcho();
+    private RPC.Server server;
+    private ExecutorService callers;
+
+    @Before
+    public void setUp() throws IOException {
+        server = RPC.getServer(instance, "127.0.0.1", 0, 1, false);
+        server.setCallQueue(new FifoCallQueue(1));
+        server.start();
+        callers = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        server.stop();
+    }
+
+    private List<Future<String>> callConcurrently(final Echo proxy, int count) {
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < count; i++) {
+            final String value = "call " + i;
+            results.add(callers.submit(new Callable<String>() {
+                public String call() throws IOException {
+                    return proxy.echo(value);
+                }
+            }));
+        }
+        return results;
+    }
+
+    @Test
+    public void testSuspendedConnectionResumes() throws Exception {
+        Echo proxy = (Echo) RPC.getProxy(Echo.class, Echo.VERSION,
+                server.getListenerAddress());
+        List<Future<String>> results = callConcurrently(proxy, 3);
+
+        // one call in the handler, one in the queue: the third one cannot
+        // be queued and the connection stops being read
+        assertTrue(instance.entered.await(5, TimeUnit.SECONDS));
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (server.getCallQueueLen() < 1 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getCallQueueLen());
+        Thread.sleep(100);
+        for (Future<String> result : results) {
+            assertFalse(result.isDone());
+        }
+
+        instance.release.countDown();
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals("call " + i, results.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, server.getCallQueueLen());
+    }
+
+    @Test
+    public void testManyCallsThroughFullQueue() throws Exception {
+        instance.release.countDown();
+        Echo proxy = (Echo) RPC.getProxy(Echo.class, Echo.VERSION,
+                server.getListenerAddress());
+        List<Future<String>> results = callConcurrently(proxy, 2000);
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals("call " + i, results.get(i).get(30, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.taobao.minirpc;
+
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCompression {
+    private static final Compression[] CODECS = {Compression.DEFLATE, Compression.LZ4};
+    private static final int MAX = Client.DEFAULT_MAX_UNCOMPRESSED_LENGTH;
+
+    private final Random random = new Random(42);
+
+    private static byte[] compressible(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) ('a' + (i % 7));
+        }
+        return b;
+    }
+
+    private byte[] incompressible(int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static byte[] write(Compression codec, byte[] body, int threshold)
+            throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        codec.writeBody(out, body, body.length, threshold);
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    private static byte[] read(Compression codec, byte[] frame, int bodyLength)
+            throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(frame, frame.length);
+        DataInput body = codec.readBody(in, frame.length, MAX);
+        byte[] b = new byte[bodyLength];
+        body.readFully(b);
+        return b;
+    }
+
+    @Test
+    public void testThresholdBoundary() throws IOException {
+        for (Compression codec : CODECS) {
+            byte[] body = compressible(1000);
+            byte[] frame = write(codec, body, 1001);           // one byte short
+            assertEquals(codec + " raw", 0, frame[0]);
+            assertEquals(1 + body.length, frame.length);
+            assertArrayEquals(body, read(codec, frame, body.length));
+
+            frame = write(codec, body, 1000);                  // exactly the threshold
+            assertEquals(codec + " compressed", 1, frame[0]);
+            assertTrue(frame.length < body.length / 4);
+            assertArrayEquals(body, read(codec, frame, body.length));
+        }
+    }
+
+    @Test
+    public void testRawIsReadInPlace() throws IOException {
+        byte[] frame = write(Compression.LZ4, compressible(10), 100);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(frame, frame.length);
+        assertSame(in, Compression.LZ4.readBody(in, frame.length, MAX));
+    }
+
+    @Test
+    public void testEmptyAndShortBodies() throws IOException {
+        for (Compression codec : CODECS) {
+            for (int length = 0; length <= 16; length++) {
+                byte[] body = compressible(length);
+                byte[] frame = write(codec, body, 0);
+                assertArrayEquals(body, read(codec, frame, length));
+            }
+        }
+    }
+
+    @Test
+    public void testIncompressibleIsSentRaw() throws IOException {
+        for (Compression codec : CODECS) {
+            byte[] body = incompressible(5000);
+            byte[] frame = write(codec, body, 0);
+            assertEquals(codec + " raw", 0, frame[0]);
+            assertArrayEquals(body, read(codec, frame, body.length));
+        }
+    }
+
+    @Test
+    public void testLargeBodies() throws IOException {
+        for (Compression codec : CODECS) {
+            byte[] body = new byte[300000];
+            System.arraycopy(incompressible(100000), 0, body, 0, 100000);
+            System.arraycopy(compressible(100000), 0, body, 200000, 100000);
+            byte[] frame = write(codec, body, 1024);
+            assertEquals(codec + " compressed", 1, frame[0]);
+            assertArrayEquals(body, read(codec, frame, body.length));
+        }
+    }
+
+    @Test
+    public void testCorruptBodies() throws IOException {
+        for (Compression codec : CODECS) {
+            byte[] body = compressible(2000);
+            byte[] frame = write(codec, body, 0);
+            assertEquals(1, frame[0]);
+
+            // compressed bytes cut short
+            assertCorrupt(codec, Arrays.copyOf(frame, frame.length - 3));
+
+            // uncompressed length that does not match
+            byte[] wrongLength = frame.clone();
+            wrongLength[4]++;
+            assertCorrupt(codec, wrongLength);
+
+            // negative uncompressed length
+            byte[] negative = frame.clone();
+            negative[1] = (byte) 0x80;
+            assertCorrupt(codec, negative);
+
+            // unknown marker
+            byte[] marker = frame.clone();
+            marker[0] = 7;
+            assertCorrupt(codec, marker);
+        }
+    }
+
+    @Test
+    public void testUncompressedLengthLimits() throws IOException {
+        for (Compression codec : CODECS) {
+            byte[] body = compressible(2000);
+            byte[] frame = write(codec, body, 0);
+
+            // up to the configured limit, not past it
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(frame, frame.length);
+            codec.readBody(in, frame.length, 2000);
+            try {
+                in.reset(frame, frame.length);
+                codec.readBody(in, frame.length, 1999);
+                fail(codec + " inflated past the limit");
+            } catch (IOException e) {
+                // expected
+            }
+
+            // more than the codec could inflate the frame to, within the limit
+            byte[] inflated = frame.clone();
+            inflated[1] = 0x02;                            // 32MB and some
+            assertCorrupt(codec, inflated);
+
+            // the largest length, rejected before it is allocated
+            byte[] huge = frame.clone();
+            huge[1] = 0x7f;
+            huge[2] = huge[3] = huge[4] = (byte) 0xff;
+            assertCorrupt(codec, huge);
+        }
+    }
+
+    @Test
+    public void testNoneIsPassThrough() throws IOException {
+        byte[] body = compressible(2000);
+        byte[] frame = write(Compression.NONE, body, 0);
+        assertArrayEquals("no marker", body, frame);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(frame, frame.length);
+        assertSame(in, Compression.NONE.readBody(in, frame.length, MAX));
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        assertSame("written in place", out, Compression.NONE.startBody(out));
+        Compression.NONE.finishBody(out, out, 0);
+        assertEquals(0, out.getLength());
+    }
+
+    @Test
+    public void testStartAndFinishBody() throws IOException {
+        for (Compression codec : CODECS) {
+            byte[] body = compressible(2000);
+            DataOutputBuffer out = new DataOutputBuffer();
+            out.writeInt(42);                              // frame header
+            DataOutput buf = codec.startBody(out);
+            buf.write(body);
+            assertEquals(4, out.getLength());
+            codec.finishBody(out, buf, 1024);
+
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(out.getData(), out.getLength());
+            assertEquals(42, in.readInt());
+            DataInput read = codec.readBody(in, out.getLength() - 4, MAX);
+            byte[] b = new byte[body.length];
+            read.readFully(b);
+            assertArrayEquals(body, b);
+        }
+    }
+
+    @Test
+    public void testFromOptions() {
+        assertSame(Compression.NONE, Compression.fromOptions(0));
+        assertSame(Compression.DEFLATE, Compression.fromOptions(Compression.DEFLATE.option));
+        assertSame(Compression.LZ4, Compression.fromOptions(Compression.LZ4.option));
+        assertSame(Compression.LZ4,
+                Compression.fromOptions(Compression.DEFLATE.option | Compression.LZ4.option));
+    }
+
+    private static void assertCorrupt(Compression codec, byte[] frame) {
+        try {
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(frame, frame.length);
+            codec.readBody(in, frame.length, MAX);
+            fail(codec + " read a corrupt body");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.taobao.minirpc;
+
+import com.taobao.utils.RetryPolicies;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestConnectionPool {
+    /** A call by key; one that starts with "block" waits to be released. */
+    public static class Request implements Writable {
+        String key;
+
+        public Request() {
+        }
+
+        Request(String key) {
+            this.key = key;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            if (key.equals("unwritable")) {
+                throw new IOException("cannot write " + key);
+            }
+            out.writeUTF(key);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            key = in.readUTF();
+        }
+    }
+
+    // the client port each call came from, and the latches blocked calls wait on
+    private final ConcurrentHashMap<String, Integer> ports = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentHashMap<String, CountDownLatch> latches =
+            new ConcurrentHashMap<String, CountDownLatch>();
+    private final CountDownLatch resume = new CountDownLatch(1); // see testClosingMemberDoesNotBlockGrowth
+    private Server server;
+    private Client client;
+
+    private CountDownLatch latch(String key) {
+        CountDownLatch created = new CountDownLatch(1);
+        CountDownLatch latch = latches.putIfAbsent(key, created);
+        return latch == null ? created : latch;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server("127.0.0.1", 0, Request.class, 8, "test") {
+            public Writable call(Class<?> protocol, Writable param, long receiveTime)
+                    throws IOException {
+                String key = ((Request) param).key;
+                ports.put(key, Server.getRemotePort());
+                if (key.startsWith("block")) {
+                    try {
+                        latch(key).await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return param;
+            }
+        };
+        server.start();
+        client = new Client(Request.class);
+    }
+
+    @After
+    public void tearDown() {
+        for (CountDownLatch latch : latches.values()) {
+            latch.countDown();
+        }
+        resume.countDown();
+        client.stop();
+        server.stop();
+    }
+
+    private Client.ConnectionId connectionId(int maxIdleTime) {
+        return new Client.ConnectionId(server.getListenerAddress(), null, 0, null, maxIdleTime,
+                RetryPolicies.retryUpToMaximumCountWithFixedSleep(3, 1, TimeUnit.SECONDS),
+                false, 60000);
+    }
+
+    /** Start a call and wait until the server has it. */
+    private CompletableFuture<Writable> send(Client.ConnectionId remoteId, String key)
+            throws Exception {
+        CompletableFuture<Writable> future =
+                client.callAsync(new Request(key), remoteId, 0, TimeUnit.SECONDS);
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (!ports.containsKey(key) && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(5);
+        }
+        assertTrue(key + " reached the server", ports.containsKey(key));
+        return future;
+    }
+
+    private void release(CompletableFuture<Writable> future, String key) throws Exception {
+        latch(key).countDown();
+        future.get(5, TimeUnit.SECONDS);
+    }
+
+    private void waitForConnections(int count) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (server.getNumOpenConnections() != count && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getNumOpenConnections());
+    }
+
+    @Test
+    public void testGrowsPastThresholdUpToMax() throws Exception {
+        client.setMaxConnectionsPerId(3);
+        client.setConnectionGrowThreshold(2);
+        Client.ConnectionId remoteId = connectionId(10000);
+        Set<Integer> used = new HashSet<Integer>();
+        for (int i = 0; i < 8; i++) {
+            send(remoteId, "block" + i);
+            used.add(ports.get("block" + i));
+            // a connection is opened for the 3rd and the 5th call, no more
+            assertEquals("after call " + i, i < 2 ? 1 : i < 4 ? 2 : 3, used.size());
+        }
+        assertEquals(3, server.getNumOpenConnections());
+    }
+
+    @Test
+    public void testLeastBusyChosen() throws Exception {
+        client.setMaxConnectionsPerId(2);
+        client.setConnectionGrowThreshold(1);
+        Client.ConnectionId remoteId = connectionId(10000);
+        CompletableFuture<Writable> a = send(remoteId, "blockA");
+        CompletableFuture<Writable> b = send(remoteId, "blockB");
+        int first = ports.get("blockA");
+        int second = ports.get("blockB");
+        assertFalse(first == second);
+
+        // the first connection has no call left, the second one has one
+        release(a, "blockA");
+        CompletableFuture<Writable> c = send(remoteId, "blockC");
+        assertEquals(first, (int) ports.get("blockC"));
+
+        // on a tie the first one is chosen, so the others can go idle
+        release(b, "blockB");
+        release(c, "blockC");
+        send(remoteId, "D").get(5, TimeUnit.SECONDS);
+        assertEquals(first, (int) ports.get("D"));
+    }
+
+    @Test
+    public void testShrinksWhenIdle() throws Exception {
+        client.setMaxConnectionsPerId(2);
+        client.setConnectionGrowThreshold(1);
+        Client.ConnectionId remoteId = connectionId(300);
+        CompletableFuture<Writable> a = send(remoteId, "blockA");
+        CompletableFuture<Writable> b = send(remoteId, "blockB");
+        assertEquals(2, server.getNumOpenConnections());
+        release(a, "blockA");
+        release(b, "blockB");
+
+        // calls keep the first connection busy while the second one idles out
+        int first = ports.get("blockA");
+        long until = System.currentTimeMillis() + 1000;
+        for (int i = 0; System.currentTimeMillis() < until; i++) {
+            send(remoteId, "call" + i).get(5, TimeUnit.SECONDS);
+            assertEquals(first, (int) ports.get("call" + i));
+            Thread.sleep(50);
+        }
+        waitForConnections(1);
+
+        // and then the first one too
+        waitForConnections(0);
+    }
+
+    @Test
+    public void testClosingMemberDoesNotBlockGrowth() throws Exception {
+        // the only event loop hands the first response over to an executor
+        // that holds it, so the connections it would close stay in the pool
+        final CountDownLatch handedOver = new CountDownLatch(1);
+        client.setEventLoopThreads(1);
+        client.setCallbackExecutor(new Executor() {
+            public void execute(Runnable command) {
+                if (handedOver.getCount() > 0) {
+                    handedOver.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                command.run();
+            }
+        });
+        client.setMaxConnectionsPerId(2);
+        client.setConnectionGrowThreshold(1);
+        Client.ConnectionId remoteId = connectionId(10000);
+        CompletableFuture<Writable> a = send(remoteId, "blockA");
+        CompletableFuture<Writable> b = send(remoteId, "blockB");
+        latch("blockA").countDown();
+        assertTrue(handedOver.await(5, TimeUnit.SECONDS));
+
+        // the first connection, now without calls, fails to send and closes
+        CompletableFuture<Writable> failed =
+                client.callAsync(new Request("unwritable"), remoteId, 0, TimeUnit.SECONDS);
+
+        // it still counts towards the pool's size, but the pool grows past it
+        CompletableFuture<Writable> c = send(remoteId, "blockC");
+        assertFalse(ports.get("blockB").equals(ports.get("blockC")));
+        assertEquals(3, server.getNumOpenConnections());
+
+        resume.countDown();
+        a.get(5, TimeUnit.SECONDS);
+        release(b, "blockB");
+        release(c, "blockC");
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("unwritable call answered");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+        }
+        waitForConnections(2);
+    }
+}
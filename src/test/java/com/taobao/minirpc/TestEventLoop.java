@@ -0,0 +1,200 @@
+package com.taobao.minirpc;
+
+import com.taobao.utils.RetryPolicies;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestEventLoop {
+    /** The size of a response, or a negative number of ms to sleep first. */
+    public static class Request implements Writable {
+        int value;
+
+        public Request() {
+        }
+
+        Request(int value) {
+            this.value = value;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+    public static class Blob implements Writable {
+        byte[] bytes;
+
+        public Blob() {
+        }
+
+        Blob(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i * 31 + length);
+        }
+        return b;
+    }
+
+    private Server server;
+    private Client client;
+    private FragmentingProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server("127.0.0.1", 0, Request.class, 4, "test") {
+            public Writable call(Class<?> protocol, Writable param, long receiveTime)
+                    throws IOException {
+                int value = ((Request) param).value;
+                if (value < 0) {
+                    try {
+                        Thread.sleep(-value);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return new Blob(new byte[0]);
+                }
+                return new Blob(content(value));
+            }
+        };
+        server.start();
+        client = new Client(Blob.class);
+        client.setEventLoopThreads(1);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+        if (proxy != null) {
+            proxy.close();
+        }
+        server.stop();
+    }
+
+    /** A connection through a proxy sending fragments of the given size. */
+    private Client.ConnectionId throughProxy(int fragment, int rpcTimeout, int maxIdleTime,
+                                             int pingInterval) throws IOException {
+        proxy = new FragmentingProxy(server.getListenerAddress(), fragment, 0);
+        return connectionId(proxy.getAddress(), rpcTimeout, maxIdleTime, pingInterval);
+    }
+
+    private static Client.ConnectionId connectionId(InetSocketAddress address, int rpcTimeout,
+                                                    int maxIdleTime, int pingInterval) {
+        return new Client.ConnectionId(address, null, rpcTimeout, null, maxIdleTime,
+                RetryPolicies.retryUpToMaximumCountWithFixedSleep(3, 1, TimeUnit.SECONDS),
+                false, pingInterval);
+    }
+
+    private byte[] call(Client.ConnectionId remoteId, int value) throws Exception {
+        return ((Blob) client.call(new Request(value), remoteId)).bytes;
+    }
+
+    @Test
+    public void testSplitFrames() throws Exception {
+        // odd fragments split the length prefixes as well as the bodies
+        Client.ConnectionId remoteId = throughProxy(3, 0, 10000, 60000);
+        for (int length = 0; length < 40; length += 7) {
+            assertArrayEquals(content(length), call(remoteId, length));
+        }
+
+        // responses that arrive together share reads
+        List<CompletableFuture<Writable>> futures = new ArrayList<CompletableFuture<Writable>>();
+        for (int length = 0; length < 100; length++) {
+            futures.add(client.callAsync(new Request(length), remoteId, 0, TimeUnit.SECONDS));
+        }
+        for (int length = 0; length < 100; length++) {
+            assertArrayEquals(content(length),
+                    ((Blob) futures.get(length).get(30, TimeUnit.SECONDS)).bytes);
+        }
+    }
+
+    @Test
+    public void testFramesLargerThanBuffer() throws Exception {
+        Client.ConnectionId remoteId = throughProxy(1500, 0, 10000, 60000);
+
+        // the buffer grows for a large frame, and shrinks back after it
+        int[] lengths = {10, 50000, 10, 8200, 20, 20000, 30};
+        for (int length : lengths) {
+            assertArrayEquals("length " + length, content(length), call(remoteId, length));
+        }
+
+        // a large frame starting in the middle of the buffer
+        List<CompletableFuture<Writable>> futures = new ArrayList<CompletableFuture<Writable>>();
+        int[] mixed = {100, 30000, 200, 9000, 7, 60000, 5};
+        for (int length : mixed) {
+            futures.add(client.callAsync(new Request(length), remoteId, 0, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < mixed.length; i++) {
+            assertArrayEquals("length " + mixed[i], content(mixed[i]),
+                    ((Blob) futures.get(i).get(30, TimeUnit.SECONDS)).bytes);
+        }
+    }
+
+    @Test
+    public void testPingWhileWaiting() throws Exception {
+        Client.ConnectionId remoteId = throughProxy(64, 0, 10000, 100);
+        assertEquals(0, call(remoteId, -600).length);
+        assertTrue("pings sent: " + proxy.pings.get(), proxy.pings.get() >= 2);
+    }
+
+    @Test
+    public void testNoResponseWithinRpcTimeout() throws Exception {
+        Client.ConnectionId remoteId = throughProxy(64, 100, 10000, 100);
+        try {
+            call(remoteId, -2000);
+            fail("call outlived the rpc timeout");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertEquals("no pings with an rpc timeout", 0, proxy.pings.get());
+    }
+
+    @Test
+    public void testIdleConnectionClosed() throws Exception {
+        Client.ConnectionId remoteId = connectionId(server.getListenerAddress(), 0, 200, 60000);
+        assertArrayEquals(content(10), call(remoteId, 10));
+        assertEquals(1, server.getNumOpenConnections());
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (server.getNumOpenConnections() > 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.getNumOpenConnections());
+
+        // a new call opens a new connection
+        assertArrayEquals(content(20), call(remoteId, 20));
+    }
+}
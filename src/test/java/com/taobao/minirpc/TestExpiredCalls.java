@@ -0,0 +1,165 @@
+package com.taobao.minirpc;
+
+import com.taobao.utils.RetryPolicies;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestExpiredCalls {
+    /** Echoed; a negative value holds the handler until released. */
+    public static class Value implements Writable {
+        int value;
+
+        public Value() {
+        }
+
+        Value(int value) {
+            this.value = value;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger invoked = new AtomicInteger();
+    private Server server;
+    private Client client;
+    private Client.ConnectionId remoteId;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server("127.0.0.1", 0, Value.class, 1, "test") {
+            public Writable call(Class<?> protocol, Writable param, long receiveTime)
+                    throws IOException {
+                invoked.incrementAndGet();
+                if (((Value) param).value < 0) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return param;
+            }
+        };
+        server.start();
+        client = new Client(Value.class);
+        remoteId = new Client.ConnectionId(server.getListenerAddress(), null, 0, null, 10000,
+                RetryPolicies.retryUpToMaximumCountWithFixedSleep(3, 1, TimeUnit.SECONDS),
+                false, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        client.stop();
+        server.stop();
+    }
+
+    /** Hold the only handler, then queue a call with a short deadline behind it. */
+    private CompletableFuture<Writable> callBehindSlowHandler() throws Exception {
+        CompletableFuture<Writable> slow =
+                client.callAsync(new Value(-1), remoteId, 0, TimeUnit.SECONDS);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Writable> expiring =
+                client.callAsync(new Value(1), remoteId, 200, TimeUnit.MILLISECONDS);
+        Thread.sleep(300);
+        release.countDown();
+        assertEquals(-1, ((Value) slow.get(5, TimeUnit.SECONDS)).value);
+        return expiring;
+    }
+
+    private static SocketTimeoutException timeoutOf(CompletableFuture<Writable> future)
+            throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expired call answered");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+            return (SocketTimeoutException) e.getCause();
+        }
+        return null;
+    }
+
+    private void waitForExpiredCalls(long count) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (server.getExpiredCallCount() < count && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getExpiredCallCount());
+    }
+
+    @Test
+    public void testServerAnswersTimeout() throws Exception {
+        // stall the client's own timeouts, so the server's answer comes first
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        client.getTimingWheel().schedule(new Runnable() {
+            public void run() {
+                stalled.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        try {
+            CompletableFuture<Writable> expiring = callBehindSlowHandler();
+            String message = timeoutOf(expiring).getMessage();
+            assertTrue(message, message.contains("expired before"));
+        } finally {
+            resume.countDown();
+        }
+        assertEquals(1, server.getExpiredCallCount());
+        assertEquals("the expired call was not invoked", 1, invoked.get());
+
+        // the connection is still good
+        assertEquals(2, ((Value) client.call(new Value(2), remoteId)).value);
+        assertEquals(1, server.getNumOpenConnections());
+    }
+
+    @Test
+    public void testCallerExpiresFirst() throws Exception {
+        CompletableFuture<Writable> expiring = callBehindSlowHandler();
+        String message = timeoutOf(expiring).getMessage();
+        assertTrue(message, message.contains("timed out after 200 ms"));
+
+        // the server drops it all the same, and its answer is dropped too
+        waitForExpiredCalls(1);
+        assertEquals("the expired call was not invoked", 1, invoked.get());
+        assertEquals(2, ((Value) client.call(new Value(2), remoteId)).value);
+        assertEquals(1, server.getNumOpenConnections());
+    }
+
+    @Test
+    public void testCallWithinDeadline() throws Exception {
+        release.countDown();
+        assertEquals(3, ((Value) client.callAsync(new Value(3), remoteId, 5, TimeUnit.SECONDS)
+                .get(5, TimeUnit.SECONDS)).value);
+        assertEquals(0, server.getExpiredCallCount());
+    }
+}
@@ -0,0 +1,214 @@
+package com.taobao.minirpc;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestFairCallQueue {
+    private int nextCaller;
+
+    /** A call from a client address. */
+    private static class Call implements Schedulable {
+        final InetAddress caller;
+        int level = -1;                            // level it was queued on
+
+        Call(InetAddress caller) {
+            this.caller = caller;
+        }
+
+        public InetAddress getRemoteAddress() {
+            return caller;
+        }
+
+        public Server.Connection getConnection() {
+            return null;
+        }
+    }
+
+    /** A caller not seen before. */
+    private InetAddress newCaller() throws UnknownHostException {
+        int i = nextCaller++;
+        return InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+    }
+
+    /** Offer a call, and return the level it went to, -1 if refused. */
+    private static int offer(FairCallQueue queue, Call call) {
+        long[] before = queue.getEnqueuedCounts();
+        if (!queue.offer(call)) {
+            return -1;
+        }
+        long[] after = queue.getEnqueuedCounts();
+        for (int level = 0; level < after.length; level++) {
+            if (after[level] != before[level]) {
+                call.level = level;
+                return level;
+            }
+        }
+        throw new AssertionError("call queued on no level");
+    }
+
+    private static int offer(FairCallQueue queue, InetAddress caller) {
+        return offer(queue, new Call(caller));
+    }
+
+    private static void drain(FairCallQueue queue) throws InterruptedException {
+        while (queue.size() > 0) {
+            queue.take();
+        }
+    }
+
+    @Test
+    public void testLevelByShareOfCalls() throws Exception {
+        FairCallQueue queue = new FairCallQueue(400);    // 100 calls per level
+        for (int i = 0; i < 16; i++) {
+            offer(queue, newCaller());
+        }
+        assertEquals("light caller", 0, offer(queue, newCaller()));
+
+        // 17 calls so far; the heavy caller's share of them, counting the
+        // call being offered, crosses 1/8, 1/4 and 1/2 at its 3rd, 6th and
+        // 17th call
+        InetAddress heavy = newCaller();
+        int[] expected = new int[20];
+        Arrays.fill(expected, 2, 5, 1);
+        Arrays.fill(expected, 5, 16, 2);
+        Arrays.fill(expected, 16, 20, 3);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("call " + i, expected[i], offer(queue, heavy));
+        }
+        assertEquals(37, queue.size());
+    }
+
+    @Test
+    public void testCallerWithoutAddress() {
+        FairCallQueue queue = new FairCallQueue(400);
+        assertEquals(FairCallQueue.DEFAULT_LEVELS - 1, offer(queue, (InetAddress) null));
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws Exception {
+        FairCallQueue queue = new FairCallQueue(4000);   // 1000 calls per level
+        // out of every 48 calls: light callers 3, and three heavy callers
+        // 7, 13 and 25, a share that puts them on levels 1, 2 and 3
+        InetAddress[] heavy = {newCaller(), newCaller(), newCaller()};
+        int[] weight = {3, 7, 13, 25};
+
+        // settle the costs, then queue a round that fills every level
+        List<Call> queued = new ArrayList<Call>();
+        for (int round = 0; round < 4; round++) {
+            drain(queue);
+            queued.clear();
+            int[] sent = new int[weight.length];
+            for (int i = 1; i <= 288; i++) {
+                int who = 0;                         // the caller most behind its share
+                for (int j = 1; j < weight.length; j++) {
+                    if (weight[j] * i - 48 * sent[j] > weight[who] * i - 48 * sent[who]) {
+                        who = j;
+                    }
+                }
+                sent[who]++;
+                Call call = new Call(who == 0 ? newCaller() : heavy[who - 1]);
+                int level = offer(queue, call);
+                if (round == 3) {
+                    assertEquals("caller " + who, who, level);
+                }
+                queued.add(call);
+            }
+        }
+        int[] sizes = queue.getQueueSizes();
+        for (int level = 0; level < sizes.length; level++) {
+            assertTrue("level " + level + ": " + Arrays.toString(sizes), sizes[level] >= 16);
+        }
+
+        // level 0 is served 8 times in a row, each lower level half as often
+        int[] expected = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 3};
+        List<List<Call>> byLevel = new ArrayList<List<Call>>();
+        for (int level = 0; level < sizes.length; level++) {
+            byLevel.add(new ArrayList<Call>());
+        }
+        for (Call call : queued) {
+            byLevel.get(call.level).add(call);
+        }
+        for (int turn = 0; turn < 2; turn++) {
+            for (int level : expected) {
+                Call call = (Call) queue.take();
+                assertEquals(level, call.level);
+                assertSame("FIFO within a level", byLevel.get(level).remove(0), call);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyLevelIsSkipped() throws Exception {
+        FairCallQueue queue = new FairCallQueue(400);
+        InetAddress caller = newCaller();
+        Call first = new Call(caller);
+        Call second = new Call(caller);
+        assertEquals(3, offer(queue, first));       // a lone caller has all the calls
+        assertEquals(3, offer(queue, second));
+        assertSame(first, queue.take());
+        assertSame(second, queue.take());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFullLevel() throws Exception {
+        FairCallQueue queue = new FairCallQueue(8);      // 2 calls per level
+        InetAddress heavy = newCaller();
+        assertEquals(3, offer(queue, heavy));
+        assertEquals(3, offer(queue, heavy));
+        assertEquals("level full", -1, offer(queue, heavy));
+        assertEquals(2, queue.size());
+
+        // the refused call was not charged: 1 of 3 calls is on level 2
+        assertEquals("other levels have room", 2, offer(queue, newCaller()));
+        assertArrayEquals(new int[] {0, 0, 1, 2}, queue.getQueueSizes());
+        assertArrayEquals(new long[] {0, 0, 1, 2}, queue.getEnqueuedCounts());
+
+        assertEquals(2, ((Call) queue.take()).level);     // higher level first
+        assertEquals("still full", -1, offer(queue, heavy));
+        assertEquals(3, ((Call) queue.take()).level);
+        assertEquals("room made", 3, offer(queue, heavy));
+    }
+
+    @Test
+    public void testDecay() throws Exception {
+        FairCallQueue queue = new FairCallQueue(400);
+        queue.setDecay(200, 0.01);
+        InetAddress heavy = newCaller();
+        for (int i = 0; i < 40; i++) {
+            offer(queue, heavy);
+        }
+        for (int i = 0; i < 16; i++) {
+            offer(queue, newCaller());
+        }
+        assertEquals(3, offer(queue, heavy));
+        drain(queue);
+
+        // a period later the costs are forgotten, the first call decays them
+        Thread.sleep(300);
+        for (int i = 0; i < 16; i++) {
+            offer(queue, newCaller());
+        }
+        assertEquals("heavy caller forgiven", 0, offer(queue, heavy));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalDecay() {
+        new FairCallQueue(400).setDecay(1000, 1.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalLevels() {
+        new FairCallQueue(400, 0, false);
+    }
+}
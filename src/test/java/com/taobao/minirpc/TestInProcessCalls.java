@@ -0,0 +1,221 @@
+package com.taobao.minirpc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestInProcessCalls {
+    /** A mutable parameter, to tell a copy from the caller's own. */
+    public static class Holder implements Writable {
+        public int value;
+
+        public Holder() {
+        }
+
+        Holder(int value) {
+            this.value = value;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+    public interface Local extends VersionedProtocol {
+        long VERSION = 1L;
+
+        Holder increment(Holder holder) throws IOException;
+
+        String remoteAddress() throws IOException;
+
+        String block(String value) throws IOException;
+    }
+
+    public static class LocalImpl implements Local {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public long getProtocolVersion(String protocol, long clientVersion) {
+            return VERSION;
+        }
+
+        public Holder increment(Holder holder) {
+            holder.value++;                           // changes what the method was given
+            return holder;
+        }
+
+        public String remoteAddress() {
+            return Server.getRemoteAddress();
+        }
+
+        public String block(String value) throws IOException {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return value;
+        }
+    }
+
+    private final LocalImpl instance = new LocalImpl();
+    private RPC.Server server;
+    private ExecutorService callers;
+
+    private Local start(boolean copyFree, CallQueue queue) throws IOException {
+        server = RPC.getServer(instance, "127.0.0.1", 0, 1, false);
+        server.setInProcessCalls(true);
+        server.setInProcessCopyFree(copyFree);
+        if (queue != null) {
+            server.setCallQueue(queue);
+        }
+        server.start();
+        return (Local) RPC.getProxy(Local.class, Local.VERSION, server.getListenerAddress());
+    }
+
+    @After
+    public void tearDown() {
+        if (callers != null) {
+            callers.shutdownNow();
+        }
+        instance.release.countDown();
+        server.stop();
+    }
+
+    private Future<String> blockInBackground(final Local proxy, final String value) {
+        if (callers == null) {
+            callers = Executors.newCachedThreadPool();
+        }
+        return callers.submit(new Callable<String>() {
+            public String call() throws IOException {
+                return proxy.block(value);
+            }
+        });
+    }
+
+    @Test
+    public void testCopied() throws IOException {
+        Local proxy = start(false, null);
+        Holder holder = new Holder(41);
+        Holder result = proxy.increment(holder);
+        assertEquals(42, result.value);
+        assertEquals("the caller's parameter is untouched", 41, holder.value);
+        assertNotSame(holder, result);
+        assertEquals(0, server.getNumOpenConnections());
+        assertEquals(1, server.getInProcessCallCount());
+    }
+
+    @Test
+    public void testCopyFree() throws IOException {
+        Local proxy = start(true, null);
+        Holder holder = new Holder(41);
+        Holder result = proxy.increment(holder);
+        assertSame("handed over as it is", holder, result);
+        assertEquals(42, holder.value);
+        assertEquals(1, server.getInProcessCallCount());
+    }
+
+    @Test
+    public void testRemoteAddress() throws IOException {
+        Local proxy = start(false, null);
+        assertEquals(InetAddress.getLoopbackAddress().getHostAddress(), proxy.remoteAddress());
+    }
+
+    @Test
+    public void testMethodMetrics() throws IOException {
+        Local proxy = start(false, null);
+        proxy.increment(new Holder(1));
+        proxy.increment(new Holder(2));
+        RPC.Server.MethodMetrics metrics =
+                server.getMethodMetrics().get(Local.class.getName() + ".increment(Holder)");
+        assertEquals(2, metrics.getCalls());
+        assertEquals(2, server.getInProcessCallCount());
+    }
+
+    @Test
+    public void testCallerWaitsForRoomInQueue() throws Exception {
+        Local proxy = start(false, new FifoCallQueue(1));
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        results.add(blockInBackground(proxy, "in the handler"));
+        assertTrue(instance.entered.await(5, TimeUnit.SECONDS));
+        results.add(blockInBackground(proxy, "in the queue"));
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (server.getCallQueueLen() < 1 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        results.add(blockInBackground(proxy, "waiting for room"));
+        Thread.sleep(100);
+        assertEquals(2, server.getInProcessCallCount());   // the third is not queued
+        assertFalse(results.get(2).isDone());
+
+        instance.release.countDown();
+        assertEquals("in the handler", results.get(0).get(5, TimeUnit.SECONDS));
+        assertEquals("in the queue", results.get(1).get(5, TimeUnit.SECONDS));
+        assertEquals("waiting for room", results.get(2).get(5, TimeUnit.SECONDS));
+        assertEquals(3, server.getInProcessCallCount());
+    }
+
+    @Test
+    public void testExpiredCallIsDropped() throws Exception {
+        Local proxy = start(false, null);
+        Future<String> first = blockInBackground(proxy, "first");
+        assertTrue(instance.entered.await(5, TimeUnit.SECONDS));
+
+        // queued behind the blocked call, it expires before a handler gets to it
+        RPC.setCallTimeout(proxy, 100, TimeUnit.MILLISECONDS);
+        try {
+            proxy.increment(new Holder(1));
+            fail("call did not time out");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertEquals(0, server.getExpiredCallCount());
+
+        instance.release.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (server.getExpiredCallCount() == 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getExpiredCallCount());
+    }
+
+    @Test
+    public void testStopFailsPendingCalls() throws Exception {
+        Local proxy = start(false, null);
+        Future<String> pending = blockInBackground(proxy, "pending");
+        assertTrue(instance.entered.await(5, TimeUnit.SECONDS));
+        server.stop();
+        try {
+            pending.get(5, TimeUnit.SECONDS);
+            fail("call outlived the server");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.taobao.minirpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMethodMetrics {
+    public interface Dispatched extends VersionedProtocol {
+        long VERSION = 1L;
+
+        String echo(String value) throws IOException;
+
+        String echo(String value, int times) throws IOException;
+
+        void fail(String message) throws IOException;
+
+        /** Completed by the test. */
+        CompletableFuture<String> later() throws IOException;
+    }
+
+    public interface Unimplemented extends VersionedProtocol {
+        long VERSION = 1L;
+
+        String missing() throws IOException;
+    }
+
+    public static class DispatchedImpl implements Dispatched {
+        final CompletableFuture<String> later = new CompletableFuture<String>();
+
+        public long getProtocolVersion(String protocol, long clientVersion) {
+            return VERSION;
+        }
+
+        public String echo(String value) {
+            return value;
+        }
+
+        public String echo(String value, int times) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < times; i++) {
+                sb.append(value);
+            }
+            return sb.toString();
+        }
+
+        public void fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        public CompletableFuture<String> later() {
+            return later;
+        }
+    }
+
+    private static final String PREFIX = Dispatched.class.getName() + ".";
+
+    private final DispatchedImpl instance = new DispatchedImpl();
+    private RPC.Server server;
+    private Dispatched proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        server = RPC.getServer(instance, "127.0.0.1", 0, 2, false);
+        server.start();
+        proxy = (Dispatched) RPC.getProxy(Dispatched.class, Dispatched.VERSION,
+                server.getListenerAddress());
+    }
+
+    @After
+    public void tearDown() {
+        instance.later.complete("done");
+        server.stop();
+    }
+
+    private RPC.Server.MethodMetrics metrics(String method) {
+        RPC.Server.MethodMetrics metrics = server.getMethodMetrics().get(PREFIX + method);
+        assertTrue(method + " in " + server.getMethodMetrics().keySet(), metrics != null);
+        return metrics;
+    }
+
+    @Test
+    public void testOverloadsDispatched() throws Exception {
+        Map<String, RPC.Server.MethodMetrics> all = server.getMethodMetrics();
+        assertTrue(all.keySet().toString(), all.containsKey(PREFIX + "echo(String)"));
+        assertTrue(all.keySet().toString(), all.containsKey(PREFIX + "echo(String, int)"));
+        assertTrue(all.keySet().toString(), all.containsKey(PREFIX + "later()"));
+
+        assertEquals("a", proxy.echo("a"));
+        assertEquals("bbb", proxy.echo("b", 3));
+        assertEquals("cc", proxy.echo("c", 2));
+        assertEquals(1, metrics("echo(String)").getCalls());
+        assertEquals(2, metrics("echo(String, int)").getCalls());
+        assertTrue(metrics("echo(String, int)").getDispatchNanos() > 0);
+        assertEquals(0, metrics("fail(String)").getCalls());
+    }
+
+    @Test
+    public void testFailedCallCounted() throws Exception {
+        try {
+            proxy.fail("expected");
+            fail("fail() returned");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("expected"));
+        }
+        assertEquals(1, metrics("fail(String)").getCalls());
+    }
+
+    @Test
+    public void testAsyncTimedUntilCompleted() throws Exception {
+        CompletableFuture<String> response = proxy.later();
+        Thread.sleep(200);
+        assertFalse(response.isDone());
+        assertEquals("not counted while pending", 0, metrics("later()").getCalls());
+
+        instance.later.complete("done");
+        assertEquals("done", response.get(5, TimeUnit.SECONDS));
+        // counted by the future's completion, maybe just after the response
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (metrics("later()").getCalls() == 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, metrics("later()").getCalls());
+        assertTrue("timed until completed: " + metrics("later()"),
+                metrics("later()").getDispatchNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testUnimplementedProtocol() throws Exception {
+        Unimplemented unimplemented = (Unimplemented) RPC.getProxy(Unimplemented.class,
+                Unimplemented.VERSION, server.getListenerAddress());
+        try {
+            unimplemented.missing();
+            fail("call to a protocol the server does not implement answered");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is not implemented"));
+        }
+        assertFalse(server.getMethodMetrics().containsKey(
+                Unimplemented.class.getName() + ".missing()"));
+    }
+}
@@ -0,0 +1,82 @@
+package com.taobao.minirpc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestNewParam {
+    public static class Value implements Writable {
+        int value;
+
+        public Value() {
+        }
+
+        Value(int value) {
+            this.value = value;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+    /** Cannot be created to read a parameter into. */
+    public abstract static class Abstract extends Value {
+    }
+
+    private Server server;
+    private Client client;
+
+    private void start(Class<? extends Writable> paramClass) throws IOException {
+        server = new Server("127.0.0.1", 0, paramClass, 1, "test") {
+            public Writable call(Class<?> protocol, Writable param, long receiveTime) {
+                return new Value(((Value) param).value + 1);
+            }
+        };
+        server.start();
+        client = new Client(Value.class);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+        server.stop();
+    }
+
+    private Value call(int value) throws Exception {
+        return (Value) client.call(new Value(value),
+                Client.ConnectionId.getConnectionId(server.getListenerAddress(), null));
+    }
+
+    @Test
+    public void testParamCreated() throws Exception {
+        start(Value.class);
+        assertEquals(2, call(1).value);
+    }
+
+    @Test
+    public void testFailureClosesConnection() throws Exception {
+        start(Abstract.class);
+        try {
+            call(1);
+            fail("call answered without a parameter");
+        } catch (IOException e) {
+            // the server closed the connection
+        }
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (server.getNumOpenConnections() > 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.getNumOpenConnections());
+    }
+}
@@ -0,0 +1,194 @@
+package com.taobao.minirpc;
+
+import com.taobao.utils.RetryPolicies;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestReaderRebalance {
+    private static final int READERS = 10;
+    private static final int CONNECTIONS = 2 * READERS + 1;   // one reader gets three
+
+    public static class Value implements Writable {
+        int value;
+
+        public Value() {
+        }
+
+        Value(int value) {
+            this.value = value;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+    /** Refuses every call from the connection of the first call offered
+     * once armed, which suspends reading from it, until released. */
+    static class HoldingQueue extends FifoCallQueue {
+        volatile boolean armed;
+        volatile Server.Connection held;
+        final CountDownLatch refused = new CountDownLatch(1);
+
+        HoldingQueue(int capacity) {
+            super(capacity);
+        }
+
+        public boolean offer(Schedulable call) {
+            if (armed) {
+                armed = false;
+                held = call.getConnection();
+            }
+            if (held != null && call.getConnection() == held) {
+                refused.countDown();
+                return false;
+            }
+            return super.offer(call);
+        }
+
+        void release() {
+            held = null;
+        }
+    }
+
+    private final HoldingQueue queue = new HoldingQueue(100);
+    private final List<Client.ConnectionId> remoteIds = new ArrayList<Client.ConnectionId>();
+    private Server server;
+    private Client client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server("127.0.0.1", 0, Value.class, 4, "test") {
+            public Writable call(Class<?> protocol, Writable param, long receiveTime) {
+                return param;
+            }
+        };
+        server.setCallQueue(queue);
+        server.start();
+        client = new Client(Value.class);
+        // connection ids differing in their ping interval only, one connection each
+        for (int i = 0; i < CONNECTIONS; i++) {
+            remoteIds.add(new Client.ConnectionId(server.getListenerAddress(), null, 0, null,
+                    60000, RetryPolicies.retryUpToMaximumCountWithFixedSleep(3, 1, TimeUnit.SECONDS),
+                    false, 60000 + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        queue.release();
+        client.stop();
+        server.stop();
+    }
+
+    /** The reader that reads a call from the connection; no other calls
+     * may be made meanwhile. */
+    private int readerOf(Client.ConnectionId remoteId) throws Exception {
+        List<Server.ReaderMetrics> before = server.getReaderMetrics();
+        assertEquals(7, ((Value) client.call(new Value(7), remoteId)).value);
+        List<Server.ReaderMetrics> after = server.getReaderMetrics();
+        int reader = -1;
+        for (int i = 0; i < after.size(); i++) {
+            if (after.get(i).getCalls() != before.get(i).getCalls()) {
+                assertEquals("one reader read the call", -1, reader);
+                reader = after.get(i).getReader();
+            }
+        }
+        assertTrue("a reader read the call", reader >= 0);
+        return reader;
+    }
+
+    private int connectionsOf(int reader) {
+        return server.getReaderMetrics().get(reader).getConnections();
+    }
+
+    /** Make eight calls at once on every connection, and check their answers. */
+    private void callAll(int round, Client.ConnectionId... ids) throws Exception {
+        List<CompletableFuture<Writable>> futures = new ArrayList<CompletableFuture<Writable>>();
+        for (int i = 0; i < 8 * ids.length; i++) {
+            futures.add(client.callAsync(new Value(round * 100 + i), ids[i % ids.length],
+                    0, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(round * 100 + i, ((Value) futures.get(i).get(5, TimeUnit.SECONDS)).value);
+        }
+    }
+
+    @Test
+    public void testBusyConnectionMovesSuspendedOneStays() throws Exception {
+        assertEquals(READERS, server.getReaderMetrics().size());
+        List<List<Client.ConnectionId>> byReader = new ArrayList<List<Client.ConnectionId>>();
+        for (int i = 0; i < READERS; i++) {
+            byReader.add(new ArrayList<Client.ConnectionId>());
+        }
+        for (Client.ConnectionId remoteId : remoteIds) {
+            byReader.get(readerOf(remoteId)).add(remoteId);
+        }
+        int reader = 0;
+        for (int i = 0; i < READERS; i++) {
+            if (byReader.get(i).size() > byReader.get(reader).size()) {
+                reader = i;
+            }
+        }
+        assertTrue(byReader.get(reader).size() >= 3);
+        assertEquals(byReader.get(reader).size(), connectionsOf(reader));
+        Client.ConnectionId first = byReader.get(reader).get(0);
+        Client.ConnectionId second = byReader.get(reader).get(1);
+        Client.ConnectionId suspended = byReader.get(reader).get(2);
+
+        // the third connection on the reader waits with a call it cannot
+        // queue, read while the first one keeps the reader busy: it is the
+        // only connection light enough to move, and must stay
+        server.setReaderRebalanceInterval(1);
+        int connections = connectionsOf(reader);
+        queue.armed = true;
+        CompletableFuture<Writable> pending =
+                client.callAsync(new Value(-1), suspended, 0, TimeUnit.SECONDS);
+        assertTrue(queue.refused.await(5, TimeUnit.SECONDS));
+        int round = 0;
+        long until = System.currentTimeMillis() + 2 * Server.LOAD_SAMPLE_INTERVAL + 500;
+        while (System.currentTimeMillis() < until) {
+            callAll(round++, first);
+        }
+        assertEquals(connections, connectionsOf(reader));
+
+        // with the second one as busy, one of them moves, calls in flight
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (connectionsOf(reader) == connections && System.currentTimeMillis() < waitUntil) {
+            callAll(round++, first, second);
+        }
+        assertEquals(connections - 1, connectionsOf(reader));
+        server.setReaderRebalanceInterval(0);
+        assertFalse(pending.isDone());
+
+        // one busy connection went elsewhere, the other stayed
+        int firstReader = readerOf(first);
+        int secondReader = readerOf(second);
+        assertTrue((firstReader == reader) != (secondReader == reader));
+
+        // the suspended one is still read by its reader once it resumes
+        queue.release();
+        client.call(new Value(0), first);              // its take resumes the connection
+        assertEquals(-1, ((Value) pending.get(5, TimeUnit.SECONDS)).value);
+        assertEquals(reader, readerOf(suspended));
+        assertEquals(CONNECTIONS, server.getNumOpenConnections());
+    }
+}
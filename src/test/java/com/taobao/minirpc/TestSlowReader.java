@@ -0,0 +1,165 @@
+package com.taobao.minirpc;
+
+import com.taobao.utils.RetryPolicies;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestSlowReader {
+    private static final int HANDLERS = 8;
+
+    /** Asks for size bytes, after waiting for the other handlers if together. */
+    public static class Request implements Writable {
+        int index;
+        int size;
+        boolean together;
+
+        public Request() {
+        }
+
+        Request(int index, int size, boolean together) {
+            this.index = index;
+            this.size = size;
+            this.together = together;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(index);
+            out.writeInt(size);
+            out.writeBoolean(together);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            index = in.readInt();
+            size = in.readInt();
+            together = in.readBoolean();
+        }
+    }
+
+    public static class Blob implements Writable {
+        byte[] bytes;
+
+        public Blob() {
+        }
+
+        Blob(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+        }
+    }
+
+    private static byte[] content(int index, int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++) {
+            b[i] = (byte) (i * 31 + index);
+        }
+        return b;
+    }
+
+    private final CyclicBarrier together = new CyclicBarrier(HANDLERS);
+    private Server server;
+    private Client client;
+    private FragmentingProxy proxy;
+    private Client.ConnectionId remoteId;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server("127.0.0.1", 0, Request.class, HANDLERS, "test") {
+            public Writable call(Class<?> protocol, Writable param, long receiveTime)
+                    throws IOException {
+                Request request = (Request) param;
+                if (request.together) {
+                    try {
+                        together.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    } catch (BrokenBarrierException e) {
+                        throw new IOException(e);
+                    } catch (TimeoutException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return new Blob(content(request.index, request.size));
+            }
+        };
+        // a small send buffer and a slow reader: most writes are partial
+        server.setSocketSendBufSize(8192);
+        server.start();
+        proxy = new FragmentingProxy(server.getListenerAddress(), 1024, 4096);
+        remoteId = new Client.ConnectionId(proxy.getAddress(), null, 0, null, 10000,
+                RetryPolicies.retryUpToMaximumCountWithFixedSleep(3, 1, TimeUnit.SECONDS),
+                false, 60000);
+        client = new Client(Blob.class);
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+        proxy.close();
+        server.stop();
+    }
+
+    private void callAll(List<Request> requests) throws Exception {
+        List<CompletableFuture<Writable>> futures = new ArrayList<CompletableFuture<Writable>>();
+        for (Request request : requests) {
+            futures.add(client.callAsync(request, remoteId, 0, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i);
+            assertArrayEquals("response " + request.index,
+                    content(request.index, request.size),
+                    ((Blob) futures.get(i).get(30, TimeUnit.SECONDS)).bytes);
+        }
+    }
+
+    @Test
+    public void testHandlersRespondAtOnce() throws Exception {
+        // every round queues responses on a connection still being written:
+        // the write flag passes between handlers and the responder, and the
+        // responder registers the channel again each round
+        for (int round = 0; round < 3; round++) {
+            List<Request> requests = new ArrayList<Request>();
+            for (int i = 0; i < HANDLERS; i++) {
+                requests.add(new Request(round * HANDLERS + i, 48 * 1024 + i * 1000, true));
+            }
+            callAll(requests);
+        }
+        assertEquals(1, server.getNumOpenConnections());
+    }
+
+    @Test
+    public void testSmallResponsesBehindLargeOnes() throws Exception {
+        // small responses queue behind a partly written one and are
+        // gathered into the same writes
+        List<Request> requests = new ArrayList<Request>();
+        for (int i = 0; i < 64; i++) {
+            requests.add(new Request(i, (i % 8 == 0) ? 100 * 1000 : 10 + i, false));
+        }
+        callAll(requests);
+        callAll(requests);
+        assertEquals(1, server.getNumOpenConnections());
+    }
+}
@@ -0,0 +1,220 @@
+package com.taobao.minirpc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestStreamCalls {
+    public interface Numbers extends VersionedProtocol {
+        long VERSION = 1L;
+
+        /** 0 to n - 1. */
+        StreamIterator<Integer> count(int n) throws IOException;
+
+        /** 0 to n - 1, once released, see {@link NumbersImpl#release}. */
+        StreamIterator<Integer> slow(int n) throws IOException;
+
+        int twice(int n) throws IOException;
+    }
+
+    public static class NumbersImpl implements Numbers {
+        final AtomicInteger streams = new AtomicInteger();
+        final AtomicInteger produced = new AtomicInteger();    // elements taken by the server
+        final CountDownLatch closed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public long getProtocolVersion(String protocol, long clientVersion) {
+            return VERSION;
+        }
+
+        public StreamIterator<Integer> count(int n) {
+            return new Counting(n, null);
+        }
+
+        public StreamIterator<Integer> slow(int n) {
+            return new Counting(n, release);
+        }
+
+        public int twice(int n) {
+            return 2 * n;
+        }
+
+        /** Counts what the server takes, and notes that it was closed. */
+        private class Counting implements StreamIterator<Integer>, Closeable {
+            private final int n;
+            private final CountDownLatch start;        // null to start at once
+            private int next;
+
+            Counting(int n, CountDownLatch start) {
+                this.n = n;
+                this.start = start;
+                streams.incrementAndGet();
+            }
+
+            public boolean hasNext() {
+                if (start != null) {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return next < n;
+            }
+
+            public Integer next() {
+                produced.incrementAndGet();
+                return next++;
+            }
+
+            public void close() {
+                closed.countDown();
+            }
+        }
+    }
+
+    private final NumbersImpl instance = new NumbersImpl();
+    private RPC.Server server;
+
+    private Numbers start(boolean inProcess) throws IOException {
+        server = RPC.getServer(instance, "127.0.0.1", 0, 1, false);
+        server.setInProcessCalls(inProcess);
+        server.start();
+        return (Numbers) RPC.getProxy(Numbers.class, Numbers.VERSION, server.getListenerAddress());
+    }
+
+    @After
+    public void tearDown() {
+        RPC.getClient().setStreamWindow(16);
+        instance.release.countDown();
+        server.stop();
+    }
+
+    /** Wait up to 5s for the server to have taken the given number of elements. */
+    private void waitForProduced(int count) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (instance.produced.get() < count && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, instance.produced.get());
+    }
+
+    @Test
+    public void testCreditsExhaustedAndGranted() throws Exception {
+        RPC.getClient().setStreamWindow(4);
+        Numbers proxy = start(false);
+        StreamIterator<Integer> numbers = proxy.count(100);
+
+        // the server sends a window ahead and parks the stream
+        waitForProduced(4);
+        Thread.sleep(100);
+        assertEquals(4, instance.produced.get());
+
+        // taking half the window grants it back
+        assertEquals(0, (int) numbers.next());
+        assertEquals(1, (int) numbers.next());
+        waitForProduced(6);
+
+        for (int i = 2; i < 100; i++) {
+            assertTrue(numbers.hasNext());
+            assertEquals(i, (int) numbers.next());
+        }
+        assertFalse(numbers.hasNext());
+        assertTrue(instance.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(100, instance.produced.get());
+    }
+
+    @Test
+    public void testCancelMidStream() throws Exception {
+        RPC.getClient().setStreamWindow(4);
+        Numbers proxy = start(false);
+        StreamIterator<Integer> numbers = proxy.count(100);
+        assertEquals(0, (int) numbers.next());
+        assertEquals(1, (int) numbers.next());
+        numbers.close();
+
+        assertTrue("source released", instance.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(instance.produced.get() <= 6);
+        assertFalse(numbers.hasNext());
+        assertEquals("connection still serves", 6, proxy.twice(3));
+    }
+
+    @Test
+    public void testFirstChunkExpires() throws Exception {
+        Numbers proxy = start(false);
+        RPC.setCallTimeout(proxy, 100, TimeUnit.MILLISECONDS);
+        StreamIterator<Integer> numbers = proxy.slow(10);
+        try {
+            numbers.hasNext();
+            fail("stream did not time out");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+        }
+
+        // the timeout cancelled the stream, the server drops it after a chunk
+        instance.release.countDown();
+        assertTrue("source released", instance.closed.await(5, TimeUnit.SECONDS));
+        RPC.setCallTimeout(proxy, 0, TimeUnit.MILLISECONDS);
+        assertEquals(6, proxy.twice(3));
+    }
+
+    @Test
+    public void testPlainCallToStreamingMethod() throws Exception {
+        start(false);
+        RPC.Invocation invocation = new RPC.Invocation(
+                Numbers.class.getMethod("count", int.class), new Object[] {3},
+                MethodTable.get(Numbers.class));
+        try {
+            RPC.getClient().call(invocation, Client.ConnectionId.getConnectionId(
+                    server.getListenerAddress(), Numbers.class));
+            fail("streaming method answered a plain call");
+        } catch (RemoteException e) {
+            assertEquals(IOException.class.getName(), e.getClassName());
+        }
+        assertEquals("method not invoked", 0, instance.streams.get());
+    }
+
+    @Test
+    public void testStreamCallToPlainMethod() throws Exception {
+        start(false);
+        RPC.Invocation invocation = new RPC.Invocation(
+                Numbers.class.getMethod("twice", int.class), new Object[] {3},
+                MethodTable.get(Numbers.class));
+        StreamIterator<Writable> chunks = RPC.getClient().callStream(invocation,
+                Client.ConnectionId.getConnectionId(server.getListenerAddress(), Numbers.class),
+                0, TimeUnit.MILLISECONDS);
+        try {
+            chunks.hasNext();
+            fail("plain method answered a stream");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof RemoteException);
+            assertEquals(IOException.class.getName(),
+                    ((RemoteException) e.getCause()).getClassName());
+        }
+    }
+
+    @Test
+    public void testInProcess() throws Exception {
+        Numbers proxy = start(true);
+        Iterator<Integer> numbers = proxy.count(10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (int) numbers.next());
+        }
+        assertFalse(numbers.hasNext());
+        assertTrue(instance.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, server.getInProcessCallCount());
+    }
+}
@@ -0,0 +1,142 @@
+package com.taobao.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestConcurrentIntMap {
+
+    @Test
+    public void testSequentialKeys() {
+        ConcurrentIntMap<String> map = new ConcurrentIntMap<String>(16);
+        for (int i = 0; i < 16; i++) {
+            map.put(i, "v" + i);
+        }
+        assertEquals(16, map.size());
+        for (int i = 0; i < 16; i++) {
+            assertEquals("v" + i, map.get(i));
+        }
+        assertNull(map.get(16));
+        for (int i = 0; i < 16; i++) {
+            assertEquals("v" + i, map.remove(i));
+            assertNull(map.remove(i));
+        }
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testSlotCollision() {
+        ConcurrentIntMap<String> map = new ConcurrentIntMap<String>(4);
+        map.put(1, "one");
+        map.put(5, "five");                       // same slot, goes to overflow
+        map.put(-3, "minus three");               // same slot again
+        assertEquals(3, map.size());
+        assertEquals("one", map.get(1));
+        assertEquals("five", map.get(5));
+        assertEquals("minus three", map.get(-3));
+        assertNull(map.get(9));
+
+        assertEquals("one", map.remove(1));       // frees the slot
+        assertNull(map.get(1));
+        assertEquals("five", map.get(5));         // still found in overflow
+
+        map.put(9, "nine");                       // takes the free slot
+        assertEquals("nine", map.get(9));
+        assertEquals("five", map.remove(5));
+        assertEquals("minus three", map.remove(-3));
+        assertEquals("nine", map.remove(9));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testOverflow() {
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>(3);   // 4 slots
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(i));
+        }
+        for (int i = 999; i >= 0; i -= 2) {       // odd keys, from both tables
+            assertEquals(Integer.valueOf(i), map.remove(i));
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) {
+                assertEquals(Integer.valueOf(i), map.get(i));
+            } else {
+                assertNull(map.get(i));
+            }
+        }
+
+        List<Integer> values = map.values();
+        Collections.sort(values);
+        assertEquals(500, values.size());
+        assertEquals(Integer.valueOf(998), values.get(499));
+        assertEquals(500, map.size());            // values() leaves them in
+
+        List<Integer> removed = map.removeAll();
+        Collections.sort(removed);
+        assertEquals(500, removed.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(Integer.valueOf(2 * i), removed.get(i));
+        }
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullValue() {
+        new ConcurrentIntMap<String>().put(1, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalCapacity() {
+        new ConcurrentIntMap<String>(0);
+    }
+
+    @Test
+    public void testConcurrentRemove() throws InterruptedException {
+        final ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>(64);
+        final int keys = 10000;
+        for (int i = 0; i < keys; i++) {
+            map.put(i, i);
+        }
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < keys; i++) {
+                        if (map.remove(i) != null) {
+                            taken.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("each key removed once", keys, taken.get());
+        assertTrue(map.isEmpty());
+    }
+}
@@ -0,0 +1,167 @@
+package com.taobao.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestLz4 {
+    private final Random random = new Random(42);
+
+    private byte[] randomBytes(int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+
+    /* Compress at an offset into a buffer of the advertised bound, decompress
+     * at another offset, and check the result matches. */
+    private byte[] roundTrip(byte[] data) throws IOException {
+        byte[] compressed = new byte[3 + Lz4.maxCompressedLength(data.length)];
+        int n = Lz4.compress(data, 0, data.length, compressed, 3);
+        assertTrue("compressed length " + n, n > 0 && n <= Lz4.maxCompressedLength(data.length));
+        byte[] block = Arrays.copyOfRange(compressed, 3, 3 + n);
+        byte[] restored = new byte[data.length + 7];
+        Lz4.decompress(block, 0, n, restored, 7, data.length);
+        assertArrayEquals(data, Arrays.copyOfRange(restored, 7, restored.length));
+        return block;
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        byte[] block = roundTrip(new byte[0]);
+        assertEquals(1, block.length);                    // a lone token
+    }
+
+    @Test
+    public void testShorterThanMatchLimit() throws IOException {
+        for (int length = 1; length <= 13; length++) {
+            byte[] zeros = new byte[length];
+            byte[] block = roundTrip(zeros);
+            if (length <= 12) {
+                assertEquals("literals only", 1 + length, block.length);
+            }
+            roundTrip(randomBytes(length));
+        }
+    }
+
+    @Test
+    public void testIncompressible() throws IOException {
+        for (int length : new int[] {100, 4096, 65536, 200000}) {
+            byte[] block = roundTrip(randomBytes(length));
+            assertTrue(block.length >= length);
+        }
+    }
+
+    @Test
+    public void testRepetitiveWithOverlappingMatches() throws IOException {
+        byte[] zeros = new byte[100000];                  // offset 1
+        assertTrue(roundTrip(zeros).length < 1000);
+
+        byte[] abc = new byte[10000];                     // offset 3
+        for (int i = 0; i < abc.length; i++) {
+            abc[i] = (byte) ("abc".charAt(i % 3));
+        }
+        assertTrue(roundTrip(abc).length < 200);
+
+        byte[] text = ("the quick brown fox jumps over the lazy dog, " +
+                "the quick brown fox jumps over the lazy cat. ").getBytes();
+        byte[] repeated = new byte[text.length * 50];
+        for (int i = 0; i < 50; i++) {
+            System.arraycopy(text, 0, repeated, i * text.length, text.length);
+        }
+        assertTrue(roundTrip(repeated).length < repeated.length / 4);
+    }
+
+    @Test
+    public void testLongLiteralsAndMatches() throws IOException {
+        // literal and match lengths around the 15 and 15 + 255 boundaries of
+        // the token and its continuation bytes
+        int[] lengths = {0, 1, 14, 15, 16, 18, 19, 20, 268, 269, 270, 271, 273, 274, 275,
+                524, 525, 526, 529, 530, 1000};
+        for (int literals : lengths) {
+            for (int match : lengths) {
+                byte[] data = new byte[literals + match + 20];
+                System.arraycopy(randomBytes(literals), 0, data, 0, literals);
+                // match zeros, then random tail
+                System.arraycopy(randomBytes(20), 0, data, literals + match, 20);
+                roundTrip(data);
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeLongLengths() throws IOException {
+        // 270 literals: 15 in the token, then 255 and 0
+        byte[] literals = randomBytes(270);
+        byte[] block = new byte[3 + 270];
+        block[0] = (byte) 0xF0;
+        block[1] = (byte) 255;
+        block[2] = 0;
+        System.arraycopy(literals, 0, block, 3, 270);
+        byte[] out = new byte[270];
+        Lz4.decompress(block, 0, block.length, out, 0, out.length);
+        assertArrayEquals(literals, out);
+
+        // one literal, then a match at offset 1 of 15 + 255 + 0 + 4 bytes
+        // copied over itself, then an empty last sequence
+        byte[] run = {0x1F, 'a', 1, 0, (byte) 255, 0, 0x00};
+        out = new byte[1 + 274];
+        Lz4.decompress(run, 0, run.length, out, 0, out.length);
+        for (byte b : out) {
+            assertEquals('a', b);
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] data = new byte[2000];
+        System.arraycopy(randomBytes(500), 0, data, 0, 500);
+        byte[] block = roundTrip(data);
+        for (int cut = 0; cut < block.length; cut++) {
+            assertCorrupt(Arrays.copyOf(block, cut), data.length);
+        }
+    }
+
+    @Test
+    public void testWrongLength() throws IOException {
+        byte[] data = randomBytes(1000);
+        byte[] block = roundTrip(data);
+        assertCorrupt(block, data.length - 1);
+        assertCorrupt(block, data.length + 1);
+    }
+
+    @Test
+    public void testBadOffsets() throws IOException {
+        assertCorrupt(new byte[] {0x10, 'a', 0, 0, 0x00}, 5);   // offset 0
+        assertCorrupt(new byte[] {0x10, 'a', 2, 0, 0x00}, 5);   // before the start
+    }
+
+    @Test
+    public void testGarbage() {
+        for (int i = 0; i < 2000; i++) {
+            byte[] block = randomBytes(1 + random.nextInt(64));
+            byte[] out = new byte[random.nextInt(256)];
+            try {
+                Lz4.decompress(block, 0, block.length, out, 0, out.length);
+            } catch (IOException e) {
+                // expected for most inputs, anything else is a bug
+            }
+        }
+    }
+
+    private static void assertCorrupt(byte[] block, int length) {
+        try {
+            Lz4.decompress(block, 0, block.length, new byte[length], 0, length);
+            fail("decompressed a corrupt block of " + block.length + " bytes");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.taobao.utils;
+
+import com.taobao.minirpc.DataInputBuffer;
+import com.taobao.minirpc.DataOutputBuffer;
+import com.taobao.minirpc.Writable;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestObjectWritable {
+    private final Configuration conf = new Configuration(false);
+
+    public static class Point implements Writable {
+        int x;
+        int y;
+
+        public Point() {}
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(x);
+            out.writeInt(y);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            x = in.readInt();
+            y = in.readInt();
+        }
+
+        public boolean equals(Object o) {
+            return o != null && o.getClass() == getClass() &&
+                    ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+    public static class ColoredPoint extends Point {
+        int color;
+
+        public ColoredPoint() {}
+
+        ColoredPoint(int x, int y, int color) {
+            super(x, y);
+            this.color = color;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            super.write(out);
+            out.writeInt(color);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            super.readFields(in);
+            color = in.readInt();
+        }
+
+        public boolean equals(Object o) {
+            return super.equals(o) && ((ColoredPoint) o).color == color;
+        }
+    }
+
+    public static class Label implements Writable {
+        String text;
+
+        public Label() {}
+
+        Label(String text) {
+            this.text = text;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeUTF(text);
+        }
+
+        public void readFields(DataInput in) throws IOException {
+            text = in.readUTF();
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Label && ((Label) o).text.equals(text);
+        }
+
+        public int hashCode() {
+            return text.hashCode();
+        }
+    }
+
+    private byte[] write(Object instance, Class<?> declaredClass) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        ObjectWritable.writeObject(out, instance, declaredClass, conf);
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    /* Write and read back a value, checking the whole encoding is consumed. */
+    private Object roundTrip(Object instance, Class<?> declaredClass) throws IOException {
+        byte[] bytes = write(instance, declaredClass);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, bytes.length);
+        ObjectWritable writable = new ObjectWritable();
+        Object value = ObjectWritable.readObject(in, writable, conf);
+        assertEquals("bytes left", 0, in.available());
+        assertSame(declaredClass, writable.getDeclaredClass());
+        return value;
+    }
+
+    @Test
+    public void testPrimitiveArrays() throws IOException {
+        boolean[] booleans = {true, false, true};
+        assertTrue(Arrays.equals(booleans, (boolean[]) roundTrip(booleans, boolean[].class)));
+        byte[] bytes = {0, 1, -1, Byte.MIN_VALUE, Byte.MAX_VALUE};
+        assertArrayEquals(bytes, (byte[]) roundTrip(bytes, byte[].class));
+        char[] chars = {'a', '\u0000', '\uffff', '\u4e2d'};
+        assertArrayEquals(chars, (char[]) roundTrip(chars, char[].class));
+        short[] shorts = {0, -1, Short.MIN_VALUE, Short.MAX_VALUE};
+        assertArrayEquals(shorts, (short[]) roundTrip(shorts, short[].class));
+        int[] ints = {0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        assertArrayEquals(ints, (int[]) roundTrip(ints, int[].class));
+        long[] longs = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+        assertArrayEquals(longs, (long[]) roundTrip(longs, long[].class));
+        float[] floats = {0f, -0f, Float.NaN, Float.MIN_VALUE, Float.NEGATIVE_INFINITY};
+        assertTrue(Arrays.equals(floats, (float[]) roundTrip(floats, float[].class)));
+        double[] doubles = {0d, -0d, Double.NaN, Double.MAX_VALUE, Double.POSITIVE_INFINITY};
+        assertTrue(Arrays.equals(doubles, (double[]) roundTrip(doubles, double[].class)));
+    }
+
+    @Test
+    public void testPrimitiveArraysAreWrittenInBulk() throws IOException {
+        int[] ints = new int[1000];
+        int header = write(new int[0], int[].class).length;
+        assertEquals(header + 4 * 1000, write(ints, int[].class).length);
+        byte[] bytes = new byte[1000];
+        assertEquals(header + 1000, write(bytes, byte[].class).length);
+    }
+
+    @Test
+    public void testEmptyArrays() throws IOException {
+        assertEquals(0, ((long[]) roundTrip(new long[0], long[].class)).length);
+        assertEquals(0, ((Point[]) roundTrip(new Point[0], Point[].class)).length);
+        assertEquals(0, ((String[]) roundTrip(new String[0], String[].class)).length);
+    }
+
+    @Test
+    public void testHomogeneousWritableArray() throws IOException {
+        Point[] points = new Point[100];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point(i, -i);
+        }
+        assertArrayEquals(points, (Point[]) roundTrip(points, Point[].class));
+
+        // the element class name is written once, not per element
+        int name = Point.class.getName().length();
+        assertTrue(write(points, Point[].class).length < 100 * 8 + 4 * name);
+
+        Writable[] declaredAsInterface = {new Label("a"), new Label("b")};
+        Object[] value = (Object[]) roundTrip(declaredAsInterface, Writable[].class);
+        assertSame(Writable[].class, value.getClass());
+        assertArrayEquals(declaredAsInterface, value);
+    }
+
+    @Test
+    public void testMixedWritableArray() throws IOException {
+        Writable[] mixed = {new Point(1, 2), new Label("x"), new Point(3, 4)};
+        assertArrayEquals(mixed, (Object[]) roundTrip(mixed, Writable[].class));
+    }
+
+    @Test
+    public void testNullElements() throws IOException {
+        Point[] points = {new Point(1, 1), null, new Point(2, 2)};
+        assertArrayEquals(points, (Point[]) roundTrip(points, Point[].class));
+        Point[] allNull = new Point[3];
+        assertArrayEquals(allNull, (Point[]) roundTrip(allNull, Point[].class));
+        String[] strings = {"a", null, ""};
+        assertArrayEquals(strings, (String[]) roundTrip(strings, String[].class));
+    }
+
+    @Test
+    public void testNestedArrays() throws IOException {
+        int[][] matrix = {{1, 2}, {}, null, {3}};
+        int[][] value = (int[][]) roundTrip(matrix, int[][].class);
+        assertEquals(matrix.length, value.length);
+        for (int i = 0; i < matrix.length; i++) {
+            if (matrix[i] == null) {
+                assertNull(value[i]);
+            } else {
+                assertArrayEquals(matrix[i], value[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testNullValue() throws IOException {
+        assertNull(roundTrip(null, Point[].class));
+        assertNull(roundTrip(null, Point.class));
+    }
+
+    @Test
+    public void testWritableInstance() throws IOException {
+        ObjectWritable writable = new ObjectWritable(long[].class, new long[] {7, 8, 9});
+        DataOutputBuffer out = new DataOutputBuffer();
+        writable.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        ObjectWritable read = new ObjectWritable();
+        read.readFields(in);
+        assertSame(long[].class, read.getDeclaredClass());
+        assertArrayEquals(new long[] {7, 8, 9}, (long[]) read.get());
+    }
+
+    private byte[] writeCompact(Object instance, Class<?> declaredClass) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        ObjectWritable.writeObjectCompact(out, instance, declaredClass, conf);
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    private Object roundTripCompact(Object instance, Class<?> declaredClass)
+            throws IOException {
+        byte[] bytes = writeCompact(instance, declaredClass);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, bytes.length);
+        Object value = ObjectWritable.readObjectCompact(in, declaredClass, conf);
+        assertEquals("bytes left", 0, in.available());
+        return value;
+    }
+
+    @Test
+    public void testCompactPrimitives() throws IOException {
+        assertEquals(Boolean.TRUE, roundTripCompact(true, Boolean.TYPE));
+        assertEquals(Character.valueOf('\u4e2d'), roundTripCompact('\u4e2d', Character.TYPE));
+        assertEquals(Byte.valueOf((byte) -7), roundTripCompact((byte) -7, Byte.TYPE));
+        assertEquals(Short.valueOf(Short.MIN_VALUE), roundTripCompact(Short.MIN_VALUE, Short.TYPE));
+        assertEquals(Integer.valueOf(-42), roundTripCompact(-42, Integer.TYPE));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), roundTripCompact(Long.MAX_VALUE, Long.TYPE));
+        assertEquals(Float.valueOf(1.5f), roundTripCompact(1.5f, Float.TYPE));
+        assertEquals(Double.valueOf(Double.NaN), roundTripCompact(Double.NaN, Double.TYPE));
+        assertNull(roundTripCompact(null, Void.TYPE));
+
+        // no class name or tag, only the value
+        assertEquals(4, writeCompact(-42, Integer.TYPE).length);
+        assertEquals(8, writeCompact(1L, Long.TYPE).length);
+    }
+
+    @Test
+    public void testCompactStringsAndEnums() throws IOException {
+        assertEquals("hello", roundTripCompact("hello", String.class));
+        assertEquals("", roundTripCompact("", String.class));
+        assertNull(roundTripCompact(null, String.class));
+        assertSame(TimeUnit.SECONDS, roundTripCompact(TimeUnit.SECONDS, TimeUnit.class));
+        assertNull(roundTripCompact(null, TimeUnit.class));
+    }
+
+    @Test
+    public void testCompactWritables() throws IOException {
+        Point point = new Point(3, 4);
+        assertEquals(point, roundTripCompact(point, Point.class));
+        // the tag and the fields, no class name
+        assertEquals(1 + 8, writeCompact(point, Point.class).length);
+        assertNull(roundTripCompact(null, Point.class));
+    }
+
+    @Test
+    public void testCompactSubclass() throws IOException {
+        ColoredPoint colored = new ColoredPoint(1, 2, 0xff0000);
+        Object value = roundTripCompact(colored, Point.class);
+        assertSame(ColoredPoint.class, value.getClass());
+        assertEquals(colored, value);
+        // a subclass carries its class name
+        assertTrue(writeCompact(colored, Point.class).length >
+                ColoredPoint.class.getName().length() + 12);
+
+        Label label = new Label("declared as the interface");
+        assertEquals(label, roundTripCompact(label, Writable.class));
+    }
+
+    @Test
+    public void testCompactArrays() throws IOException {
+        int[] ints = {1, -1, Integer.MAX_VALUE};
+        assertArrayEquals(ints, (int[]) roundTripCompact(ints, int[].class));
+        double[] doubles = {0.5, Double.NEGATIVE_INFINITY};
+        assertTrue(Arrays.equals(doubles, (double[]) roundTripCompact(doubles, double[].class)));
+        assertEquals(0, ((byte[]) roundTripCompact(new byte[0], byte[].class)).length);
+
+        Point[] points = {new Point(1, 1), null, new ColoredPoint(2, 2, 5), new Point(3, 3)};
+        Point[] value = (Point[]) roundTripCompact(points, Point[].class);
+        assertArrayEquals(points, value);
+        assertSame(ColoredPoint.class, value[2].getClass());
+
+        String[][] nested = {{"a", null}, null, {}};
+        String[][] nestedValue = (String[][]) roundTripCompact(nested, String[][].class);
+        assertArrayEquals(nested[0], nestedValue[0]);
+        assertNull(nestedValue[1]);
+        assertEquals(0, nestedValue[2].length);
+
+        assertNull(roundTripCompact(null, long[].class));
+    }
+
+    @Test
+    public void testCompactRejectsOtherTypes() {
+        try {
+            writeCompact(new Object(), Object.class);
+            fail("wrote a plain Object");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
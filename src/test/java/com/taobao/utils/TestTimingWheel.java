@@ -0,0 +1,153 @@
+package com.taobao.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTimingWheel {
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        // 4 buckets of 10ms: a turn of the wheel takes 40ms
+        wheel = new TimingWheel("test timing wheel", 10, TimeUnit.MILLISECONDS, 3);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    /** A task that records when it ran. */
+    private static class Task implements Runnable {
+        final long scheduled = System.nanoTime();
+        final CountDownLatch ran = new CountDownLatch(1);
+        volatile long elapsedMillis = -1;
+
+        public void run() {
+            elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+            ran.countDown();
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return ran.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void testSchedule() throws InterruptedException {
+        Task task = new Task();
+        TimingWheel.Timeout timeout = wheel.schedule(task, 25, TimeUnit.MILLISECONDS);
+        assertTrue(task.await(5000));
+        assertTrue("ran after " + task.elapsedMillis, task.elapsedMillis >= 25);
+        assertTrue(timeout.isExpired());
+        assertFalse("already ran", timeout.cancel());
+    }
+
+    @Test
+    public void testZeroDelay() throws InterruptedException {
+        Task task = new Task();
+        wheel.schedule(task, 0, TimeUnit.MILLISECONDS);
+        assertTrue(task.await(5000));
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        Task cancelled = new Task();
+        TimingWheel.Timeout timeout = wheel.schedule(cancelled, 30, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertTrue("cancelling twice", timeout.cancel());
+
+        Task later = new Task();
+        wheel.schedule(later, 60, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5000));
+        assertFalse(cancelled.await(0));
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void testCancelAfterTransfer() throws InterruptedException {
+        Task cancelled = new Task();
+        TimingWheel.Timeout timeout = wheel.schedule(cancelled, 100, TimeUnit.MILLISECONDS);
+        Thread.sleep(30);                         // in its bucket by now
+        assertTrue(timeout.cancel());
+        Task later = new Task();
+        wheel.schedule(later, 120, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5000));
+        assertFalse(cancelled.await(0));
+    }
+
+    @Test
+    public void testWraparound() throws InterruptedException {
+        // delays of several turns land in the same buckets as short ones,
+        // and must wait for their round
+        int[] delays = {5, 45, 85, 125, 165, 20, 60, 100, 140};
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(delays.length);
+        List<Task> tasks = new ArrayList<Task>();
+        for (final int delay : delays) {
+            Task task = new Task() {
+                public void run() {
+                    super.run();
+                    order.add(delay);
+                    done.countDown();
+                }
+            };
+            tasks.add(task);
+            wheel.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(5000, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            long elapsed = tasks.get(i).elapsedMillis;
+            assertTrue("delay " + delays[i] + " ran after " + elapsed, elapsed >= delays[i]);
+        }
+        List<Integer> sorted = new ArrayList<Integer>(order);
+        Collections.sort(sorted);
+        assertEquals("run in deadline order", sorted, order);
+    }
+
+    @Test
+    public void testFailingTask() throws InterruptedException {
+        wheel.schedule(new Runnable() {
+            public void run() {
+                throw new RuntimeException("expected");
+            }
+        }, 5, TimeUnit.MILLISECONDS);
+        Task task = new Task();
+        wheel.schedule(task, 30, TimeUnit.MILLISECONDS);
+        assertTrue("wheel survives a failing task", task.await(5000));
+    }
+
+    @Test
+    public void testManyTasks() throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    count.incrementAndGet();
+                    done.countDown();
+                }
+            }, i % 200, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(5000, TimeUnit.MILLISECONDS));
+        assertEquals(1000, count.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testScheduleAfterStop() {
+        wheel.stop();
+        wheel.schedule(new Task(), 10, TimeUnit.MILLISECONDS);
+    }
+}